@@ -0,0 +1,388 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package uk.ac.lancs.scc.jardeps.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the class-file analysis that follows each compilation,
+ * using the running JDK's own classes as the corpus. Each operation
+ * handles one class, and successive operations cycle through the
+ * corpus.
+ *
+ * <p>
+ * The analysis classes are loaded from the jar named by the
+ * {@code jardeps} parameter, so that giving several jars compares the
+ * builds that produced them. They are in the default package, so they
+ * are reached through method handles. Classes are read from buffers
+ * where the jar supports it, and from streams otherwise, as older
+ * builds did.
+ *
+ * @author simpsons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ClassFileBenchmark {
+    /**
+     * The jar providing the analysis classes
+     */
+    @Param("jardeps.jar")
+    public String jardeps;
+
+    /**
+     * The modules whose classes form the corpus, separated by
+     * {@code +}, or {@code *} for all of them
+     */
+    @Param("*")
+    public String modules;
+
+    /**
+     * Which classes of the modules to use: {@code all}, or
+     * {@code annotated} for only those with annotations, to
+     * concentrate on their parsing
+     */
+    @Param("all")
+    public String corpus;
+
+    private URLClassLoader loader;
+
+    private MethodHandle classIdForName;
+
+    private MethodHandle openPool;
+
+    private MethodHandle newPoolBuilder;
+
+    private MethodHandle readPool;
+
+    private MethodHandle newAnalysis;
+
+    private MethodHandle load;
+
+    private MethodHandle createProfiles;
+
+    private MethodHandle getRuntimeClassReferences;
+
+    private byte[][] classes;
+
+    private String[] names;
+
+    private Object[] ids;
+
+    private Object[] analyses;
+
+    /**
+     * Tracks each thread's position in the corpus, and how many times
+     * it has passed through it.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index;
+
+        private int lap;
+
+        int next(int size) {
+            int result = index;
+            if (result + 1 == size) {
+                index = 0;
+                lap++;
+            } else {
+                index = result + 1;
+            }
+            return result;
+        }
+
+        int lap() {
+            return lap;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        loader = new URLClassLoader(new URL[]
+        { Paths.get(jardeps).toUri().toURL() },
+                                    ClassLoader.getPlatformClassLoader());
+        Class<?> classIdType = loader.loadClass("ClassId");
+        Class<?> poolBuilderType = loader.loadClass("ConstantPoolBuilder");
+        Class<?> analysisType = loader.loadClass("ClassAnalysis");
+
+        classIdForName =
+            find(classIdType.getDeclaredMethod("forName", String.class));
+        newPoolBuilder = find(poolBuilderType.getDeclaredConstructor());
+        readPool =
+            find(poolBuilderType.getDeclaredMethod("read", DataInput.class));
+        newAnalysis = find(analysisType.getDeclaredConstructor());
+
+        /* Adapt the entry points to take the class file's bytes,
+         * whichever form of input they expect. */
+        MethodHandles.Lookup here = MethodHandles.lookup();
+        MethodHandle wrap = here
+            .findStatic(ByteBuffer.class, "wrap",
+                        MethodType.methodType(ByteBuffer.class,
+                                              byte[].class));
+        MethodHandle stream = here
+            .findStatic(ClassFileBenchmark.class, "stream",
+                        MethodType.methodType(DataInput.class,
+                                              byte[].class, int.class));
+        MethodHandle streamAll =
+            MethodHandles.insertArguments(stream, 1, 0);
+        MethodHandle streamPool =
+            MethodHandles.insertArguments(stream, 1, 8);
+        try {
+            load = MethodHandles
+                .filterArguments(find(analysisType
+                    .getDeclaredMethod("load", classIdType,
+                                       ByteBuffer.class)), 2, wrap);
+        } catch (NoSuchMethodException ex) {
+            load = MethodHandles
+                .filterArguments(find(analysisType
+                    .getDeclaredMethod("load", classIdType,
+                                       DataInput.class)), 2, streamAll);
+        }
+        try {
+            Class<?> inputType = loader.loadClass("ByteBufferInput");
+            MethodHandle slice = here
+                .findStatic(ClassFileBenchmark.class, "slice",
+                            MethodType.methodType(ByteBuffer.class,
+                                                  byte[].class, int.class));
+            openPool = MethodHandles
+                .filterArguments(find(inputType
+                    .getDeclaredConstructor(ByteBuffer.class)), 0,
+                                 MethodHandles.insertArguments(slice, 1, 8));
+        } catch (ClassNotFoundException ex) {
+            openPool = streamPool;
+        }
+        createProfiles = find(analysisType
+            .getDeclaredMethod("createProfiles", Collection.class,
+                               Collection.class));
+        getRuntimeClassReferences = find(analysisType
+            .getDeclaredMethod("getRuntimeClassReferences",
+                               Collection.class));
+
+        /* Gather the corpus, keeping only the classes that can be
+         * analysed, and their analyses. */
+        List<byte[]> content = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Object> ids = new ArrayList<>();
+        List<Object> anals = new ArrayList<>();
+        int rejected = 0;
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        for (Path file : corpusFiles(jrt.getPath("/modules"))) {
+            byte[] bytes = Files.readAllBytes(file);
+            if ("annotated".equals(corpus)
+                && !new String(bytes, StandardCharsets.ISO_8859_1)
+                    .contains("Annotations"))
+                continue;
+            String name = file.subpath(2, file.getNameCount()).toString();
+            name = name.substring(0, name.length() - 6);
+            Object clid = classIdForName.invoke(name);
+            Object anal = newAnalysis.invoke();
+            try {
+                load.invoke(anal, clid, bytes);
+            } catch (IOException | RuntimeException ex) {
+                rejected++;
+                continue;
+            }
+            content.add(bytes);
+            names.add(name);
+            ids.add(clid);
+            anals.add(anal);
+        }
+        if (content.isEmpty())
+            throw new IllegalStateException("no classes in " + modules);
+        System.err.printf("%nCorpus: %d classes (%d rejected)%n",
+                          content.size(), rejected);
+        classes = content.toArray(new byte[0][]);
+        this.names = names.toArray(new String[0]);
+        this.ids = ids.toArray();
+        analyses = anals.toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        loader.close();
+    }
+
+    /**
+     * Get a stream over the content of a class file.
+     *
+     * @param bytes the class file's content
+     *
+     * @param offset the position to start reading at
+     *
+     * @return the stream
+     */
+    private static DataInput stream(byte[] bytes, int offset) {
+        return new DataInputStream(new ByteArrayInputStream(bytes, offset,
+                                                             bytes.length
+                                                                 - offset));
+    }
+
+    /**
+     * Get a buffer over the content of a class file.
+     *
+     * @param bytes the class file's content
+     *
+     * @param offset the position to start reading at
+     *
+     * @return the buffer
+     */
+    private static ByteBuffer slice(byte[] bytes, int offset) {
+        return ByteBuffer.wrap(bytes, offset, bytes.length - offset);
+    }
+
+    private static MethodHandle find(Method method)
+        throws IllegalAccessException {
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    private static MethodHandle find(Constructor<?> ctor)
+        throws IllegalAccessException {
+        ctor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(ctor);
+    }
+
+    private List<Path> corpusFiles(Path root) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        if ("*".equals(modules)) {
+            try (Stream<Path> list = Files.list(root)) {
+                list.sorted().forEach(dirs::add);
+            }
+        } else {
+            for (String module : modules.split("\\+"))
+                dirs.add(root.resolve(module));
+        }
+        List<Path> result = new ArrayList<>();
+        for (Path dir : dirs) {
+            try (Stream<Path> walk = Files.walk(dir)) {
+                result.addAll(walk
+                    .filter(p -> p.toString().endsWith(".class")
+                        && !p.getFileName().toString()
+                            .equals("module-info.class"))
+                    .sorted().collect(Collectors.toList()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read the constant pool of a class.
+     */
+    @Benchmark
+    public Object readConstantPool(Cursor cursor) throws Throwable {
+        /* The input skips the magic number and version. */
+        return readPool
+            .invoke(newPoolBuilder.invoke(),
+                    openPool.invoke(classes[cursor.next(classes.length)]));
+    }
+
+    /**
+     * Parse a whole class.
+     */
+    @Benchmark
+    public Object load(Cursor cursor) throws Throwable {
+        int index = cursor.next(classes.length);
+        Object anal = newAnalysis.invoke();
+        load.invoke(anal, ids[index], classes[index]);
+        return anal;
+    }
+
+    /**
+     * Generate the public and package-private profiles of a parsed
+     * class.
+     */
+    @Benchmark
+    public void createProfiles(Cursor cursor, Blackhole bh)
+        throws Throwable {
+        List<String> pub = new ArrayList<>();
+        List<String> pkg = new ArrayList<>();
+        createProfiles.invoke(analyses[cursor.next(analyses.length)], pub,
+                              pkg);
+        bh.consume(pub);
+        bh.consume(pkg);
+    }
+
+    /**
+     * Extract the classes that a parsed class refers to at run time.
+     */
+    @Benchmark
+    public Object getRuntimeClassReferences(Cursor cursor)
+        throws Throwable {
+        Collection<Object> refs = new LinkedHashSet<>();
+        getRuntimeClassReferences
+            .invoke(analyses[cursor.next(analyses.length)], refs);
+        return refs;
+    }
+
+    /**
+     * Parse a class name. Each pass through the corpus prefixes the
+     * names with a different package, so that no name is repeated, and
+     * parsing is measured rather than a lookup of an earlier result.
+     */
+    @Benchmark
+    public Object classIdForName(Cursor cursor) throws Throwable {
+        int lap = cursor.lap();
+        return classIdForName
+            .invoke("lap" + lap + '/' + names[cursor.next(names.length)]);
+    }
+}
@@ -27,6 +27,9 @@ SORT ?= sort
 GREP ?= grep
 TOUCH ?= touch
 PRINTF ?= printf
+SED ?= sed
+DATE ?= date
+CKSUM ?= cksum
 FIND ?= find
 CMP ?= cmp -s
 CD ?= cd
@@ -53,6 +56,114 @@ IDLJ ?= idlj
 JAVAC_JAVA ?= $(JAVA) -client
 NATIVE2ASCII ?= $(JARDEPS_LIB)/native2ascii.sh "$(JAVA)" "$(JARDEPS_CLASSPATH)"
 
+## Set this to a non-empty value to compile trees in a resident JVM,
+## which is started on demand, and exits after being idle for
+## $(JARDEPS_DAEMON_IDLE) seconds, or never if 0.  The client that passes each
+## request to it is run with $(JARDEPS_CLIENT_JAVAFLAGS).  The daemon
+## compiles up to $(JARDEPS_DAEMON_THREADS) trees at once (by default,
+## one per processor), and further requests wait.
+JARDEPS_DAEMON ?=
+JARDEPS_DAEMON_IDLE ?= 300
+JARDEPS_DAEMON_THREADS ?=
+JARDEPS_DAEMON_SOCKET ?= $(JARDEPS_TMPDIR)/compiler.sock
+JARDEPS_CLIENT_JAVAFLAGS ?= -Xshare:auto -XX:TieredStopAtLevel=1
+
+## Set this to a non-empty value to compile trees in a single JVM.
+## Before anything else is built, each tree is prepared as soon as the
+## trees it depends on are up to date, and those needing compilation
+## are compiled $(JARDEPS_BATCH_THREADS) at a time (or one per
+## processor if empty).  All trees are brought up to date, not only
+## those needed by the goals.  Of the trees ready to compile, those on
+## the longest chain of expected compilation times are started first,
+## using the statistics recorded with $(JARDEPS_STATS), if any.
+JARDEPS_BATCH ?=
+JARDEPS_BATCH_THREADS ?=
+
+## 'make ninja' writes this file, from which Ninja can bring the jars
+## up to date instead.  Its steps are written from the commands of the
+## rules here, except that a tree is compiled by running Make on it.
+## Steps run in parallel as Ninja allows.
+JARDEPS_NINJA ?= build.ninja
+
+## Set this to a directory to cache analyses of generated classes
+## there, keyed by the classes' content, so that unchanged classes are
+## not analysed again when a tree is recompiled, e.g.
+## $(JARDEPS_TMPDIR)/analysis-cache.  The cache is trimmed to
+## $(JARDEPS_ANALYSIS_CACHE_SIZE) megabytes.
+JARDEPS_ANALYSIS_CACHE ?=
+JARDEPS_ANALYSIS_CACHE_SIZE ?= 64
+
+## Set this to a non-empty value to generate the profiles and other
+## by-products of compilation in bounded memory, for trees with many
+## classes.  Classes are analysed a few at a time rather than all
+## being held, and profile lines are sorted in runs written beside the
+## profiles.  The used-package list is then sorted too.
+JARDEPS_STREAMING ?=
+
+## Set to a directory to keep the outputs of tree compilations there,
+## keyed by a digest of the tree's sources, its dependencies'
+## profiles, its flags, its class and processor paths, and the API
+## sensitivity (which decides the by-products kept), so that a tree
+## is restored rather than recompiled when those match an earlier
+## compilation, e.g., after switching branches.  The cache is trimmed
+## to $(JARDEPS_BUILD_CACHE_SIZE) megabytes, and may be shared by
+## several builds.  JNI headers are not cached.
+JARDEPS_BUILD_CACHE ?=
+JARDEPS_BUILD_CACHE_SIZE ?= 1024
+
+## Dependents of a tree or jar are recompiled when its API changes in
+## any way ('any'), or only when the change could break them
+## ('breaking'), i.e., when something is removed or altered, or an
+## abstract method is added, or only when such a change affects a
+## class or member that they use ('used').
+JARDEPS_API_SENSITIVITY ?= any
+
+## Set to non-empty to recompile only the sources of a tree affected
+## by changes to its own sources, rather than the whole tree.  Any
+## other cause of recompilation still recompiles the whole tree, as
+## does a change to an annotation type, or a result whose classes
+## disagree with those recorded.
+JARDEPS_INCREMENTAL ?=
+
+## Set to non-empty to recompile a tree because of its sources only
+## when their content has changed, not merely their modification
+## times, e.g., after a checkout or reformatting that leaves them the
+## same.  The compiler records a digest of each file it uses, and the
+## touched files are compared with them before anything is built.
+JARDEPS_DIGESTS ?=
+
+## All entries of generated jars are given this local date and time,
+## so that the same content always yields the same jar.
+JARDEPS_JAR_DATE ?= 1980-01-01T00:00:02
+
+## Set to non-empty to update jars by copying unmodified entries from
+## their previous versions, rather than reading every file again.
+JARDEPS_INCREMENTAL_JARS ?=
+
+## Set to non-empty to record the sources, inputs and classes of each
+## compilation with the store-*.sh scripts, rather than by the
+## compiler itself.
+JARDEPS_LIST_SCRIPTS ?=
+
+## Set to non-empty to record the time spent in each phase of each
+## tree's compilation, and counts of what it processed, in
+## $(JARDEPS_TMPDIR)/tree-*.stats.  'make show-compile-stats' adds them
+## up across all trees.  The 'total' phase spans each compilation, and
+## the other phases fall within it without overlapping each other.
+JARDEPS_STATS ?=
+
+## Set to non-empty to append trace events to
+## $(JARDEPS_TMPDIR)/trace.events as each compilation, merge, language,
+## jar and API-comparison step starts and ends.  'make build-trace'
+## combines them into $(JARDEPS_TMPDIR)/trace.json for chrome://tracing
+## or Perfetto.  Remove the events file to start a new trace.
+JARDEPS_TRACE ?=
+
+## This command prints the current time in microseconds since the
+## epoch, for trace events.  The default needs GNU date; elsewhere,
+## try: python3 -c 'import time; print(time.time_ns() // 1000)'
+JARDEPS_TRACE_CLOCK ?= $(DATE) +%s%6N
+
 ## These commands are only used to extract a root-class list from the
 ## Eclipse .classpath file, which is not a mature feature.  cut is
 ## currently only used to compute the names of source files in a tree,
@@ -88,6 +199,100 @@ safegrep=$(JARDEPS_LIB)/foldrc.sh 1 0 -- $(GREP)
 ## copies the source to the destination.  Otherwise, it does nothing.
 cmpcp=$(JARDEPS_LIB)/cmpcp.sh '$(CMP)' '$(CP)' '$(ECHO)' '$(TOUCH)'
 
+## This command takes a message, a new structured profile, the last
+## structured profile, and a stamp file.  It copies the new profile
+## over the last, and touches the stamp if the change could break
+## dependents.
+apicmp=$(JAVA) -cp "$(JARDEPS_CLASSPATH)" ApiComparator
+
+## This command takes a message, a tree's usage file, the last
+## structured profiles it was checked against, a stamp file, and the
+## current structured profiles of the trees and jars it depends on.
+## It touches the stamp if a breaking change affects the tree's usage.
+usecheck=$(JAVA) -cp "$(JARDEPS_CLASSPATH)" UsageChecker
+
+## This command assembles a jar from a manifest and lists of files,
+## and also merges the jar's profiles from those of its trees.
+jarwriter=$(JAVA) -cp "$(JARDEPS_CLASSPATH)" JarWriter
+
+## This command appends a trace event for the current target, given
+## its phase (B to begin, E to end), the step's name, and the tree or
+## jar ('tree NAME' or 'jar NAME') to show it under.  Each tree or jar
+## is shown as a process, and each of its targets as a thread, so that
+## steps running concurrently do not overlap.
+jardeps_trace_events=$(JARDEPS_TMPDIR)/trace.events
+jardeps_trace=$(if $(JARDEPS_TRACE),$(call jardeps_trace_event,$1,$2,$3))
+jardeps_trace_event=pid=$$($(PRINTF) '%s' '$3' | $(CKSUM) | $(CUT) -d' ' -f1) ; \
+  tid=$$($(PRINTF) '%s' '$@' | $(CKSUM) | $(CUT) -d' ' -f1) ; \
+  $(PRINTF) '%s\n' \
+  '{"name":"process_name","ph":"M","pid":'"$$pid"',"args":{"name":"$(call jardeps_json,$3)"}},' \
+  '{"name":"thread_name","ph":"M","pid":'"$$pid"',"tid":'"$$tid"',"args":{"name":"$(call jardeps_json,$@)"}},' \
+  '{"name":"$(call jardeps_json,$2)","cat":"jardeps","ph":"$1","ts":'"$$($(JARDEPS_TRACE_CLOCK))"',"pid":'"$$pid"',"tid":'"$$tid"',"args":{"make":'"$$PPID"'}},' \
+  >> '$(jardeps_trace_events)'
+
+## This escapes text for inclusion in a JSON string.
+jardeps_json=$(subst ",\",$(subst \,\\,$1))
+
+## These commands try to restore the outputs of compiling tree $1 from
+## the build cache, succeeding if they are restored, and store them
+## after compilation.  They do nothing if there is no cache.  The
+## compiler commits changed by-products itself, so that is done here
+## when it is not run.
+jardeps_cache_restore=$(if $(JARDEPS_BUILD_CACHE),{ $(call jardeps_cache_cmd,restore,$1) && $(call jardeps_commit,$1) ; } ||)
+jardeps_commit=$(cmpcp) '[JARDEPS] $1: Package provision changed' \
+    '$(JARDEPS_TMPDIR)/tree-$1.provided-tmp' '$(JARDEPS_TMPDIR)/tree-$1.provided' && \
+  $(cmpcp) '[JARDEPS] $1: Package use changed' \
+    '$(JARDEPS_TMPDIR)/tree-$1.externals-tmp' '$(JARDEPS_TMPDIR)/tree-$1.externals' && \
+  $(cmpcp) '[JARDEPS] $1: API changed' \
+    '$(JARDEPS_TMPDIR)/tree-$1.api-tmp' '$(JARDEPS_TMPDIR)/tree-$1.api' && \
+  $(cmpcp) '[JARDEPS] $1: PPI changed' \
+    '$(JARDEPS_TMPDIR)/tree-$1.ppi-tmp' '$(JARDEPS_TMPDIR)/tree-$1.ppi'
+jardeps_cache_store=$(if $(JARDEPS_BUILD_CACHE),$(call jardeps_cache_cmd,store,$1))
+jardeps_cache_cmd=$(JAVA) -cp "$(JARDEPS_CLASSPATH)" BuildCache $1 \
+  "$(JARDEPS_BUILD_CACHE)" "$(JARDEPS_BUILD_CACHE_SIZE)" \
+  "$(JARDEPS_TMPDIR)/tree-$2.cache-key" \
+  -s '$(APPLIED_JAVACFLAGS_$2)' -s '$(roots_$2)' -s '$(JAVAC_JAVA)' \
+  -s '$(JARDEPS_API_SENSITIVITY)' \
+  -d "$(JARDEPS_SRCDIR)/$2" -d "$(JARDEPS_TMPDIR)/idl/$2" \
+  $(deps_$2:%=-f "$(JARDEPS_TMPDIR)/tree-%.api-tmp") \
+  $(ppdeps_$2:%=-f "$(JARDEPS_TMPDIR)/tree-%.ppi-tmp") \
+  $(jdeps_$2:%=-f "$(JARDEPS_TMPDIR)/jar-%.api-tmp") \
+  $(jppdeps_$2:%=-f "$(JARDEPS_TMPDIR)/jar-%.ppi-tmp") \
+  $(foreach p,$(filter-out $(JARDEPS_CLASSDIR)/% $(JARDEPS_OUTDIR)/%,$(APPLIED_CLASSPATH_$2)),-p "$p") \
+  $(foreach p,$(APPLIED_PROCPATH_$2),-p "$p") \
+  -- \
+  -list "$(JARDEPS_CLASSDIR)/$2" "$(JARDEPS_TMPDIR)/tree-$2.list" \
+  -tree "$(JARDEPS_TMPDIR)/apt/$2" \
+  -tree "$(JARDEPS_TMPDIR)/aptbin/$2" \
+  $(foreach f,api-tmp ppi-tmp api-struct-tmp usage provided-tmp \
+    externals-tmp apt-manifest mk list,-file "$(JARDEPS_TMPDIR)/tree-$2.$f") \
+  -file "$(JARDEPS_TMPDIR)/inputs-$2.mk" \
+  -file "$(JARDEPS_TMPDIR)/tree-$2.d" \
+  -file "$(JARDEPS_TMPDIR)/tree-$2.digests" \
+  -discard "$(JARDEPS_TMPDIR)/tree-$2.incr" \
+  -discard "$(JARDEPS_TMPDIR)/tree-$2.changed"
+
+## These commands complete the compilation of tree $1 once its
+## classes are in place, storing them in any cache and reporting $2.
+jardeps_tree_complete=$(if $(JARDEPS_BUILD_CACHE),$(call jardeps_cache_store,$1) && )\
+  $(TOUCH) '$(JARDEPS_TMPDIR)/tree-$1.compiled' && \
+  { $(or $(call jardeps_trace,E,Compiling,tree $1),$(TRUE)) ; } && \
+  $(ECHO) '$2' > /dev/stderr
+
+## The suffix of the API stamp that dependents use
+jardeps_api_stamp=$(if $(filter breaking,$(JARDEPS_API_SENSITIVITY)),api-break,api)
+
+## Non-empty if dependents check their usage against API changes
+jardeps_api_used=$(filter used,$(JARDEPS_API_SENSITIVITY))
+
+## Non-empty if structured profiles of trees and jars are needed to
+## classify API changes, i.e., unless any change counts
+jardeps_api_struct=$(filter breaking used,$(JARDEPS_API_SENSITIVITY))
+
+## Non-empty if tree $1 can be compiled incrementally, given the
+## changed prerequisites $2, i.e., only its own sources have changed
+jardeps_incremental=$(if $(JARDEPS_INCREMENTAL),$(if $(filter-out $(JARDEPS_SRCDIR)/$1/%.java $(JARDEPS_TMPDIR)/tree-$1.sources,$2),,yes))
+
 ## This command takes three fixed arguments followed by an optional
 ## list.  It prints each item in the list, using the printf-like
 ## format string given by the second argument.  It also prints the
@@ -276,24 +481,34 @@ $$(merge_$1:%=$$(JARDEPS_MERGEDIR)/$1/%)
 
 ## We must recompile if some trees'/jars' APIs have changed, or if
 ## some trees'/jars' implementations have changed, or if any of our
-## source files have changed, or if the list of root classes has
-## changed.
+## source files have changed (or, when checking digests, their
+## content), or if the list of root classes has changed.
 $$(JARDEPS_TMPDIR)/tree-$1.compiled: \
-$$(sort $$(deps_$1:%=$$(JARDEPS_TMPDIR)/tree-%.api) \
+$$(if $$(jardeps_api_used),$$(JARDEPS_TMPDIR)/tree-$1.api-used) \
+$$(sort $$(if $$(jardeps_api_used),,$$(deps_$1:%=$$(JARDEPS_TMPDIR)/tree-%.$$(jardeps_api_stamp))) \
       $$(ppdeps_$1:%=$$(JARDEPS_TMPDIR)/tree-%.api)) \
 $$(ppdeps_$1:%=$$(JARDEPS_TMPDIR)/tree-%.ppi) \
-$$(sort $$(jdeps_$1:%=$$(JARDEPS_TMPDIR)/jar-%.api) \
+$$(sort $$(if $$(jardeps_api_used),,$$(jdeps_$1:%=$$(JARDEPS_TMPDIR)/jar-%.$$(jardeps_api_stamp))) \
       $$(jppdeps_$1:%=$$(JARDEPS_TMPDIR)/jar-%.api)) \
 $$(jppdeps_$1:%=$$(JARDEPS_TMPDIR)/jar-%.ppi) \
 $$(foreach t,$$(rtdeps_$1),$$(treetargets_$t)) \
 $$(jrtdeps_$1:%=$$(JARDEPS_OUTDIR)/%.jar) \
-$$(srclist-$1:%=$$(JARDEPS_SRCDIR)/$1/%) \
+$$(if $$(JARDEPS_DIGESTS),$$(JARDEPS_TMPDIR)/tree-$1.sources,$$(srclist-$1:%=$$(JARDEPS_SRCDIR)/$1/%)) \
 $$(JARDEPS_TMPDIR)/tree-$1.root-list \
 $$(JARDEPS_TMPDIR)/tree-$1.idl-list \
 $$(JARDEPS_TMPDIR)/tree-$1.classpath \
 $$(JARDEPS_TMPDIR)/tree-$1.procpath \
 $$(JARDEPS_TMPDIR)/tree-$1.flags
 
+## When the APIs of the trees and jars we depend on change, check
+## whether the changes affect anything we used when last compiled.
+$$(JARDEPS_TMPDIR)/tree-$1.api-used: \
+$$(deps_$1:%=$$(JARDEPS_TMPDIR)/tree-%.api) \
+$$(jdeps_$1:%=$$(JARDEPS_TMPDIR)/jar-%.api)
+	@$$(call jardeps_trace,B,Checking upstream API,tree $1)
+	@$$(call jardeps_usecheck_cmd,$1)
+	@$$(call jardeps_trace,E,Checking upstream API,tree $1)
+
 ## Although this target requires no processing of its own, other than
 ## being touched, it makes a convenient target for other targets that
 ## depend on it.
@@ -307,6 +522,7 @@ $$(JARDEPS_TMPDIR)/tree-$1.statics: \
 $$(JARDEPS_TMPDIR)/tree-$1.provided \
 $$(JARDEPS_TMPDIR)/tree-$1.externals \
 $$(JARDEPS_TMPDIR)/tree-$1.api \
+$$(JARDEPS_TMPDIR)/tree-$1.api-break \
 $$(JARDEPS_TMPDIR)/tree-$1.ppi: | $$(JARDEPS_TMPDIR)/tree-$1.compiled
 
 ## Work out which families of properties files are language-dependent.
@@ -330,20 +546,28 @@ $$(docsrc-$1:%=$$(JARDEPS_SRCDIR)/$1/%):
 $$(JARDEPS_CLASSDIR)/$1/%.properties: $$(JARDEPS_SRCDIR)/$1/%.properties
 	@$$(ECHO) '[JARDEPS] $1: $$(DEFAULT_CHARSET) properties $$*' \
 	  > /dev/stderr
-	@$$(MKDIR) "$$(@D)"
-	@$$(TOUCH) '$$(JARDEPS_CLASSDIR)/CACHEDIR.TAG'
-	@$$(NATIVE2ASCII) -encoding "$$(DEFAULT_CHARSET)" "$$<" "$$@-tmp"
-	@$$(MV) "$$@-tmp" "$$@"
+	@$$(call jardeps_static_cmd,$$<,$$@)
 
 ## Unmodified files can be copied straight from the source tree.
 $$(JARDEPS_CLASSDIR)/$1/%: $$(JARDEPS_SRCDIR)/$1/%
 	@$$(ECHO) '[JARDEPS] $1: Copy: $$*' > /dev/stderr
-	@$$(MKDIR) "$$(@D)"
-	@$$(TOUCH) '$$(JARDEPS_CLASSDIR)/CACHEDIR.TAG'
-	@$$(CP) "$$<" "$$@-tmp"
-	@$$(MV) "$$@-tmp" "$$@"
+	@$$(call jardeps_static_cmd,$$<,$$@)
 endef
 
+## Check whether changes to the APIs used by tree $1 could break it.
+jardeps_usecheck_cmd=$(usecheck) '[JARDEPS] $1: Upstream API' \
+  '$(JARDEPS_TMPDIR)/tree-$1.usage' \
+  '$(JARDEPS_TMPDIR)/tree-$1.api-seen' '$(JARDEPS_TMPDIR)/tree-$1.api-used' \
+  $(deps_$1:%='$(JARDEPS_TMPDIR)/tree-%.api-struct-tmp') \
+  $(jdeps_$1:%='$(JARDEPS_TMPDIR)/jar-%.api-struct-tmp')
+
+## Copy the static file $1 to $2, converting properties to US-ASCII.
+jardeps_static_cmd=$(MKDIR) "$(patsubst %/,%,$(dir $2))" && \
+  $(TOUCH) '$(JARDEPS_CLASSDIR)/CACHEDIR.TAG' && \
+  $(if $(filter %.properties,$2),$(NATIVE2ASCII) \
+    -encoding "$(DEFAULT_CHARSET)" "$1" "$2-tmp",$(CP) "$1" "$2-tmp") && \
+  $(MV) "$2-tmp" "$2"
+
 
 define deps4idltree_template
 $$(JARDEPS_TMPDIR)/tree-$1.compiled: \
@@ -401,13 +625,14 @@ $$(JARDEPS_OUTDIR)/$1.jar: \
   $$(JARDEPS_TMPDIR)/jar-$1.tree-list \
   $$(foreach t,$$(trees_$1),$$(JARDEPS_TMPDIR)/tree-$$t.compiled) \
   $$(foreach t,$$(trees_$1),$$(JARDEPS_TMPDIR)/tree-$$t.lang) \
+  $$(foreach t,$$(trees_$1),$$(JARDEPS_TMPDIR)/tree-$$t.lang-files) \
   $$(foreach t,$$(trees_$1),$$(JARDEPS_TMPDIR)/tree-$$t.statics) \
   $$(JARDEPS_TMPDIR)/jar-$1.manifest \
   $$(JARDEPS_TMPDIR)/jar-$1.merged
 
 ## This rule is only needed for the parallel-build hack.
-$$(JARDEPS_TMPDIR)/jar-$1.api $$(JARDEPS_TMPDIR)/jar-$1.ppi: | \
-  $$(JARDEPS_OUTDIR)/$1.jar
+$$(JARDEPS_TMPDIR)/jar-$1.api $$(JARDEPS_TMPDIR)/jar-$1.ppi \
+$$(JARDEPS_TMPDIR)/jar-$1.api-break: | $$(JARDEPS_OUTDIR)/$1.jar
 
 ## Our imports change if the trees' explicit imports, provided
 ## packages or external references change.
@@ -458,6 +683,57 @@ $(foreach jar,$(inferred_jars),$(eval $(call defs4jar_template,$(jar))))
 -include $(call JARDEPS_ABSPATH,$(trees:%=$(JARDEPS_TMPDIR)/tree-%.docsrc.mk))
 -include $(call JARDEPS_ABSPATH,$(inferred_jars:%=$(JARDEPS_TMPDIR)/jar-%.manifest.mk))
 
+## When checking digests, the trees whose sources have been touched
+## are checked while remaking this makefile, so Make sees any source
+## stamps that were touched once it restarts.  A tree's source stamp
+## is touched only if the content of its sources has changed since
+## they were recorded.  Make run by a Ninja step instead checks only
+## the tree it is compiling, when its source stamp is older than its
+## sources.
+ifneq ($(JARDEPS_DIGESTS),)
+ifeq ($(jardeps_ninja_step),)
+-include $(call JARDEPS_ABSPATH,$(JARDEPS_TMPDIR)/digests.mk)
+else
+define jardeps_step_digests
+$$(JARDEPS_TMPDIR)/tree-$1.sources: $$(srclist-$1:%=$$(JARDEPS_SRCDIR)/$1/%)
+	@$$(MKDIR) '$$(@D)'
+	@$$(call jardeps_digest_check,$1)
+endef
+$(foreach t,$(trees),$(eval $(call jardeps_step_digests,$t)))
+endif
+endif
+
+$(call JARDEPS_ABSPATH,$(JARDEPS_TMPDIR)/digests.mk): \
+  $(foreach t,$(trees),$(srclist-$t:%=$(JARDEPS_SRCDIR)/$t/%))
+	@$(MKDIR) '$(JARDEPS_TMPDIR)'
+	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
+	@$(call jardeps_digest_check,$(foreach t,$(trees),$(if $(filter $(JARDEPS_SRCDIR)/$t/%,$?),$t)))
+	@$(PRINTF) '## Sources were last checked against their digests.\n' > '$@'
+
+## Check the digests of trees $1, touching all their source stamps if
+## the check cannot be made.
+jardeps_digest_check=$(if $(strip $1),$(JAVA) -cp "$(JARDEPS_CLASSPATH)" \
+  SourceDigests $(foreach t,$1,'$t' '$(JARDEPS_TMPDIR)/tree-$t.digests' \
+    '$(JARDEPS_TMPDIR)/tree-$t.sources') || \
+  $(TOUCH) $(foreach t,$1,'$(JARDEPS_TMPDIR)/tree-$t.sources'),$(TRUE))
+
+## A tree's source stamp is created if missing, so that the tree is
+## compiled and its digests recorded.
+$(JARDEPS_TMPDIR)/tree-%.sources:
+	@$(MKDIR) '$(@D)'
+	@$(TOUCH) '$@'
+
+## When compiling in batches, the batches are run while remaking this
+## makefile, so Make sees the compiled trees afresh once it restarts.
+## Preparing a batch, dry runs, restarts and goals that build nothing
+## don't do this.
+jardeps_batch_goals=$(filter-out clean% tidy% blank show-% summary \
+  %summary-% stop-compiler-daemon build-trace ninja,$(or $(MAKECMDGOALS),all))
+jardeps_batching=$(if $(JARDEPS_BATCH),$(if $(JARDEPS_BATCH_SPOOL)$(MAKE_RESTARTS)$(findstring n,$(filter-out --%,$(firstword -$(MAKEFLAGS)))),,$(jardeps_batch_goals)))
+ifneq ($(jardeps_batching),)
+include $(call JARDEPS_ABSPATH,$(JARDEPS_TMPDIR)/batch.mk)
+endif
+
 $(foreach tree,$(trees),$(eval $(call defs4tree_template,$(tree))))
 
 
@@ -474,6 +750,7 @@ $(trees:%=$(JARDEPS_TMPDIR)/tree-%.root-list) \
 $(trees:%=$(JARDEPS_TMPDIR)/tree-%.idl-list) \
 $(trees:%=$(JARDEPS_TMPDIR)/tree-%.static-list) \
 $(trees:%=$(JARDEPS_TMPDIR)/tree-%.dlps-list) \
+$(trees:%=$(JARDEPS_TMPDIR)/tree-%.lang-files) \
 $(trees:%=$(JARDEPS_TMPDIR)/tree-%.merge-list) \
 $(trees:%=$(JARDEPS_TMPDIR)/tree-%.imports) \
 $(trees:%=$(JARDEPS_TMPDIR)/tree-%.exports) \
@@ -492,26 +769,48 @@ $(JARDEPS_TMPDIR)/idl.map
 
 
 $(JARDEPS_TMPDIR)/jar-%.api: $(JARDEPS_OUTDIR)/%.jar
-	@$(cmpcp) '[JARDEPS] $*.jar: API changed' \
-	  '$(JARDEPS_TMPDIR)/jar-$*.api-tmp' \
-	  '$(JARDEPS_TMPDIR)/jar-$*.api'
+	@$(call jardeps_jar_profile_cmd,$*,api,API)
 
 $(JARDEPS_TMPDIR)/jar-%.ppi: $(JARDEPS_OUTDIR)/%.jar
-	@$(cmpcp) '[JARDEPS] $*.jar: PPI changed' \
-	  '$(JARDEPS_TMPDIR)/jar-$*.ppi-tmp' \
-	  '$(JARDEPS_TMPDIR)/jar-$*.ppi'
+	@$(call jardeps_jar_profile_cmd,$*,ppi,PPI)
 
+## Replace the profile jar-$1.$2 of jar $1, naming it $3, if it has
+## changed.
+jardeps_jar_profile_cmd=$(cmpcp) '[JARDEPS] $1.jar: $3 changed' \
+  '$(JARDEPS_TMPDIR)/jar-$1.$2-tmp' '$(JARDEPS_TMPDIR)/jar-$1.$2'
+
+$(JARDEPS_TMPDIR)/jar-%.api-break: $(JARDEPS_OUTDIR)/%.jar
+	@$(call jardeps_trace,B,Comparing API,jar $*)
+	@$(call jardeps_api_compare,$(JARDEPS_TMPDIR)/jar-$*,$*.jar)
+	@$(call jardeps_trace,E,Comparing API,jar $*)
+
+## Compare the structured profile $1.api-struct-tmp of tree or jar $2
+## with the last, touching the stamp $1.api-break if the change could
+## break dependents.
+jardeps_api_compare=$(TEST) -f '$1.api-break' && \
+  $(CMP) '$1.api-struct-tmp' '$1.api-struct' || \
+  $(apicmp) '[JARDEPS] $2: API' '$1.api-struct-tmp' '$1.api-struct' \
+    '$1.api-break'
+
+## The compiler replaces these by-products itself only when their
+## content changes, and lists those it replaced in tree-%.changed, so
+## they need only be copied here if missing.
 $(JARDEPS_TMPDIR)/tree-%.externals: $(JARDEPS_TMPDIR)/tree-%.compiled
-	@$(cmpcp) '[JARDEPS] $*: Package use changed' '$@-tmp' '$@'
+	@$(if $(wildcard $@),,$(cmpcp) '[JARDEPS] $*: Package use changed' '$@-tmp' '$@')
 
 $(JARDEPS_TMPDIR)/tree-%.provided: $(JARDEPS_TMPDIR)/tree-%.compiled
-	@$(cmpcp) '[JARDEPS] $*: Package provision changed' '$@-tmp' '$@'
+	@$(if $(wildcard $@),,$(cmpcp) '[JARDEPS] $*: Package provision changed' '$@-tmp' '$@')
 
 $(JARDEPS_TMPDIR)/tree-%.api: $(JARDEPS_TMPDIR)/tree-%.compiled
-	@$(cmpcp) '[JARDEPS] $*: API changed' '$@-tmp' '$@'
+	@$(if $(wildcard $@),,$(cmpcp) '[JARDEPS] $*: API changed' '$@-tmp' '$@')
 
 $(JARDEPS_TMPDIR)/tree-%.ppi: $(JARDEPS_TMPDIR)/tree-%.compiled
-	@$(cmpcp) '[JARDEPS] $*: PPI changed' '$@-tmp' '$@'
+	@$(if $(wildcard $@),,$(cmpcp) '[JARDEPS] $*: PPI changed' '$@-tmp' '$@')
+
+$(JARDEPS_TMPDIR)/tree-%.api-break: $(JARDEPS_TMPDIR)/tree-%.compiled
+	@$(call jardeps_trace,B,Comparing API,tree $*)
+	@$(call jardeps_api_compare,$(JARDEPS_TMPDIR)/tree-$*,$*)
+	@$(call jardeps_trace,E,Comparing API,tree $*)
 
 
 $(foreach tree,$(trees),$(eval $(call deps4tree_template,$(tree))))
@@ -533,8 +832,11 @@ $(eval $(call defs4tree4jar_template,$J,$T))))
 .IDLE: $(trees:%=$(JARDEPS_TMPDIR)/tree-%.externals)
 .IDLE: $(trees:%=$(JARDEPS_TMPDIR)/tree-%.api)
 .IDLE: $(trees:%=$(JARDEPS_TMPDIR)/tree-%.ppi)
+.IDLE: $(trees:%=$(JARDEPS_TMPDIR)/tree-%.api-break)
+.IDLE: $(trees:%=$(JARDEPS_TMPDIR)/tree-%.api-used)
 .IDLE: $(inferred_jars:%=$(JARDEPS_TMPDIR)/jar-%.api)
 .IDLE: $(inferred_jars:%=$(JARDEPS_TMPDIR)/jar-%.ppi)
+.IDLE: $(inferred_jars:%=$(JARDEPS_TMPDIR)/jar-%.api-break)
 
 
 
@@ -606,33 +908,41 @@ summary:: topsummary $(inferred_jars:%=jarsummary-%)
 ## merged into one zip.
 $(JARDEPS_TMPDIR)/tree-%.docsrc-list:
 	@$(ECHO) '[JARDEPS] $*: Listing documentation sources' > /dev/stderr
-	@$(MKDIR) '$(@D)'
-	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
-	@$(if $(wildcard $(JARDEPS_SRCDIR)/$*),$(FIND) '$(JARDEPS_SRCDIR)/$*' \
-	  \( \( -type d -not -path '$(JARDEPS_SRCDIR)/$*' \) \
-	     -o -name '*.java' -o -path '*/doc-files/*' \) \
-	  -printf 'docsrc-$* += %P\n' \
-	  > '$(JARDEPS_TMPDIR)/tree-$*.docsrc.mk-tmp', \
-	  $(TOUCH) '$(JARDEPS_TMPDIR)/tree-$*.docsrc.mk-tmp')
-	@$(MV) '$(JARDEPS_TMPDIR)/tree-$*.docsrc.mk-tmp' \
-	  '$(JARDEPS_TMPDIR)/tree-$*.docsrc.mk'
-	@$(if $(wildcard $(JARDEPS_SRCDIR)/$*),$(FIND) '$(JARDEPS_SRCDIR)/$*' \
-	  -type f \( -name '*.java' -o -path '*/doc-files/*' \) \
-	  -printf '%P\n' > '$@-tmp',$(TOUCH) '$@-tmp')
-	@$(MV) '$@-tmp' '$@'
+	@$(call jardeps_docsrc_cmd,$*,$@)
+
+## List the documentation sources of tree $1 in $2.
+jardeps_docsrc_cmd=$(MKDIR) '$(patsubst %/,%,$(dir $2))' && \
+  $(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG' && \
+  $(if $(wildcard $(JARDEPS_SRCDIR)/$1),$(FIND) '$(JARDEPS_SRCDIR)/$1' \
+  \( \( -type d -not -path '$(JARDEPS_SRCDIR)/$1' \) \
+     -o -name '*.java' -o -path '*/doc-files/*' \) \
+  -printf 'docsrc-$1 += %P\n' \
+  > '$(JARDEPS_TMPDIR)/tree-$1.docsrc.mk-tmp', \
+  $(TOUCH) '$(JARDEPS_TMPDIR)/tree-$1.docsrc.mk-tmp') && \
+  $(MV) '$(JARDEPS_TMPDIR)/tree-$1.docsrc.mk-tmp' \
+    '$(JARDEPS_TMPDIR)/tree-$1.docsrc.mk' && \
+  $(if $(wildcard $(JARDEPS_SRCDIR)/$1),$(FIND) '$(JARDEPS_SRCDIR)/$1' \
+    -type f \( -name '*.java' -o -path '*/doc-files/*' \) \
+    -printf '%P\n' > '$2-tmp',$(TOUCH) '$2-tmp') && \
+  $(MV) '$2-tmp' '$2'
 
 ## A jar's source zip is built by combining the generated file lists
 ## for each component tree, and passing them to jar.
 $(JARDEPS_OUTDIR)/%-src.zip:
 	@$(ECHO) '[JARDEPS] $*.jar: Creating source documentation' > /dev/stderr
-	@$(MKDIR) '$(@D)'
-	@$(TOUCH) '$(JARDEPS_OUTDIR)/CACHEDIR.TAG'
-	@$(RM) '$@-tmp'
-	@$(JAR) cf '$@-tmp' \
-	  $(foreach t, $(trees_$*), $(foreach f, $(shell $(CAT) '$(JARDEPS_TMPDIR)/tree-$t.docsrc-list'), -C '$(JARDEPS_SRCDIR)/$t' '$f'))
-	@$(MV) '$@-tmp' '$@'
+	@$(call jardeps_src_zip_cmd,$*,$@)
 	@$(BLANK)
 
+## Zip the documentation sources of jar $1 as $2, reading their lists
+## as the command runs.
+jardeps_src_zip_cmd=$(MKDIR) '$(patsubst %/,%,$(dir $2))' && \
+  $(TOUCH) '$(JARDEPS_OUTDIR)/CACHEDIR.TAG' && \
+  $(RM) '$2-tmp' && set -- && \
+  $(foreach t,$(trees_$1),while IFS= read -r f ; do \
+    set -- "$$@" -C '$(JARDEPS_SRCDIR)/$t' "$$f" ; \
+  done < '$(JARDEPS_TMPDIR)/tree-$t.docsrc-list' && ) \
+  $(JAR) cf '$2-tmp' "$$@" && $(MV) '$2-tmp' '$2'
+
 clean:: $(inferred_jars:%=clean-jar-%)
 	@$(ECHO) '[JARDEPS] Removing intermediate Java files' > /dev/stderr
 	@$(RMTREE) $(JARDEPS_TMPDIR)
@@ -647,33 +957,51 @@ blank:: clean
 
 $(JARDEPS_OUTDIR)/%.jar:
 	@$(ECHO) '[JARDEPS] $*.jar: Creating from $(trees_$*)' > /dev/stderr
-	@$(MKDIR) "$(@D)"
-	@$(TOUCH) '$(JARDEPS_OUTDIR)/CACHEDIR.TAG'
-	@$(CAT) /dev/null $(foreach t,$(trees_$*),$(JARDEPS_TMPDIR)/tree-$t.api-tmp) | $(SORT) > "$(JARDEPS_TMPDIR)/jar-$*.api-tmp"
-	@$(CAT) /dev/null $(foreach t,$(trees_$*),$(JARDEPS_TMPDIR)/tree-$t.ppi-tmp) | $(SORT) > "$(JARDEPS_TMPDIR)/jar-$*.ppi-tmp"
-	@$(JAR) cfm0 "$@-tmp" "$(JARDEPS_TMPDIR)/jar-$*.manifest" \
-	  $(foreach t,$(trees_$*), $(foreach i,$(statics_$t) $(patsubst $(JARDEPS_CLASSDIR)/$t/%,%,$(call dlplist_dst,$t)),-C '$(JARDEPS_CLASSDIR)/$t' '$i')) \
-	  $(foreach f,$(jarmerge_$*),-C '$(JARDEPS_TMPDIR)/merge/$*' '$f') \
-	  $(foreach t,$(trees_$*),$(foreach i,$(shell $(CAT) "$(JARDEPS_TMPDIR)/tree-$t.list"),-C '$(JARDEPS_CLASSDIR)/$t' '$i')) \
-	  $(foreach i,$(shell $(CAT) "$(JARDEPS_TMPDIR)/jar-$*.merge-list"),-C "$(JARDEPS_TMPDIR)/merge/$*" '$i')
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_trace,B,Creating jar,jar $*)
+	@$(call jardeps_jar_cmd,$*,$@)
+	@$(call jardeps_trace,E,Creating jar,jar $*)
+
+## Write jar $1 as $2, merging its profiles from its trees'.
+jardeps_jar_cmd=$(MKDIR) "$(patsubst %/,%,$(dir $2))" && \
+  $(TOUCH) '$(JARDEPS_OUTDIR)/CACHEDIR.TAG' && \
+  $(jarwriter) -m "$(JARDEPS_TMPDIR)/jar-$1.manifest" \
+  -date "$(JARDEPS_JAR_DATE)" \
+  $(if $(JARDEPS_INCREMENTAL_JARS),-previous "$2") \
+  -sorted:$(words $(trees_$1)) "$(JARDEPS_TMPDIR)/jar-$1.api-tmp" \
+    $(foreach t,$(trees_$1),"$(JARDEPS_TMPDIR)/tree-$t.api-tmp") \
+  -sorted:$(words $(trees_$1)) "$(JARDEPS_TMPDIR)/jar-$1.ppi-tmp" \
+    $(foreach t,$(trees_$1),"$(JARDEPS_TMPDIR)/tree-$t.ppi-tmp") \
+  $(if $(jardeps_api_struct),-sorted:$(words $(trees_$1)) \
+    "$(JARDEPS_TMPDIR)/jar-$1.api-struct-tmp" \
+    $(foreach t,$(trees_$1),"$(JARDEPS_TMPDIR)/tree-$t.api-struct-tmp")) \
+  $(foreach t,$(trees_$1),-C "$(JARDEPS_CLASSDIR)/$t" "$(JARDEPS_TMPDIR)/tree-$t.static-list" \
+    -C "$(JARDEPS_CLASSDIR)/$t" "$(JARDEPS_TMPDIR)/tree-$t.lang-files") \
+  -C "$(JARDEPS_TMPDIR)/merge/$1" "$(JARDEPS_TMPDIR)/jar-$1.merge-list" \
+  $(foreach t,$(trees_$1),-C "$(JARDEPS_CLASSDIR)/$t" "$(JARDEPS_TMPDIR)/tree-$t.list") \
+  "$2-tmp" && \
+  $(MV) "$2-tmp" "$2"
 
 $(JARDEPS_TMPDIR)/tree-%.statics:
-	@$(MKDIR) "$(@D)"
-	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
-	@$(TOUCH) "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_stamp_cmd,$@)
+
+## Create or touch the stamp $1.
+jardeps_stamp_cmd=$(MKDIR) "$(patsubst %/,%,$(dir $1))" && \
+  $(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG' && \
+  $(TOUCH) "$1-tmp" && $(MV) "$1-tmp" "$1"
 
 $(JARDEPS_TMPDIR)/tree-%.lang:
 	@$(ECHO) '[JARDEPS] $*: Transfering defaults' > /dev/stderr
-	@$(MKDIR) "$(@D)"
-	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
-	@$(JAVA) -cp $(JARDEPS_CLASSPATH) PropertyDefaulter \
-	  $(foreach pack,$(dlps_$*),"$(pack)" \
-	    $(JARDEPS_CLASSDIR)/$*/$(subst .,/,$(pack))_$(DEFAULT_LANGUAGE).properties \
-	    $(JARDEPS_CLASSDIR)/$*/$(subst .,/,$(pack)).properties)
-	@$(TOUCH) "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_trace,B,Transferring defaults,tree $*)
+	@$(call jardeps_lang_cmd,$*,$@)
+	@$(call jardeps_trace,E,Transferring defaults,tree $*)
+
+## Transfer the default language's properties of tree $1, and touch
+## the stamp $2.
+jardeps_lang_cmd=$(JAVA) -cp $(JARDEPS_CLASSPATH) PropertyDefaulter \
+  $(foreach pack,$(dlps_$1),"$(pack)" \
+    $(JARDEPS_CLASSDIR)/$1/$(subst .,/,$(pack))_$(DEFAULT_LANGUAGE).properties \
+    $(JARDEPS_CLASSDIR)/$1/$(subst .,/,$(pack)).properties) && \
+  $(call jardeps_stamp_cmd,$2)
 
 jardirs_vsfx=$(if $(version_$1),:$(version_$1))
 
@@ -771,54 +1099,59 @@ $(JARDEPS_TMPDIR)/jar-%.manifest.mk:
 ## processors.
 $(JARDEPS_TMPDIR)/tree-%.full-merge-list:
 	@$(ECHO) '[JARDEPS] $*: Creating merge list' > /dev/stderr
-	@$(MKDIR) "$(JARDEPS_TMPDIR)/aptbin/$*"
-	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
-	@$(report) '' '%s\n' '' $(merge_$*) > '$@-unsorted'
-	@$(FIND) "$(JARDEPS_TMPDIR)/aptbin/$*" -type f -printf '%P\n' \
-	  >> '$@-unsorted'
-	@$(SORTU) < '$@-unsorted' > "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_full_merge_list_cmd,$*,$@)
 
-define tree_merge
-$(ECHO) '  $2'
-$(RM) '$(JARDEPS_CLASSDIR)/$1/$2'
-$(MKDIR) '$(dir $(JARDEPS_CLASSDIR)/$1/$2)'
-$(TOUCH) '$(JARDEPS_CLASSDIR)/$1/$2'
-$(TOUCH) '$(JARDEPS_CLASSDIR)/CACHEDIR.TAG'
--$(CAT) '$(JARDEPS_MERGEDIR)/$1/$2' >> '$(JARDEPS_CLASSDIR)/$1/$2' 2> /dev/null || $(TRUE)
--$(CAT) '$(JARDEPS_TMPDIR)/aptbin/$1/$2' >> '$(JARDEPS_CLASSDIR)/$1/$2' 2> /dev/null || $(TRUE)
-
-endef
+## List in $2 the files to be merged in tree $1.
+jardeps_full_merge_list_cmd=$(MKDIR) "$(JARDEPS_TMPDIR)/aptbin/$1" && \
+  $(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG' && \
+  $(report) '' '%s\n' '' $(merge_$1) > '$2-unsorted' && \
+  $(FIND) "$(JARDEPS_TMPDIR)/aptbin/$1" -type f -printf '%P\n' \
+    >> '$2-unsorted' && \
+  $(SORTU) < '$2-unsorted' > "$2-tmp" && \
+  $(MV) "$2-tmp" "$2"
 
 ## Merge computed files with static files within a single tree.
 $(JARDEPS_TMPDIR)/tree-%.merged:
 	@$(ECHO) '[JARDEPS] $*: Merging' > /dev/stderr
-	@$(foreach item,$(shell $(CAT) "$(JARDEPS_TMPDIR)/tree-$*.full-merge-list"),$(call tree_merge,$*,$(item)))
-	@$(TOUCH) "$@"
+	@$(call jardeps_trace,B,Merging,tree $*)
+	@$(call jardeps_tree_merge_cmd,$*,$@)
+	@$(call jardeps_trace,E,Merging,tree $*)
+
+## Merge the computed and static files of tree $1, and touch the stamp
+## $2.
+jardeps_tree_merge_cmd=$(MKDIR) "$(JARDEPS_CLASSDIR)/$1" && \
+  $(TOUCH) '$(JARDEPS_CLASSDIR)/CACHEDIR.TAG' && \
+  $(JAVA) -cp "$(JARDEPS_CLASSPATH)" FileMerger \
+  "$(JARDEPS_TMPDIR)/tree-$1.full-merge-list" \
+  "$(JARDEPS_CLASSDIR)/$1" \
+  "$(JARDEPS_MERGEDIR)/$1" "$(JARDEPS_TMPDIR)/aptbin/$1" && \
+  $(TOUCH) "$2"
 
 
 ## Get the full list of files to be merged in a jar.
 $(JARDEPS_TMPDIR)/jar-%.merge-list:
 	@$(ECHO) '[JARDEPS] $*.jar: Creating merge list' > /dev/stderr
-	@$(CAT) $(foreach tree,$(trees_$*),"$(JARDEPS_TMPDIR)/tree-$(tree).full-merge-list") | $(SORTU) > "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_jar_merge_list_cmd,$*,$@)
 
-define jar_merge
-$(ECHO) '  $2'
-$(RM) '$(JARDEPS_TMPDIR)/merge/$1/$2'
-$(MKDIR) '$(dir $(JARDEPS_TMPDIR)/merge/$1/$2)'
-$(CAT) > '$(JARDEPS_TMPDIR)/merge/$1/$2' 2> /dev/null \
-   $(foreach t,$(trees_$1),'$(JARDEPS_CLASSDIR)/$t/$2') || $(TRUE)
-
-endef
+## List in $2 the files to be merged in jar $1.
+jardeps_jar_merge_list_cmd=$(CAT) $(foreach tree,$(trees_$1),"$(JARDEPS_TMPDIR)/tree-$(tree).full-merge-list") | $(SORTU) > "$2-tmp" && \
+  $(MV) "$2-tmp" "$2"
 
 ## Merge files from several trees contributing to the same jar.
 $(JARDEPS_TMPDIR)/jar-%.merged:
 	@$(ECHO) '[JARDEPS] $*.jar: Merging' > /dev/stderr
-	@$(MKDIR) "$(JARDEPS_TMPDIR)/merge/$*"
-	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
-	@$(foreach i,$(shell $(CAT) "$(JARDEPS_TMPDIR)/jar-$*.merge-list"),$(call jar_merge,$*,$i))
-	@$(TOUCH) "$@"
+	@$(call jardeps_trace,B,Merging,jar $*)
+	@$(call jardeps_jar_merge_cmd,$*,$@)
+	@$(call jardeps_trace,E,Merging,jar $*)
+
+## Merge the files of the trees of jar $1, and touch the stamp $2.
+jardeps_jar_merge_cmd=$(MKDIR) "$(JARDEPS_TMPDIR)/merge/$1" && \
+  $(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG' && \
+  $(JAVA) -cp "$(JARDEPS_CLASSPATH)" FileMerger \
+  "$(JARDEPS_TMPDIR)/jar-$1.merge-list" \
+  "$(JARDEPS_TMPDIR)/merge/$1" \
+  $(foreach t,$(trees_$1),"$(JARDEPS_CLASSDIR)/$t") && \
+  $(TOUCH) "$2"
 
 
 
@@ -846,6 +1179,241 @@ IDLPFXS=$(sort $(patsubst idlpfx_%,%,$(filter idlpfx_%,$(.VARIABLES))) $(patsubs
 
 IDLPFX_FLAGS=$(foreach p,$(IDLPFXS),$(idlpkg_$p:%=-pkgTranslate $p %) $(idlpfx_$p:%=-pkgPrefix $p %))
 
+## The command to compile a tree, either directly or through the
+## resident compiler, and the commands to complete it.  While
+## preparing a batch, the arguments are instead written to
+## $(JARDEPS_BATCH_SPOOL)/TREE.args, one per line, and so are those of
+## a command to complete the tree, to TREE.complete.  A tree restored
+## from the cache is completed at once.
+ifneq ($(JARDEPS_BATCH_SPOOL),)
+jardeps_compiler=$(PRINTF) '%s\n'
+jardeps_compiler_dest=> "$(JARDEPS_BATCH_SPOOL)/$*.args"
+jardeps_compiled=if $(TEST) -f "$(JARDEPS_BATCH_SPOOL)/$*.args" ; then \
+  $(PRINTF) '%s\n' '$(SHELL)' -c \
+  '$(subst ','\'',$(call jardeps_tree_complete,$*,[JARDEPS] $*: Compilation complete))' \
+  > "$(JARDEPS_BATCH_SPOOL)/$*.complete" ; \
+  else $(call jardeps_tree_complete,$*,  Compilation complete) && \
+  $(BLANK) ; fi
+else
+jardeps_compiled=$(call jardeps_tree_complete,$*,  Compilation complete) && \
+  $(BLANK)
+ifeq ($(JARDEPS_DAEMON),)
+jardeps_compiler=$(JAVAC_JAVA) $(JAVAC_JAVAFLAGS) \
+  -cp "$(JARDEPS_CLASSPATH)" JardepsCompiler
+else
+jardeps_compiler=$(JAVA) $(JARDEPS_CLIENT_JAVAFLAGS) \
+  -cp "$(JARDEPS_CLASSPATH)" CompilerClient \
+  -socket "$(JARDEPS_DAEMON_SOCKET)" -idle "$(JARDEPS_DAEMON_IDLE)" \
+  $(if $(JARDEPS_DAEMON_THREADS),-threads "$(JARDEPS_DAEMON_THREADS)") \
+  $(JAVAC_JAVA) $(JAVAC_JAVAFLAGS) -cp "$(JARDEPS_CLASSPATH)" --
+endif
+endif
+
+## Make any resident compiler exit now.
+.PHONY: stop-compiler-daemon
+stop-compiler-daemon::
+	@$(JAVA) $(JARDEPS_CLIENT_JAVAFLAGS) \
+	  -cp "$(JARDEPS_CLASSPATH)" CompilerClient \
+	  -socket "$(JARDEPS_DAEMON_SOCKET)" -stop
+
+## Compile trees in one JVM.  The graph lists each tree, its
+## statistics and the trees it depends on.  Once those are complete,
+## the JVM runs a nested Make to prepare the tree along with any
+## others that have become ready, which writes its compiler arguments
+## to the spool instead, and the command to complete it.  The JVM
+## compiles the spooled trees as threads become free, and completes
+## each that succeeds, so that its dependents are prepared while
+## others are still compiling.  Dependents of a tree whose API did not
+## change are then found up to date.  Anything else that failed is
+## left for the restarted Make to report.  The nested Make runs one job
+## at a time, as it cannot share the job slots through the JVM.  Any
+## source digests are checked first.
+jardeps_batch_spool=$(JARDEPS_TMPDIR)/batch
+jardeps_batch_graph=$(JARDEPS_TMPDIR)/batch.graph
+jardeps_batch_upstream=$(sort $(deps_$1) $(ppdeps_$1) $(rtdeps_$1) \
+  $(foreach j,$(jdeps_$1) $(jppdeps_$1) $(jrtdeps_$1),$(trees_$j)))
+
+.PHONY: jardeps-batch-round
+$(call JARDEPS_ABSPATH,$(JARDEPS_TMPDIR)/batch.mk): jardeps-batch-round \
+  $(if $(JARDEPS_DIGESTS),$(call JARDEPS_ABSPATH,$(JARDEPS_TMPDIR)/digests.mk))
+	@$(MKDIR) '$(JARDEPS_TMPDIR)'
+	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
+	@$(PRINTF) '%s\n' $(foreach t,$(trees),'$t $(JARDEPS_TMPDIR)/tree-$t.stats $(call jardeps_batch_upstream,$t)') > '$(jardeps_batch_graph)'
+	@$(RMTREE) '$(jardeps_batch_spool)'
+	@$(MKDIR) '$(jardeps_batch_spool)'
+	@$(or $(call jardeps_trace,B,Compiling batch,batch),$(TRUE)) ; \
+	MAKEFLAGS='$(filter-out -j% --jobserver%,$(MAKEFLAGS))' \
+	$(JAVAC_JAVA) $(JAVAC_JAVAFLAGS) -cp "$(JARDEPS_CLASSPATH)" \
+	  JardepsCompiler -batch$(JARDEPS_BATCH_THREADS:%=:%) \
+	  -graph '$(jardeps_batch_graph)' -spool '$(jardeps_batch_spool)' \
+	  -goal '$(JARDEPS_TMPDIR)/tree-%.compiled' \
+	  $(MAKE) -k -s --no-print-directory \
+	  -f '$(firstword $(MAKEFILE_LIST))' \
+	  JARDEPS_BATCH_SPOOL='$(jardeps_batch_spool)' ; \
+	rc=$$? ; \
+	$(or $(call jardeps_trace,E,Compiling batch,batch),$(TRUE)) ; \
+	$(TEST) $$rc -eq 0
+	@$(RMTREE) '$(jardeps_batch_spool)'
+	@$(PRINTF) '## Trees were last compiled in batches.\n' > '$@'
+
+## Add up the statistics of the last compilation of each tree.
+.PHONY: show-compile-stats
+show-compile-stats::
+	@$(CAT) /dev/null $(wildcard $(JARDEPS_TMPDIR)/tree-*.stats) | \
+	  $(AWK) -F '\t' '\
+	    $$1 == "phase" { wall[$$2] += $$3; cpu[$$2] += $$4 } \
+	    $$1 == "count" && $$2 == "peak-heap" { if ($$3 > peak) peak = $$3; next } \
+	    $$1 == "count" { count[$$2] += $$3 } \
+	    END { \
+	      for (p in wall) \
+	        printf "%16s %12.3fms wall %12.3fms CPU\n", p, wall[p], cpu[p]; \
+	      for (c in count) printf "%16s %12d\n", c, count[c]; \
+	      printf "%16s %12d\n", "peak-heap", peak }'
+
+## Combine the trace events of the build into a file that
+## chrome://tracing or Perfetto can load.
+.PHONY: build-trace
+build-trace::
+	@{ $(PRINTF) '{"traceEvents":[\n' ; \
+	  $(SED) '$$ s/,$$//' '$(jardeps_trace_events)' ; \
+	  $(PRINTF) ']}\n' ; } > '$(JARDEPS_TMPDIR)/trace.json'
+	@$(ECHO) '[JARDEPS] Trace written to $(JARDEPS_TMPDIR)/trace.json' \
+	  > /dev/stderr
+
+## Write a build file for Ninja, with a step for each file that the
+## rules here build, which runs the same macro as the rule's recipe.
+## Only the compilation of a tree is done by running Make on it, as
+## the choice of an incremental compilation, and the causes reported,
+## depend on which of its prerequisites Make finds changed, and on the
+## tree's source digests when they are checked.  A tree's
+## compilation depends on the profiles of the trees and jars it uses,
+## so it is repeated only when those profiles change, and on its
+## source directories and the sources that the compiler listed in a
+## depfile when it last compiled the tree.  Profiles and stamps are
+## touched only when they change, so Ninja, told to check the outputs
+## again, skips the steps that depend on one that did not.  Every step
+## also depends on the makefiles, which decide everything else, and
+## the build file is written again, and the preamble's by-products
+## brought up to date, when they or the source directories change.
+## Make run by a step therefore skips the preamble, and writes no file
+## shared with other steps, so steps can run at the same time.  Any
+## tools that the steps run, and their sources, are added to
+## $(jardeps_ninja_tools) and $(jardeps_ninja_tool_sources), and
+## built with the build file.
+jardeps_ninja_tmp=$(JARDEPS_NINJA)-tmp
+jardeps_ninja_make=$(MAKE) -s --no-print-directory \
+  -f $(firstword $(MAKEFILE_LIST)) JARDEPS_BATCH=
+jardeps_ninja_config=$(filter-out $(JARDEPS_TMPDIR)/% \
+  $(call JARDEPS_ABSPATH,$(JARDEPS_TMPDIR))/%,$(MAKEFILE_LIST)) \
+  $(sort $(wildcard $(JARDEPS_DEPDIR)/*.mk $(JARDEPS_DEPDIR)/*.manifest \
+    $(JARDEPS_JDEPDIR)/*.mk $(JARDEPS_JDEPDIR)/*.manifest \
+    $(trees:%=$(JARDEPS_SRCDIR)/%/deps.mk)))
+jardeps_ninja_paths=$(if $(strip $1),$(PRINTF) ' $$\n    %s' \
+  $(patsubst %,'%',$1) >> '$(jardeps_ninja_tmp)',$(TRUE))
+jardeps_ninja_find=$(if $(strip $1),$(FIND) \
+  $(patsubst %,'$(JARDEPS_SRCDIR)/%',$1) $2 -printf ' $$\n    %p' \
+  >> '$(jardeps_ninja_tmp)' 2> /dev/null || $(TRUE),$(TRUE))
+
+## Escape command $1 for Ninja, and quote it for the shell.
+jardeps_ninja_cmd='cmd = $(subst ','\'',$(subst $$,$$$$,$1))'
+
+jardeps_ninja_tree_inputs=$(sort \
+  $(if $(jardeps_api_used),$(JARDEPS_TMPDIR)/tree-$1.api-used, \
+    $(deps_$1:%=$(JARDEPS_TMPDIR)/tree-%.$(jardeps_api_stamp)) \
+    $(jdeps_$1:%=$(JARDEPS_TMPDIR)/jar-%.$(jardeps_api_stamp))) \
+  $(ppdeps_$1:%=$(JARDEPS_TMPDIR)/tree-%.api) \
+  $(ppdeps_$1:%=$(JARDEPS_TMPDIR)/tree-%.ppi) \
+  $(foreach t,$(rtdeps_$1),$(treetargets_$t)) \
+  $(jppdeps_$1:%=$(JARDEPS_TMPDIR)/jar-%.api) \
+  $(jppdeps_$1:%=$(JARDEPS_TMPDIR)/jar-%.ppi) \
+  $(jrtdeps_$1:%=$(JARDEPS_OUTDIR)/%.jar) \
+  $(foreach s,root-list idl-list classpath procpath flags \
+    $(if $(filter $1,$(idl_trees)),idl-flags idl-path),\
+    $(JARDEPS_TMPDIR)/tree-$1.$s) \
+  $(if $(filter $1,$(idl_trees)),$(JARDEPS_TMPDIR)/idl.map) \
+  $(wildcard $(idls_$1:%=$(JARDEPS_IDLDIR)/%)))
+jardeps_ninja_tree_outputs=$(JARDEPS_TMPDIR)/tree-$1.compiled \
+  $(foreach s,api ppi externals provided apt-manifest,\
+    $(JARDEPS_TMPDIR)/tree-$1.$s) \
+  $(foreach s,api-tmp ppi-tmp $(if $(jardeps_api_struct),api-struct-tmp) list,\
+    $(JARDEPS_TMPDIR)/tree-$1.$s)
+jardeps_ninja_statics=$(sort $(statics_$1:%=$(JARDEPS_CLASSDIR)/$1/%) \
+  $(call dlplist_dst,$1))
+
+## Write a step with outputs $1 (of which the first is explicit), rule
+## $2, inputs $3, the files of trees $5 matching find predicate $6,
+## and bindings $4.
+define jardeps_ninja_build
+@$(PRINTF) '\nbuild %s' '$(firstword $1)' >> '$(jardeps_ninja_tmp)'
+@$(if $(word 2,$1),$(PRINTF) ' $$\n    |' >> '$(jardeps_ninja_tmp)' ; $(call jardeps_ninja_paths,$(wordlist 2,$(words $1),$1)),$(TRUE))
+@$(PRINTF) ': %s $$\n    |' '$2' >> '$(jardeps_ninja_tmp)'
+@$(call jardeps_ninja_paths,$3 $(jardeps_ninja_config))
+@$(call jardeps_ninja_find,$5,$6)
+@$(PRINTF) '\n' >> '$(jardeps_ninja_tmp)'
+@$(PRINTF) '  %s\n' $4 >> '$(jardeps_ninja_tmp)'
+
+endef
+
+## Write the steps for tree $1.
+define jardeps_ninja_tree
+$(foreach f,$(call jardeps_ninja_statics,$1),$(call jardeps_ninja_build,$f,jardeps,$(f:$(JARDEPS_CLASSDIR)/$1/%=$(JARDEPS_SRCDIR)/$1/%),'description = Copying $f' $(call jardeps_ninja_cmd,$(call jardeps_static_cmd,$(f:$(JARDEPS_CLASSDIR)/$1/%=$(JARDEPS_SRCDIR)/$1/%),$f))))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.statics,jardeps,$(JARDEPS_TMPDIR)/tree-$1.static-list $(call jardeps_ninja_statics,$1),'description = Statics of $1' $(call jardeps_ninja_cmd,$(call jardeps_stamp_cmd,$(JARDEPS_TMPDIR)/tree-$1.statics)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.lang,jardeps,$(JARDEPS_TMPDIR)/tree-$1.dlps-list $(call dlplist_dst,$1),'description = Language packs of $1' $(call jardeps_ninja_cmd,$(call jardeps_lang_cmd,$1,$(JARDEPS_TMPDIR)/tree-$1.lang)))
+$(if $(jardeps_api_used),$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.api-used,jardeps,$(deps_$1:%=$(JARDEPS_TMPDIR)/tree-%.api) $(jdeps_$1:%=$(JARDEPS_TMPDIR)/jar-%.api),'description = Upstream API of $1' $(call jardeps_ninja_cmd,$(call jardeps_usecheck_cmd,$1))))
+$(call jardeps_ninja_build,$(call jardeps_ninja_tree_outputs,$1),jardeps-make,$(call jardeps_ninja_tree_inputs,$1),'description = Compiling $1' 'depfile = $(JARDEPS_TMPDIR)/tree-$1.d' 'targets = $(wordlist 1,6,$(call jardeps_ninja_tree_outputs,$1))',$1,-type d)
+$(if $(filter breaking,$(JARDEPS_API_SENSITIVITY)),$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.api-break,jardeps,$(JARDEPS_TMPDIR)/tree-$1.compiled,'description = Comparing API of $1' $(call jardeps_ninja_cmd,$(call jardeps_api_compare,$(JARDEPS_TMPDIR)/tree-$1,$1))))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.full-merge-list,jardeps,$(JARDEPS_TMPDIR)/tree-$1.compiled $(JARDEPS_TMPDIR)/tree-$1.merge-list,'description = Merge list of $1' $(call jardeps_ninja_cmd,$(call jardeps_full_merge_list_cmd,$1,$(JARDEPS_TMPDIR)/tree-$1.full-merge-list)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.merged,jardeps,$(JARDEPS_TMPDIR)/tree-$1.full-merge-list $(merge_$1:%=$(JARDEPS_MERGEDIR)/$1/%),'description = Merging $1' $(call jardeps_ninja_cmd,$(call jardeps_tree_merge_cmd,$1,$(JARDEPS_TMPDIR)/tree-$1.merged)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.trimmed-externals,jardeps,$(JARDEPS_TMPDIR)/tree-$1.externals $(JARDEPS_TMPDIR)/tree-$1.excluded-imports,'description = Imports of $1' $(call jardeps_ninja_cmd,$(call jardeps_trimmed_externals_cmd,$1,$(JARDEPS_TMPDIR)/tree-$1.trimmed-externals)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.manual-manifest,jardeps,$(wildcard $(JARDEPS_DEPDIR)/tree-$1.manifest),'description = Manual manifest of $1' $(call jardeps_ninja_cmd,$(call jardeps_manual_manifest_cmd,$(JARDEPS_TMPDIR)/tree-$1.manual-manifest,$(JARDEPS_DEPDIR)/tree-$1.manifest)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/tree-$1.docsrc-list,jardeps,,'description = Documentation sources of $1' $(call jardeps_ninja_cmd,$(call jardeps_docsrc_cmd,$1,$(JARDEPS_TMPDIR)/tree-$1.docsrc-list)),$1,\( -type d -o -name '*.java' -o -path '*/doc-files/*' \))
+endef
+
+## Write the steps for jar $1.
+define jardeps_ninja_jar
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.merge-list,jardeps,$(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.full-merge-list),'description = Merge list of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_jar_merge_list_cmd,$1,$(JARDEPS_TMPDIR)/jar-$1.merge-list)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.merged,jardeps,$(JARDEPS_TMPDIR)/jar-$1.merge-list $(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.merged),'description = Merging $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_jar_merge_cmd,$1,$(JARDEPS_TMPDIR)/jar-$1.merged)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.manual-manifest,jardeps,$(wildcard $(JARDEPS_JDEPDIR)/jar-$1.manifest),'description = Manual manifest of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_manual_manifest_cmd,$(JARDEPS_TMPDIR)/jar-$1.manual-manifest,$(JARDEPS_JDEPDIR)/jar-$1.manifest)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.provided,jardeps,$(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.provided),'description = Provided packages of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_jar_provided_cmd,$1,$(JARDEPS_TMPDIR)/jar-$1.provided)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.imports,jardeps,$(JARDEPS_TMPDIR)/jar-$1.provided $(JARDEPS_TMPDIR)/jar-$1.excluded-imports $(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.imports) $(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.trimmed-externals),'description = Imports of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_jar_imports_cmd,$1,$(JARDEPS_TMPDIR)/jar-$1.imports)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.exports,jardeps,$(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.exports),'description = Exports of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_jar_exports_cmd,$1,$(JARDEPS_TMPDIR)/jar-$1.exports)))
+$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.manifest,jardeps,$(foreach s,manual-manifest deps imports exports,$(JARDEPS_TMPDIR)/jar-$1.$s) $(foreach t,$(trees_$1),$(JARDEPS_TMPDIR)/tree-$t.manual-manifest $(JARDEPS_TMPDIR)/tree-$t.apt-manifest),'description = Manifest of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_manifest_cmd,$1,$(JARDEPS_TMPDIR)/jar-$1.manifest)))
+$(call jardeps_ninja_build,$(JARDEPS_OUTDIR)/$1.jar $(foreach s,api-tmp ppi-tmp $(if $(jardeps_api_struct),api-struct-tmp),$(JARDEPS_TMPDIR)/jar-$1.$s),jardeps,$(JARDEPS_TMPDIR)/jar-$1.tree-list $(foreach t,$(trees_$1),$(foreach s,compiled lang lang-files statics,$(JARDEPS_TMPDIR)/tree-$t.$s)) $(JARDEPS_TMPDIR)/jar-$1.manifest $(JARDEPS_TMPDIR)/jar-$1.merged,'description = Creating $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_jar_cmd,$1,$(JARDEPS_OUTDIR)/$1.jar)))
+$(foreach s,api ppi,$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.$s,jardeps,$(JARDEPS_OUTDIR)/$1.jar,'description = $(if $(filter api,$s),API,PPI) of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_jar_profile_cmd,$1,$s,$(if $(filter api,$s),API,PPI)))))
+$(if $(filter breaking,$(JARDEPS_API_SENSITIVITY)),$(call jardeps_ninja_build,$(JARDEPS_TMPDIR)/jar-$1.api-break,jardeps,$(JARDEPS_OUTDIR)/$1.jar,'description = Comparing API of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_api_compare,$(JARDEPS_TMPDIR)/jar-$1,$1.jar))))
+$(call jardeps_ninja_build,$(JARDEPS_OUTDIR)/$1-src.zip,jardeps,$(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.docsrc-list),'description = Source zip of $1.jar' $(call jardeps_ninja_cmd,$(call jardeps_src_zip_cmd,$1,$(JARDEPS_OUTDIR)/$1-src.zip)))
+endef
+
+.PHONY: ninja
+ninja:: $(preamble_byproducts)
+	@$(ECHO) '[JARDEPS] Writing $(JARDEPS_NINJA)' > /dev/stderr
+	@$(PRINTF) '%s\n' \
+	  '# Written by '\''make ninja'\''; do not edit.' \
+	  'ninja_required_version = 1.7' \
+	  'make = $(jardeps_ninja_make)' \
+	  '' 'rule jardeps' '  command = $$cmd' \
+	  '  description = $$description' '  restat = 1' \
+	  '' 'rule jardeps-make' \
+	  '  command = $$make jardeps_ninja_step=yes $$targets' \
+	  '  description = $$description' '  restat = 1' \
+	  '' 'rule jardeps-ninja' '  command = $$make ninja' \
+	  '  description = Writing $(JARDEPS_NINJA)' '  generator = 1' \
+	  '  restat = 1' \
+	  '' '' > '$(jardeps_ninja_tmp)'
+	@$(PRINTF) 'build %s' '$(JARDEPS_NINJA)' >> '$(jardeps_ninja_tmp)'
+	@$(PRINTF) ' $$\n    |' >> '$(jardeps_ninja_tmp)'
+	@$(call jardeps_ninja_paths,$(preamble_byproducts) $(jardeps_ninja_tools))
+	@$(PRINTF) ': jardeps-ninja $$\n    |' >> '$(jardeps_ninja_tmp)'
+	@$(call jardeps_ninja_paths,$(jardeps_ninja_config) $(jardeps_ninja_tool_sources))
+	@$(call jardeps_ninja_find,$(trees),-type d)
+	@$(PRINTF) '\n' >> '$(jardeps_ninja_tmp)'
+	$(foreach t,$(trees),$(call jardeps_ninja_tree,$t))
+	$(foreach j,$(inferred_jars),$(call jardeps_ninja_jar,$j))
+	@$(PRINTF) '\n%s\n' 'build jars: phony $(inferred_jars:%=$(JARDEPS_OUTDIR)/%.jar)' \
+	  'build source-zips: phony $(inferred_jars:%=$(JARDEPS_OUTDIR)/%-src.zip)' \
+	  'default jars' >> '$(jardeps_ninja_tmp)'
+	@$(MV) '$(jardeps_ninja_tmp)' '$(JARDEPS_NINJA)'
+
 ## How to compile the source
 $(JARDEPS_TMPDIR)/tree-%.compiled:
 	@$(ECHO) '[JARDEPS] $*: Compiling with [$(APPLIED_JAVACFLAGS)]' \
@@ -856,7 +1424,9 @@ $(JARDEPS_TMPDIR)/tree-%.compiled:
 	  "$(JARDEPS_TMPDIR)/aptbin/$*/META-INF/services"
 	@$(TOUCH) '$(JARDEPS_CLASSDIR)/CACHEDIR.TAG'
 	@$(TOUCH) '$(JARDEPS_TMPDIR)/CACHEDIR.TAG'
-	@$(FIND) "$(JARDEPS_CLASSDIR)/$*" -name "*.class" -delete
+	@$(call jardeps_trace,B,Compiling,tree $*)
+	@$(if $(call jardeps_incremental,$*,$?),,$(RM) "$(JARDEPS_TMPDIR)/tree-$*.incr")
+	@$(if $(call jardeps_incremental,$*,$?),,$(FIND) "$(JARDEPS_CLASSDIR)/$*" -name "*.class" -delete)
 	@$(FIND) "$(JARDEPS_TMPDIR)/apt/$*" -name "*.java" -delete
 	@$(FIND) "$(JARDEPS_TMPDIR)/idl/$*" -name "*.java" -delete
 	@$(RM) "$(JARDEPS_TMPDIR)/tree-$*.idlout"
@@ -867,13 +1437,17 @@ $(JARDEPS_TMPDIR)/tree-%.compiled:
 	@$(report) '' '   Class %s\n' '' $(subst /,.,$(patsubst $(JARDEPS_SRCDIR)/$*/%.java,%,$(filter $(JARDEPS_SRCDIR)/$*/%.java,$?))) > /dev/stderr
 	@$(report) '   API:' ' %s' '\n' $(subst /,.,$(patsubst $(JARDEPS_TMPDIR)/tree-%.api,%,$(filter $(JARDEPS_TMPDIR)/tree-%.api,$?))) > /dev/stderr
 	@$(report) '   PPI:' ' %s' '\n' $(subst /,.,$(patsubst $(JARDEPS_TMPDIR)/tree-%.ppi,%,$(filter $(JARDEPS_TMPDIR)/tree-%.ppi,$?))) > /dev/stderr
+	@$(report) '   API break:' ' %s' '\n' $(subst /,.,$(patsubst $(JARDEPS_TMPDIR)/tree-%.api-break,%,$(filter $(JARDEPS_TMPDIR)/tree-%.api-break,$?))) > /dev/stderr
+	@$(report) '   Used API\n' '' '' $(filter $(JARDEPS_TMPDIR)/tree-%.api-used,$?) > /dev/stderr
 	@$(report) '   Jar API:' ' %s' '\n' $(subst /,.,$(patsubst $(JARDEPS_TMPDIR)/jar-%.api,%,$(filter $(JARDEPS_TMPDIR)/jar-%.api,$?))) > /dev/stderr
 	@$(report) '   Jar PPI:' ' %s' '\n' $(subst /,.,$(patsubst $(JARDEPS_TMPDIR)/jar-%.ppi,%,$(filter $(JARDEPS_TMPDIR)/jar-%.ppi,$?))) > /dev/stderr
+	@$(report) '   Jar API break:' ' %s' '\n' $(subst /,.,$(patsubst $(JARDEPS_TMPDIR)/jar-%.api-break,%,$(filter $(JARDEPS_TMPDIR)/jar-%.api-break,$?))) > /dev/stderr
 	@$(report) '   Classes of: ' ' %s' '\n' $(patsubst $(JARDEPS_TMPDIR)/tree-%.compiled,%,$(filter $(JARDEPS_TMPDIR)/tree-%.compiled,$?)) > /dev/stderr
 	@$(report) '   Statics of: ' ' %s' '\n' $(patsubst $(JARDEPS_TMPDIR)/tree-%.statics,%,$(filter $(JARDEPS_TMPDIR)/tree-%.statics,$?)) > /dev/stderr
 	@$(report) '   Language packs of: ' ' %s' '\n' $(patsubst $(JARDEPS_TMPDIR)/tree-%.lang,%,$(filter $(JARDEPS_TMPDIR)/tree-%.lang,$?)) > /dev/stderr
 	@$(report) '   Merged files of: ' ' %s' '\n' $(patsubst $(JARDEPS_TMPDIR)/tree-%.merged,%,$(filter $(JARDEPS_TMPDIR)/tree-%.merged,$?)) > /dev/stderr
 	@$(report) '' '   %s.jar\n' '' $(patsubst $(JARDEPS_OUTDIR)/%.jar,%,$(filter $(JARDEPS_OUTDIR)/%.jar,$?)) > /dev/stderr
+	@$(report) '   Source content\n' '' '' $(filter $(JARDEPS_TMPDIR)/tree-%.sources,$?) > /dev/stderr
 	@$(report) '   Root list\n' '' '' $(filter $(JARDEPS_TMPDIR)/tree-%.root-list,$?) > /dev/stderr
 	@$(report) '   IDL list\n' '' '' $(filter $(JARDEPS_TMPDIR)/tree-%.idl-list,$?) > /dev/stderr
 	@$(report) '   Classpath\n' '' '' $(filter $(JARDEPS_TMPDIR)/tree-%.classpath,$?) > /dev/stderr
@@ -898,8 +1472,7 @@ $(JARDEPS_TMPDIR)/tree-%.compiled:
 	@$(AWK) -f "$(JARDEPS_LIB)/parseidlout.awk" \
 	  -v TARGET="$*" -v DIR="$(JARDEPS_IDLDIR)" \
 	  "$(JARDEPS_TMPDIR)/tree-$*.idlout" > "$(JARDEPS_TMPDIR)/tree-$*.idl.mk"
-	@$(JAVAC_JAVA) $(JAVAC_JAVAFLAGS) \
-	  -cp "$(JARDEPS_CLASSPATH)" JardepsCompiler \
+	@$(call jardeps_cache_restore,$*) $(jardeps_compiler) \
 	  $(APPLIED_JAVACFLAGS_$*) -implicit:class \
 	  -d "$(JARDEPS_CLASSDIR)/$*" \
 	  -cp "$(subst $(jardeps_space),:,$(APPLIED_CLASSPATH_$*))" \
@@ -909,26 +1482,41 @@ $(JARDEPS_TMPDIR)/tree-%.compiled:
 	  -sourcepath "$(JARDEPS_SRCDIR)/$*":"$(JARDEPS_TMPDIR)/idl/$*" \
 	  -profile:public "$(JARDEPS_TMPDIR)/tree-$*.api-tmp" \
 	  -profile:default "$(JARDEPS_TMPDIR)/tree-$*.ppi-tmp" \
+	  $(if $(jardeps_api_struct),-profile:struct "$(JARDEPS_TMPDIR)/tree-$*.api-struct-tmp") \
+	  $(if $(jardeps_api_used),-usage "$(JARDEPS_TMPDIR)/tree-$*.usage") \
+	  $(if $(JARDEPS_INCREMENTAL),-incremental "$(JARDEPS_TMPDIR)/tree-$*.incr") \
+	  $(if $(JARDEPS_STATS),-stats "$(JARDEPS_TMPDIR)/tree-$*.stats") \
+	  $(if $(JARDEPS_STREAMING),-streaming) \
 	  -packages:provided "$(JARDEPS_TMPDIR)/tree-$*.provided-tmp" \
 	  -packages:used "$(JARDEPS_TMPDIR)/tree-$*.externals-tmp" \
+	  -commit:provided "$(JARDEPS_TMPDIR)/tree-$*.provided" \
+	  -commit:used "$(JARDEPS_TMPDIR)/tree-$*.externals" \
+	  -commit:public "$(JARDEPS_TMPDIR)/tree-$*.api" \
+	  -commit:default "$(JARDEPS_TMPDIR)/tree-$*.ppi" \
+	  -commit:status "$(JARDEPS_TMPDIR)/tree-$*.changed" \
+	  $(JARDEPS_ANALYSIS_CACHE:%=-cache:analysis "%" \
+	    -cache:size "$(JARDEPS_ANALYSIS_CACHE_SIZE)") \
 	  -Auk.ac.lancs.scc.jardeps.service.dir="$(JARDEPS_TMPDIR)/aptbin/$*/META-INF/services" \
 	  -Auk.ac.lancs.scc.jardeps.manifest="$(JARDEPS_TMPDIR)/tree-$*.apt-manifest" \
-	  -list:sources:3 "$(JARDEPS_LIB)/store-srcdeps.sh" \
+	  -list:sources:$(if $(JARDEPS_LIST_SCRIPTS),3 "$(JARDEPS_LIB)/store-srcdeps.sh",native) \
 	    "$(JARDEPS_TMPDIR)/tree-$*.mk" \
 	    "$(JARDEPS_SRCDIR)/$*/" \
 	    "$*" \
-	  -list:inputs:3 "$(JARDEPS_LIB)/store-inputs.sh" \
+	  -list:inputs:$(if $(JARDEPS_LIST_SCRIPTS),3 "$(JARDEPS_LIB)/store-inputs.sh",native) \
 	    "$(JARDEPS_TMPDIR)/inputs-$*.mk" \
 	    "$(JARDEPS_SRCDIR)/$*/" \
 	    "$*" \
-	  -list:classes:2 "$(JARDEPS_LIB)/store-classes.sh" \
+	  -list:classes:$(if $(JARDEPS_LIST_SCRIPTS),2 "$(JARDEPS_LIB)/store-classes.sh",native) \
 	    "$(JARDEPS_TMPDIR)/tree-$*.list" \
 	    "$(JARDEPS_CLASSDIR)/$*/" \
+	  -list:depfile "$(JARDEPS_TMPDIR)/tree-$*.d" \
+	    "$(JARDEPS_TMPDIR)/tree-$*.compiled" \
+	    "$(JARDEPS_SRCDIR)/$*/" \
+	  $(if $(JARDEPS_DIGESTS),-digests "$(JARDEPS_TMPDIR)/tree-$*.digests" \
+	    "$(JARDEPS_SRCDIR)/$*/") \
 	  $(foreach root,$(roots_$*),"$(JARDEPS_SRCDIR)/$*/$(subst .,/,$(root)).java") \
-	  "@$(JARDEPS_TMPDIR)/tree-$*.idljava-list"
-	@$(TOUCH) "$@"
-	@$(ECHO) '  Compilation complete' > /dev/stderr
-	@$(BLANK)
+	  "@$(JARDEPS_TMPDIR)/tree-$*.idljava-list" $(jardeps_compiler_dest)
+	@$(jardeps_compiled)
 
 show-all-trees::
 	@$(PRINTF) '%s\n' $(trees)
@@ -949,10 +1537,14 @@ clean-tree-%::
 ## Get a copy of a tree's manually provided manifest.  If none is
 ## provided, create a blank one.
 $(JARDEPS_TMPDIR)/tree-%.manual-manifest: $(JARDEPS_DEPDIR)/tree-%.manifest
-	@$(CP) "$<" "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_manual_manifest_cmd,$@,$<)
 $(JARDEPS_TMPDIR)/tree-%.manual-manifest:
-	@$(TOUCH) "$@"
+	@$(call jardeps_manual_manifest_cmd,$@)
+
+## Copy a manually provided manifest $2 to $1, or create a blank one
+## if none is provided.
+jardeps_manual_manifest_cmd=$(if $(wildcard $2),$(CP) "$2" "$1-tmp" && \
+  $(MV) "$1-tmp" "$1",$(TOUCH) "$1")
 
 ## Create the manifest that the annotation processor should have
 ## generated.
@@ -964,40 +1556,47 @@ $(JARDEPS_TMPDIR)/tree-%.apt-manifest:
 ## subtract the list of excluded ones.
 $(JARDEPS_TMPDIR)/tree-%.trimmed-externals:
 	@$(ECHO) '[JARDEPS] $*: Excluding packages' > /dev/stderr
-	@$(CAT) "$(JARDEPS_TMPDIR)/tree-$*.externals" \
-	  | $(safegrep) -Fvx -f "$(JARDEPS_TMPDIR)/tree-$*.excluded-imports" \
-	  > "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_trimmed_externals_cmd,$*,$@)
+
+## List in $2 the packages that tree $1 imports, with exclusions
+## applied.
+jardeps_trimmed_externals_cmd=$(CAT) "$(JARDEPS_TMPDIR)/tree-$1.externals" \
+  | $(safegrep) -Fvx -f "$(JARDEPS_TMPDIR)/tree-$1.excluded-imports" \
+  > "$2-tmp" && $(MV) "$2-tmp" "$2"
 
 ## Get a copy of a jar's manually provided manifest.  If none is
 ## provided, create a blank one.
 $(JARDEPS_TMPDIR)/jar-%.manual-manifest: $(JARDEPS_JDEPDIR)/jar-%.manifest
-	@$(CP) "$<" "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_manual_manifest_cmd,$@,$<)
 $(JARDEPS_TMPDIR)/jar-%.manual-manifest:
-	@$(TOUCH) "$@"
+	@$(call jardeps_manual_manifest_cmd,$@)
 
 ## Work out what packages a jar provided by catenating the
 ## corresponding lists of the component trees, sorting, and removing
 ## duplicates.
 $(JARDEPS_TMPDIR)/jar-%.provided:
 	@$(ECHO) '[JARDEPS] $*.jar: Identifying provided packages' > /dev/stderr
-	@$(CAT) $(trees_$*:%='$(JARDEPS_TMPDIR)/tree-%.provided') | \
-	  $(SORTU) > "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_jar_provided_cmd,$*,$@)
+
+## List in $2 the packages that jar $1 provides.
+jardeps_jar_provided_cmd=$(CAT) $(trees_$1:%='$(JARDEPS_TMPDIR)/tree-%.provided') | \
+  $(SORTU) > "$2-tmp" && $(MV) "$2-tmp" "$2"
 
 ## Generate the jar manifest by concatenating the manually provided
 ## part with the generated imports and exports, and adding the
 ## component trees' manually provided parts.
 $(JARDEPS_TMPDIR)/jar-%.manifest:
 	@$(ECHO) '[JARDEPS] $*.jar: Compiling manifest' > /dev/stderr
-	@$(CAT) '$(JARDEPS_TMPDIR)/jar-$*.manual-manifest' \
-	  '$(JARDEPS_TMPDIR)/jar-$*.deps' \
-	  '$(JARDEPS_TMPDIR)/jar-$*.imports' \
-	  '$(JARDEPS_TMPDIR)/jar-$*.exports' \
-	  $(trees_$*:%='$(JARDEPS_TMPDIR)/tree-%.apt-manifest') \
-	  $(trees_$*:%='$(JARDEPS_TMPDIR)/tree-%.manual-manifest') > "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_manifest_cmd,$*,$@)
+
+## Write in $2 the manifest of jar $1.
+jardeps_manifest_cmd=$(CAT) '$(JARDEPS_TMPDIR)/jar-$1.manual-manifest' \
+  '$(JARDEPS_TMPDIR)/jar-$1.deps' \
+  '$(JARDEPS_TMPDIR)/jar-$1.imports' \
+  '$(JARDEPS_TMPDIR)/jar-$1.exports' \
+  $(trees_$1:%='$(JARDEPS_TMPDIR)/tree-%.apt-manifest') \
+  $(trees_$1:%='$(JARDEPS_TMPDIR)/tree-%.manual-manifest') > "$2-tmp" && \
+  $(MV) "$2-tmp" "$2"
 
 
 ## Work out the manifest lines that import packages from a jar.
@@ -1006,26 +1605,30 @@ $(JARDEPS_TMPDIR)/jar-%.manifest:
 ## excluded packages.
 $(JARDEPS_TMPDIR)/jar-%.imports:
 	@$(ECHO) '[JARDEPS] $*.jar: Generating imports' > /dev/stderr
-	@$(commaline) 'Import-Package: ' $(call jar-import-list,$*) > "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_jar_imports_cmd,$*,$@)
 
-jar-import-list=$(shell $(CAT) $(trees_$1:%='$(JARDEPS_TMPDIR)/tree-%.imports') \
+jardeps_jar_imports_cmd=$(commaline) 'Import-Package: ' \
+  $$($(call jar-import-list,$1)) > "$2-tmp" && $(MV) "$2-tmp" "$2"
+
+jar-import-list=$(CAT) $(trees_$1:%='$(JARDEPS_TMPDIR)/tree-%.imports') \
   $(trees_$1:%='$(JARDEPS_TMPDIR)/tree-%.trimmed-externals') | \
   $(SORTU) | \
   $(safegrep) -Fvx -f '$(JARDEPS_TMPDIR)/jar-$1.provided' | \
   $(safegrep) -Fvx -f '$(JARDEPS_TMPDIR)/jar-$1.excluded-imports' | \
-  $(safegrep) -Ev '^java\.')
+  $(safegrep) -Ev '^java\.'
 
 ## Work out the manifest lines that export packages from a jar.
 ## Catenate the export lists of component trees, sort, and remove
 ## duplicates.
 $(JARDEPS_TMPDIR)/jar-%.exports:
 	@$(ECHO) '[JARDEPS] $*.jar: Generating exports' > /dev/stderr
-	@$(commaline) 'Export-Package: ' $(call jar-export-list,$*) > "$@-tmp"
-	@$(MV) "$@-tmp" "$@"
+	@$(call jardeps_jar_exports_cmd,$*,$@)
+
+jardeps_jar_exports_cmd=$(commaline) 'Export-Package: ' \
+  $$($(call jar-export-list,$1)) > "$2-tmp" && $(MV) "$2-tmp" "$2"
 
 jar-export-list=\
-$(shell $(CAT) $(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.exports) | $(SORTU))
+$(CAT) $(trees_$1:%=$(JARDEPS_TMPDIR)/tree-%.exports) | $(SORTU)
 
 ## All trees that include IDLs depend on the IDL module->package
 ## mapping.
@@ -1084,6 +1687,9 @@ $(JARDEPS_TMPDIR)/tree-%.static-list:
 $(JARDEPS_TMPDIR)/tree-%.dlps-list:
 	@$(cmpcp) '[JARDEPS] $*: Language-pack list changed' '$@-tmp' '$@'
 
+$(JARDEPS_TMPDIR)/tree-%.lang-files:
+	@$(cmpcp) '[JARDEPS] $*: Language-pack files changed' '$@-tmp' '$@'
+
 $(JARDEPS_TMPDIR)/tree-%.merge-list:
 	@$(cmpcp) '[JARDEPS] $*: Merge list changed' '$@-tmp' '$@'
 
@@ -1141,6 +1747,8 @@ $(report) '' '%s\n' '' $(sort $(statics_$1)) \
   > '$(JARDEPS_TMPDIR)/tree-$1.static-list-tmp'
 $(report) '' '%s\n' '' $(sort $(dlps_$1)) \
   > '$(JARDEPS_TMPDIR)/tree-$1.dlps-list-tmp'
+$(report) '' '%s\n' '' $(sort $(patsubst $(JARDEPS_CLASSDIR)/$1/%,%,$(call dlplist_dst,$1))) \
+  > '$(JARDEPS_TMPDIR)/tree-$1.lang-files-tmp'
 $(report) '' '%s\n' '' $(sort $(merge_$1)) \
   > '$(JARDEPS_TMPDIR)/tree-$1.merge-list-tmp'
 $(report) '' '%s\n' '' $(sort $(imports_$1)) \
@@ -1187,8 +1795,12 @@ $(JARDEPS_TMPDIR)/preamble:
 	@$(foreach t,$(trees),$(call preamble4tree,$t))
 #	@$(ECHO) 'Preamble complete'
 
+## A step run by Ninja finds these already brought up to date when
+## the build file was written, so it does not run the preamble.
+ifeq ($(jardeps_ninja_step),)
 $(preamble_byproducts): \
   $(JARDEPS_TMPDIR)/preamble
+endif
 
 ## Activity in building the preamble target or any of its byproducts
 ## should not be regarded as actual work done towards creating the
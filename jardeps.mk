@@ -34,3 +34,21 @@ $(trees:%=$(JARDEPS_TMPDIR)/tree-%.compiled): \
 	$(JARDEPS_TMPDIR)/jardeps.jar \
 	$(JARDEPS_TMPDIR)/jardeps-lib.jar \
 	$(JARDEPS_TMPDIR)/jardeps-apt.jar
+
+## Batches run the compiler's jar before preparing any tree.
+$(call JARDEPS_ABSPATH,$(JARDEPS_TMPDIR)/batch.mk): \
+	$(JARDEPS_TMPDIR)/jardeps.jar
+
+## Usage checks run the compiler's jar, but don't need repeating just
+## because it has changed.
+$(trees:%=$(JARDEPS_TMPDIR)/tree-%.api-used): | \
+	$(JARDEPS_TMPDIR)/jardeps.jar
+
+## The steps that 'make ninja' writes run these jars directly or pass
+## them to the compiler, so they are built with the build file, which
+## is written again when their sources change.
+ninja:: $(JARDEPS_COMPILER_JAR) $(JARDEPS_LIBRARY_JAR) \
+	$(JARDEPS_PROCESSOR_JAR)
+jardeps_ninja_tools += $(JARDEPS_COMPILER_JAR) $(JARDEPS_LIBRARY_JAR) \
+	$(JARDEPS_PROCESSOR_JAR)
+jardeps_ninja_tool_sources += $(JARDEPS_SOURCES) $(JARDEPS_UTILS_FILE)
@@ -0,0 +1,292 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Stores class summaries on disk, keyed by a digest of the class file
+ * they were derived from. Entries are kept in a subdirectory named
+ * after {@link ClassSummary#FORMAT_VERSION}, so a format change
+ * ignores (and removes) old entries. When the total size exceeds a
+ * limit, the least recently used entries are removed. Entries are
+ * written atomically, so several processes may share a cache.
+ *
+ * <p>
+ * To avoid scanning the whole cache after every compilation, an
+ * estimate of its total size is kept alongside the entries. Each
+ * process adds the sizes of the entries it has stored, and the cache
+ * is only scanned when the estimate exceeds the limit. The estimate
+ * can drift if processes update it concurrently, but each scan resets
+ * it.
+ *
+ * @author simpsons
+ */
+final class AnalysisCache {
+    private final Path root;
+    private final Path dir;
+    private final Path sizeFile;
+    private final long limit;
+    private final AtomicLong added = new AtomicLong();
+
+    /**
+     * Open a cache, creating it if necessary.
+     *
+     * @param root the directory holding the cache
+     *
+     * @param limit the maximum total size of entries in bytes
+     */
+    public AnalysisCache(Path root, long limit) throws IOException {
+        this.root = root;
+        this.limit = limit;
+        this.dir = root.resolve("v" + ClassSummary.FORMAT_VERSION);
+        this.sizeFile = dir.resolve("size");
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Compute the key for a class file.
+     *
+     * @param classFile the class file's content
+     *
+     * @return the key for the class file
+     */
+    public static String key(byte[] classFile) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(classFile);
+            StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                result.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            return result.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError("unreachable", ex);
+        }
+    }
+
+    private Path entry(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    /**
+     * Get a stored summary.
+     *
+     * @param key the key of the class file
+     *
+     * @return the summary, or {@code null} if not present or unreadable
+     */
+    public ClassSummary get(String key) {
+        Path file = entry(key);
+        try (DataInputStream in =
+            new DataInputStream(new BufferedInputStream(Files
+                .newInputStream(file)))) {
+            ClassSummary result = ClassSummary.read(in);
+
+            /* Record the use for eviction. */
+            Files.setLastModifiedTime(file, FileTime
+                .fromMillis(System.currentTimeMillis()));
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Store a summary. Failure is silently ignored.
+     *
+     * @param key the key of the class file
+     *
+     * @param summary the summary to store
+     */
+    public void put(String key, ClassSummary summary) {
+        Path file = entry(key);
+        Path tmp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            tmp = Files.createTempFile(file.getParent(), "tmp-", null);
+            final long size;
+            try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files
+                    .newOutputStream(tmp)))) {
+                summary.write(out);
+                size = out.size();
+            }
+            replace(tmp, file);
+            tmp = null;
+            added.addAndGet(size);
+        } catch (IOException ex) {
+            /* The cache is only an optimization. */
+        } finally {
+            if (tmp != null) try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ex) {
+                /* Ignore. */
+            }
+        }
+    }
+
+    private static void replace(Path tmp, Path file) throws IOException {
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read the estimated total size of the entries.
+     *
+     * @return the estimate, or a negative value if there is none
+     */
+    private long readEstimate() {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(sizeFile),
+                                             StandardCharsets.US_ASCII)
+                .trim());
+        } catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Record the estimated total size of the entries. Failure is
+     * silently ignored.
+     *
+     * @param total the new estimate
+     */
+    private void writeEstimate(long total) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, "tmp-", null);
+            Files.write(tmp, Long.toString(total)
+                .getBytes(StandardCharsets.US_ASCII));
+            replace(tmp, sizeFile);
+            tmp = null;
+        } catch (IOException ex) {
+            /* The next trim will have to scan. */
+        } finally {
+            if (tmp != null) try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ex) {
+                /* Ignore. */
+            }
+        }
+    }
+
+    /**
+     * Remove entries of other format versions, and remove the least
+     * recently used entries until the cache is within its limit. This
+     * does nothing if nothing has been added since the cache was
+     * opened, and only scans the cache if its estimated size exceeds
+     * the limit.
+     */
+    public void trim() throws IOException {
+        final long grown = added.getAndSet(0);
+        if (grown == 0) return;
+        final long estimate = readEstimate();
+        if (estimate >= 0 && estimate + grown <= limit) {
+            writeEstimate(estimate + grown);
+            return;
+        }
+
+        /* Remove obsolete formats. */
+        try (DirectoryStream<Path> others =
+            Files.newDirectoryStream(root, "v*")) {
+            for (Path other : others) {
+                if (other.equals(dir)) continue;
+                deleteTree(other);
+            }
+        } catch (UncheckedIOException ex) {
+            /* Another process is probably removing them. */
+        }
+
+        /* Find out how much space is in use. */
+        class Item {
+            final Path path;
+            final long size;
+            final long time;
+
+            Item(Path path, BasicFileAttributes attrs) {
+                this.path = path;
+                this.size = attrs.size();
+                this.time = attrs.lastModifiedTime().toMillis();
+            }
+        }
+        List<Item> items = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                try {
+                    BasicFileAttributes attrs = Files
+                        .readAttributes(path, BasicFileAttributes.class);
+                    if (!attrs.isRegularFile() || path.equals(sizeFile))
+                        continue;
+                    Item item = new Item(path, attrs);
+                    items.add(item);
+                    total += item.size;
+                } catch (IOException ex) {
+                    /* Another process might have removed it. */
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            /* Another process is probably trimming. */
+            return;
+        }
+
+        /* Remove the oldest entries first. */
+        if (total > limit) {
+            items.sort(Comparator.comparingLong(i -> i.time));
+            for (Item item : items) {
+                if (total <= limit) break;
+                Files.deleteIfExists(item.path);
+                total -= item.size;
+            }
+        }
+        writeEstimate(total);
+    }
+
+    private static void deleteTree(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            List<Path> all = new ArrayList<>();
+            files.forEach(all::add);
+            for (int i = all.size() - 1; i >= 0; i--)
+                Files.deleteIfExists(all.get(i));
+        }
+    }
+}
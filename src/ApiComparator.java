@@ -0,0 +1,92 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compares a newly generated structured profile with the previous
+ * one, and touches a stamp file only if the change could break
+ * dependents.
+ *
+ * <p>
+ * Usage: {@code ApiComparator MESSAGE NEW OLD STAMP}
+ *
+ * <p>
+ * {@code NEW} is copied to {@code OLD} if they differ. {@code STAMP}
+ * is touched if {@code OLD} did not exist, or if the change removed
+ * or altered an entry, or added an abstract method. {@code MESSAGE}
+ * is printed with a suffix of {@code broken} or {@code extended} to
+ * report a change.
+ *
+ * @author simpsons
+ */
+public class ApiComparator {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("usage: ApiComparator MESSAGE NEW OLD STAMP");
+            System.exit(1);
+        }
+        final String message = args[0];
+        final Path newFile = Paths.get(args[1]);
+        final Path oldFile = Paths.get(args[2]);
+        final Path stampFile = Paths.get(args[3]);
+
+        StructuredProfile newer = StructuredProfile.read(newFile);
+        if (newer == null) {
+            System.err.printf("%s: no such file: %s%n", message, newFile);
+            System.exit(1);
+        }
+        StructuredProfile older = StructuredProfile.read(oldFile);
+
+        boolean breaking;
+        if (older == null) {
+            breaking = true;
+        } else {
+            Collection<String> broken = older.breakingChanges(newer);
+            breaking = !broken.isEmpty();
+            if (breaking) {
+                System.err.printf("%s broken%n", message);
+                for (String key : broken)
+                    System.err.printf("  %s%n", key);
+            } else if (!older.additions(newer).isEmpty()) {
+                System.err.printf("%s extended%n", message);
+            }
+        }
+
+        /* Keep the new profile as the basis of the next comparison. */
+        if (older == null || !Arrays.equals(Files.readAllBytes(newFile),
+                                            Files.readAllBytes(oldFile)))
+            Files.copy(newFile, oldFile, StandardCopyOption.REPLACE_EXISTING);
+
+        if (breaking || !Files.exists(stampFile)) {
+            if (Files.exists(stampFile))
+                Files.setLastModifiedTime(stampFile, FileTime
+                    .fromMillis(System.currentTimeMillis()));
+            else
+                Files.createFile(stampFile);
+        }
+    }
+}
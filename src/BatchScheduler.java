@@ -0,0 +1,401 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiles several trees in one JVM, starting each as soon as the
+ * trees it depends on are complete. The compilations share the loaded
+ * compiler classes, their JIT-compiled code and the heap, and run in
+ * one pool of worker threads, taking ready trees on the longest chain
+ * of expected compilation times first.
+ *
+ * <p>
+ * Usage:
+ * {@code JardepsCompiler -batch[:THREADS] -graph FILE -spool DIR -goal PATTERN COMMAND...}
+ *
+ * <p>
+ * Each line of the graph gives a tree's name, the file of statistics
+ * from its last compilation, and the trees it depends on, separated
+ * by spaces. Trees that depend on nothing are ready at once. Each
+ * time some trees become ready, {@code COMMAND} is run with an
+ * argument for each, formed by replacing {@code %} in
+ * {@code PATTERN} by its name, to prepare them. For each tree that
+ * needs compiling, it leaves {@code DIR/NAME.args}, holding the
+ * compiler's arguments one per line, and {@code DIR/NAME.complete},
+ * holding the same way a command to run once the compilation has
+ * succeeded. A tree left with neither is complete if the command
+ * succeeded. Once the trees a tree depends on are complete, it is
+ * ready.
+ *
+ * <p>
+ * Trees whose preparation fails, and those depending on them, are
+ * left for the caller to report. Once a compilation fails, no more
+ * trees are prepared, but those already started are finished.
+ *
+ * @author simpsons
+ */
+final class BatchScheduler {
+    private final Path spool;
+
+    private final String goal;
+
+    private final List<String> command;
+
+    private final Map<String, Collection<String>> dependents;
+
+    private final Map<String, Integer> waiting = new HashMap<>();
+
+    private final Map<String, Long> priorities;
+
+    private final List<String> ready = new ArrayList<>();
+
+    private final ThreadPoolExecutor executor;
+
+    private int running;
+
+    private boolean failed;
+
+    private BatchScheduler(Path graph, Path spool, String goal,
+                           List<String> command, int threads)
+        throws IOException {
+        this.spool = spool;
+        this.goal = goal;
+        this.command = command;
+
+        Map<String, Path> stats = new LinkedHashMap<>();
+        Map<String, Collection<String>> upstream = new HashMap<>();
+        for (String line : Files
+            .readAllLines(graph, JardepsCompiler.TEXT_ENCODING)) {
+            String[] words = line.trim().split("\\s+");
+            if (words.length < 2) continue;
+            stats.put(words[0], Paths.get(words[1]));
+            Collection<String> ups = new HashSet<>();
+            for (int i = 2; i < words.length; i++)
+                if (!words[i].equals(words[0])) ups.add(words[i]);
+            upstream.put(words[0], ups);
+        }
+        dependents = new HashMap<>();
+        for (String name : stats.keySet())
+            dependents.put(name, new ArrayList<>());
+        for (Map.Entry<String, Collection<String>> item : upstream
+            .entrySet()) {
+            item.getValue().retainAll(stats.keySet());
+            for (String up : item.getValue())
+                dependents.get(up).add(item.getKey());
+            if (item.getValue().isEmpty())
+                ready.add(item.getKey());
+            else
+                waiting.put(item.getKey(), item.getValue().size());
+        }
+        priorities = criticalPaths(stats, dependents);
+
+        executor = new ThreadPoolExecutor(threads, threads, 0L,
+                                          TimeUnit.MILLISECONDS,
+                                          new PriorityBlockingQueue<>(),
+                                          BatchScheduler::newThread);
+    }
+
+    private static Thread newThread(Runnable task) {
+        Thread t = new Thread(task, "jardeps-batch");
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Compile trees in batches, according to the command-line
+     * arguments.
+     *
+     * @param args the command-line arguments, starting with
+     * {@code -batch} or {@code -batch:THREADS}
+     *
+     * @return the exit status, 0 if no compilation failed
+     */
+    static int run(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args[0].length() > 6) {
+            try {
+                threads = Integer.parseInt(args[0].substring(7));
+            } catch (NumberFormatException ex) {
+                threads = 0;
+            }
+        }
+        Path graph = null, spool = null;
+        String goal = null;
+        int i = 1;
+        for (; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-graph"))
+                graph = Paths.get(args[i + 1]);
+            else if (args[i].equals("-spool"))
+                spool = Paths.get(args[i + 1]);
+            else if (args[i].equals("-goal"))
+                goal = args[i + 1];
+            else
+                break;
+        }
+        if (threads < 1 || graph == null || spool == null || goal == null
+            || i == args.length) {
+            System.err.println("usage: JardepsCompiler -batch[:THREADS]"
+                + " -graph FILE -spool DIR -goal PATTERN COMMAND...");
+            return 1;
+        }
+        List<String> command = new ArrayList<>();
+        for (; i < args.length; i++)
+            command.add(args[i]);
+        return new BatchScheduler(graph, spool, goal, command, threads)
+            .run();
+    }
+
+    private int run() throws IOException, InterruptedException {
+        try {
+            while (true) {
+                List<String> names;
+                synchronized (this) {
+                    while (ready.isEmpty() && running > 0)
+                        wait();
+                    if (ready.isEmpty() || failed) break;
+                    names = new ArrayList<>(ready);
+                    ready.clear();
+                }
+                prepare(names);
+            }
+            synchronized (this) {
+                while (running > 0)
+                    wait();
+                return failed ? 1 : 0;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prepare trees that have become ready, and start compiling those
+     * that need it.
+     */
+    private void prepare(List<String> names)
+        throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>(command);
+        for (String name : names)
+            cmd.add(goal.replace("%", name));
+        int rc = JardepsCompiler.runCommand(cmd, null, null);
+        for (String name : names) {
+            Path args = spool.resolve(name + ".args");
+            if (Files.exists(args)) {
+                synchronized (this) {
+                    running++;
+                }
+                executor.execute(new Compilation(name, args));
+            } else if (rc == 0) {
+                complete(name);
+            }
+        }
+    }
+
+    /**
+     * Record that a tree is complete, and make ready any dependents
+     * that were waiting only for it.
+     */
+    private synchronized void complete(String name) {
+        for (String dep : dependents.get(name)) {
+            int left = waiting.merge(dep, -1, Integer::sum);
+            if (left == 0) {
+                waiting.remove(dep);
+                ready.add(dep);
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void finish(boolean succeeded) {
+        if (!succeeded) failed = true;
+        running--;
+        notifyAll();
+    }
+
+    private class Compilation
+        implements Runnable, Comparable<Compilation> {
+        final String name;
+
+        final Path args;
+
+        final long priority;
+
+        Compilation(String name, Path args) {
+            this.name = name;
+            this.args = args;
+            this.priority = priorities.getOrDefault(name, 0L);
+        }
+
+        @Override
+        public int compareTo(Compilation other) {
+            return Long.compare(other.priority, priority);
+        }
+
+        @Override
+        public void run() {
+            StringWriter out = new StringWriter();
+            PrintWriter err = new PrintWriter(out);
+            int rc;
+            try {
+                List<String> argv = Files.readAllLines(args);
+                rc = JardepsCompiler
+                    .compile(argv.toArray(new String[argv.size()]), err);
+            } catch (Exception | Error ex) {
+                ex.printStackTrace(err);
+                rc = 1;
+            }
+            err.flush();
+            if (rc != 0 || out.getBuffer().length() > 0) {
+                synchronized (System.err) {
+                    System.err.printf("[JARDEPS] %s:%n", name);
+                    System.err.print(out);
+                    if (rc != 0)
+                        System.err.printf("  Compilation failed (%d)%n", rc);
+                    System.err.flush();
+                }
+            }
+            if (rc == 0) {
+                Path done = spool.resolve(name + ".complete");
+                try {
+                    if (Files.exists(done))
+                        rc = JardepsCompiler
+                            .runCommand(Files.readAllLines(done), null, null);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    rc = 1;
+                } catch (InterruptedException ex) {
+                    rc = 1;
+                }
+                if (rc == 0) complete(name);
+            }
+            finish(rc == 0);
+        }
+    }
+
+    /**
+     * Work out how long the longest chain of compilations starting
+     * with each tree is likely to take, so that trees on the critical
+     * path can be compiled first. A tree's expected time is the total
+     * wall time from its statistics, or the mean of the others if it
+     * has none. A cyclic dependency is ignored where it closes the
+     * cycle.
+     *
+     * @param stats the file of statistics of each tree, which might
+     * not exist
+     *
+     * @param dependents the trees that depend on each tree
+     *
+     * @return the length of each tree's critical path in milliseconds
+     */
+    static Map<String, Long>
+        criticalPaths(Map<String, Path> stats,
+                      Map<String, Collection<String>> dependents)
+            throws IOException {
+        Map<String, Long> weights = new HashMap<>();
+        long known = 0, sum = 0;
+        for (Map.Entry<String, Path> item : stats.entrySet()) {
+            Long wall = totalTime(item.getValue());
+            if (wall == null) continue;
+            weights.put(item.getKey(), wall);
+            known++;
+            sum += wall;
+        }
+        long mean = known == 0 ? 1 : Math.max(1, sum / known);
+
+        /* Visit the dependents depth-first, keeping the path on a
+         * stack of our own, as chains of trees may be long. A tree is
+         * given its length once all its dependents have theirs, or
+         * are on the path. */
+        Map<String, Long> result = new HashMap<>();
+        Collection<String> visiting = new HashSet<>();
+        Deque<String> path = new ArrayDeque<>();
+        Deque<Iterator<String>> pending = new ArrayDeque<>();
+        for (String root : dependents.keySet()) {
+            if (result.containsKey(root)) continue;
+            visiting.add(root);
+            path.push(root);
+            pending.push(dependents.get(root).iterator());
+            while (!path.isEmpty()) {
+                Iterator<String> iter = pending.peek();
+                if (iter.hasNext()) {
+                    String dep = iter.next();
+                    if (result.containsKey(dep) || !visiting.add(dep))
+                        continue;
+                    path.push(dep);
+                    pending.push(dependents
+                        .getOrDefault(dep, Collections.emptyList())
+                        .iterator());
+                    continue;
+                }
+                pending.pop();
+                String name = path.pop();
+                visiting.remove(name);
+                long longest = 0;
+                for (String dep : dependents.get(name))
+                    longest = Math.max(longest, result.getOrDefault(dep, 0L));
+                result.put(name, weights.getOrDefault(name, mean) + longest);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the total wall time of a tree's last compilation.
+     *
+     * @param stats the file of statistics
+     *
+     * @return the time in milliseconds, or {@code null} if not
+     * recorded
+     */
+    private static Long totalTime(Path stats) throws IOException {
+        if (!Files.isReadable(stats)) return null;
+        for (String stat : Files.readAllLines(stats,
+                                              JardepsCompiler.TEXT_ENCODING)) {
+            String[] fields = stat.split("\t");
+            if (fields.length < 3 || !fields[0].equals("phase")
+                || !fields[1].equals("total")) continue;
+            try {
+                return Math.round(Double.parseDouble(fields[2]));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,506 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Stores the outputs of tree compilations, keyed by a digest of
+ * everything that could affect them, so that a tree whose inputs have
+ * been compiled before need not be compiled again.
+ *
+ * <p>
+ * Usage:
+ * {@code BuildCache restore|store DIR SIZE KEYFILE KEYS... -- VALUES...}
+ *
+ * <p>
+ * {@code DIR} holds the cache, trimmed to {@code SIZE} megabytes by
+ * removing the least recently used entries. {@code restore} computes
+ * the key and writes it to {@code KEYFILE}, then restores the outputs
+ * and exits with 0 if they are cached, or 1 if not. {@code store}
+ * saves the outputs under the key in {@code KEYFILE}, so that the key
+ * reflects the inputs as they were before compilation.
+ *
+ * <p>
+ * The key is formed from:
+ *
+ * <dl>
+ *
+ * <dt>{@code -s TEXT}
+ *
+ * <dd>a string
+ *
+ * <dt>{@code -f FILE}
+ *
+ * <dd>the content of a file, or its absence
+ *
+ * <dt>{@code -d DIR}
+ *
+ * <dd>the names and contents of all files in a directory
+ *
+ * <dt>{@code -p PATH}
+ *
+ * <dd>a class-path element, either a file or a directory
+ *
+ * </dl>
+ *
+ * <p>
+ * The outputs are:
+ *
+ * <dl>
+ *
+ * <dt>{@code -file FILE}
+ *
+ * <dd>a file, which is removed on restoration if it was absent
+ *
+ * <dt>{@code -tree DIR}
+ *
+ * <dd>the whole content of a directory, which is emptied on
+ * restoration
+ *
+ * <dt>{@code -list DIR LIST}
+ *
+ * <dd>the files of {@code DIR} named in {@code LIST}, one per line;
+ * class files in {@code DIR} are removed on restoration
+ *
+ * <dt>{@code -discard FILE}
+ *
+ * <dd>a file not stored, but removed on restoration
+ *
+ * </dl>
+ *
+ * <p>
+ * Each entry is a zip file, written elsewhere and moved into place,
+ * so several processes may share a cache, and an entry being read is
+ * unaffected by its removal. Likewise, outputs are restored beside
+ * their destinations, and moved into place only once the whole entry
+ * has been extracted.
+ *
+ * @author simpsons
+ */
+public final class BuildCache {
+    /**
+     * The version of the entry format, which names the directory of
+     * entries and is part of each key
+     */
+    private static final int VERSION = 2;
+
+    private static final String FORMAT = "jardeps-build-cache " + VERSION;
+
+    private static final class Output {
+        final String kind;
+
+        final Path path;
+
+        final Path list;
+
+        Output(String kind, Path path, Path list) {
+            this.kind = kind;
+            this.path = path;
+            this.list = list;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4 || !(args[0].equals("restore")
+            || args[0].equals("store"))) {
+            System.err.println("usage: BuildCache restore|store"
+                + " DIR SIZE KEYFILE KEYS... -- VALUES...");
+            System.exit(2);
+        }
+        final boolean restoring = args[0].equals("restore");
+        final Path root = Paths.get(args[1]);
+        final long limit = Long.parseLong(args[2]) << 20;
+        final Path keyFile = Paths.get(args[3]);
+
+        List<String> keyParts = new ArrayList<>();
+        keyParts.add(FORMAT);
+        keyParts.add(System.getProperty("java.version"));
+        List<Output> outputs = new ArrayList<>();
+        boolean values = false;
+        for (int i = 4; i < args.length; i++) {
+            String arg = args[i];
+            if (values) {
+                switch (arg) {
+                case "-file":
+                case "-tree":
+                case "-discard":
+                    outputs.add(new Output(arg, Paths.get(args[++i]), null));
+                    break;
+
+                case "-list":
+                    Path dir = Paths.get(args[++i]);
+                    outputs.add(new Output(arg, dir, Paths.get(args[++i])));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("unknown output "
+                        + arg);
+                }
+                continue;
+            }
+            switch (arg) {
+            case "--":
+                values = true;
+                break;
+
+            case "-s":
+                keyParts.add("s " + args[++i]);
+                break;
+
+            case "-f":
+            case "-d":
+            case "-p":
+                describe(keyParts, Paths.get(args[++i]));
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown key " + arg);
+            }
+        }
+
+        Path dir = root.resolve("v" + VERSION);
+        Files.createDirectories(dir);
+        if (restoring) {
+            String key = IncrementalState.digest(keyParts);
+            Files.write(keyFile,
+                        (key + '\n').getBytes(StandardCharsets.UTF_8));
+            Path entry = dir.resolve(key + ".zip");
+            if (!Files.isRegularFile(entry)) System.exit(1);
+            try (ZipFile zip = new ZipFile(entry.toFile())) {
+                /* Check the whole entry before changing anything. */
+                byte[] buf = new byte[8192];
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e
+                    .hasMoreElements();) {
+                    try (InputStream in = zip.getInputStream(e.nextElement())) {
+                        while (in.read(buf) >= 0)
+                            ;
+                    }
+                }
+                restore(zip, outputs);
+                Files.setLastModifiedTime(entry, FileTime
+                    .fromMillis(System.currentTimeMillis()));
+                System.err.println("  Restored from build cache");
+                return;
+            } catch (IOException ex) {
+                System.err.printf("  Unusable build cache entry: %s%n",
+                                  ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        /* The cache is only an optimization, so failure to store is
+         * not an error. */
+        try {
+            final String key;
+            try {
+                key = new String(Files.readAllBytes(keyFile),
+                                 StandardCharsets.UTF_8).trim();
+            } catch (NoSuchFileException ex) {
+                return;
+            }
+            Path entry = dir.resolve(key + ".zip");
+            if (Files.exists(entry)) {
+                Files.setLastModifiedTime(entry, FileTime
+                    .fromMillis(System.currentTimeMillis()));
+                return;
+            }
+            Path tmp = Files.createTempFile(dir, "tmp-", null);
+            try {
+                try (ZipOutputStream out =
+                    new ZipOutputStream(Files.newOutputStream(tmp))) {
+                    store(out, outputs);
+                }
+                try {
+                    Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmp, entry,
+                               StandardCopyOption.REPLACE_EXISTING);
+                }
+                tmp = null;
+            } finally {
+                if (tmp != null) Files.deleteIfExists(tmp);
+            }
+            trim(dir, limit);
+        } catch (IOException ex) {
+            System.err.printf("  Not stored in build cache: %s%n",
+                              ex.getMessage());
+        }
+    }
+
+    /**
+     * Add a description of a file or directory to the key.
+     */
+    private static void describe(List<String> keyParts, Path path)
+        throws IOException {
+        if (Files.isDirectory(path)) {
+            keyParts.add("d " + path);
+            for (Path file : files(path))
+                keyParts.add("  " + path.relativize(file) + " "
+                    + IncrementalState.digest(Files.readAllBytes(file)));
+        } else if (Files.isRegularFile(path)) {
+            keyParts.add("f " + path + " "
+                + IncrementalState.digest(Files.readAllBytes(path)));
+        } else {
+            keyParts.add("- " + path);
+        }
+    }
+
+    /**
+     * List the regular files within a directory, in a fixed order.
+     */
+    private static List<Path> files(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            return walk.filter(Files::isRegularFile).sorted()
+                .collect(Collectors.toList());
+        } catch (NoSuchFileException ex) {
+            return new ArrayList<>();
+        }
+    }
+
+    private static void store(ZipOutputStream out, List<Output> outputs)
+        throws IOException {
+        for (int i = 0; i < outputs.size(); i++) {
+            Output output = outputs.get(i);
+            switch (output.kind) {
+            case "-file":
+                if (Files.isRegularFile(output.path))
+                    add(out, Integer.toString(i), output.path);
+                break;
+
+            case "-tree":
+                for (Path file : files(output.path))
+                    add(out, i + "/" + output.path.relativize(file), file);
+                break;
+
+            case "-list":
+                for (String name : Files
+                    .readAllLines(output.list, JardepsCompiler.TEXT_ENCODING)) {
+                    if (name.isEmpty()) continue;
+                    Path file = output.path.resolve(name);
+                    if (Files.isRegularFile(file))
+                        add(out, i + "/" + name, file);
+                }
+                break;
+            }
+        }
+    }
+
+    private static void add(ZipOutputStream out, String name, Path file)
+        throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        Files.copy(file, out);
+        out.closeEntry();
+    }
+
+    /**
+     * Restore outputs from an entry. Each file or directory is first
+     * extracted to a sibling, so that a failure leaves the outputs as
+     * they were. Files of a listed directory other than classes are
+     * carried over to the sibling.
+     */
+    private static void restore(ZipFile zip, List<Output> outputs)
+        throws IOException {
+        List<Path> staged = new ArrayList<>();
+        List<Path> targets = new ArrayList<>();
+        boolean extracted = false;
+        try {
+            for (int i = 0; i < outputs.size(); i++) {
+                Output output = outputs.get(i);
+                switch (output.kind) {
+                case "-file":
+                    ZipEntry entry = zip.getEntry(Integer.toString(i));
+                    if (entry == null) break;
+                    Path file = sibling(output.path, false);
+                    staged.add(file);
+                    targets.add(output.path);
+                    extract(zip, entry, file);
+                    break;
+
+                case "-tree":
+                case "-list":
+                    Path dir = sibling(output.path, true);
+                    staged.add(dir);
+                    targets.add(output.path);
+                    if (output.kind.equals("-list")) {
+                        for (Path old : files(output.path)) {
+                            if (old.toString().endsWith(".class")) continue;
+                            carry(old, dir
+                                .resolve(output.path.relativize(old)));
+                        }
+                    }
+                    String prefix = i + "/";
+                    for (Enumeration<? extends ZipEntry> e = zip.entries(); e
+                        .hasMoreElements();) {
+                        ZipEntry item = e.nextElement();
+                        if (!item.getName().startsWith(prefix)) continue;
+                        extract(zip, item, dir.resolve(item.getName()
+                            .substring(prefix.length())));
+                    }
+                    break;
+                }
+            }
+            extracted = true;
+        } finally {
+            if (!extracted) {
+                for (Path path : staged)
+                    removeTree(path);
+            }
+        }
+
+        /* Now replace the outputs. */
+        for (int i = 0; i < outputs.size(); i++) {
+            Output output = outputs.get(i);
+            if (output.kind.equals("-discard")
+                || (output.kind.equals("-file")
+                    && !targets.contains(output.path)))
+                Files.deleteIfExists(output.path);
+        }
+        for (int i = 0; i < staged.size(); i++) {
+            Path target = targets.get(i);
+            Path old = null;
+            if (Files.isDirectory(target)) {
+                old = sibling(target, true);
+                Files.delete(old);
+                Files.move(target, old);
+            }
+            try {
+                Files.move(staged.get(i), target,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(staged.get(i), target,
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (old != null) removeTree(old);
+        }
+    }
+
+    /**
+     * Create an empty file or directory beside another, to be moved
+     * into its place.
+     */
+    private static Path sibling(Path path, boolean dir) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        String prefix = path.getFileName() + ".restore-";
+        return dir ? Files.createTempDirectory(parent, prefix)
+            : Files.createTempFile(parent, prefix, null);
+    }
+
+    /**
+     * Link a file into a new place, or copy it with its attributes if
+     * it cannot be linked, so that its modification time is kept.
+     */
+    private static void carry(Path from, Path to) throws IOException {
+        Files.createDirectories(to.getParent());
+        try {
+            Files.createLink(to, from);
+        } catch (IOException | UnsupportedOperationException ex) {
+            Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it.
+     */
+    private static void removeTree(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path item : walk.sorted(Comparator.reverseOrder())
+                .collect(Collectors.toList()))
+                Files.delete(item);
+        }
+    }
+
+    private static void extract(ZipFile zip, ZipEntry entry, Path file)
+        throws IOException {
+        Path parent = file.getParent();
+        if (parent != null) Files.createDirectories(parent);
+        try (InputStream in = zip.getInputStream(entry);
+             OutputStream out = Files.newOutputStream(file)) {
+            in.transferTo(out);
+        }
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is within
+     * its limit.
+     */
+    private static void trim(Path dir, long limit) throws IOException {
+        class Item {
+            final Path path;
+            final long size;
+            final long time;
+
+            Item(Path path, BasicFileAttributes attrs) {
+                this.path = path;
+                this.size = attrs.size();
+                this.time = attrs.lastModifiedTime().toMillis();
+            }
+        }
+        List<Item> items = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> entries =
+            Files.newDirectoryStream(dir, "*.zip")) {
+            for (Path path : entries) {
+                try {
+                    Item item = new Item(path, Files
+                        .readAttributes(path, BasicFileAttributes.class));
+                    items.add(item);
+                    total += item.size;
+                } catch (IOException ex) {
+                    /* Another process might have removed it. */
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            /* Another process is probably trimming. */
+            return;
+        }
+        if (total <= limit) return;
+
+        /* Remove the oldest entries first. */
+        items.sort(Comparator.comparingLong(i -> i.time));
+        for (Item item : items) {
+            if (total <= limit) break;
+            Files.deleteIfExists(item.path);
+            total -= item.size;
+        }
+    }
+}
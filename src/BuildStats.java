@@ -0,0 +1,156 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the time spent in each phase of a compilation, and
+ * counts of what was processed. The {@code total} phase spans the
+ * whole compilation. The others do not overlap each other, but need
+ * not cover all of it, so only {@code total} gives the cost of a
+ * compilation. In particular, generated classes are analysed (phase
+ * {@code analyse}) before, not within, the phases that use the
+ * analyses. A phase entered several times accumulates. CPU times are
+ * of the threads that did the work, so they are unaffected by other
+ * compilations in the same process.
+ *
+ * <p>
+ * The record is written as tab-separated lines, {@code phase NAME
+ * WALL CPU} with times in milliseconds, and {@code count NAME VALUE}.
+ *
+ * @author simpsons
+ */
+final class BuildStats {
+    private static final ThreadMXBean threads =
+        ManagementFactory.getThreadMXBean();
+
+    private final Map<String, LongAdder[]> phases =
+        new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Times a phase on the current thread.
+     */
+    final class Phase implements AutoCloseable {
+        private final String name;
+
+        private final long wallStart = System.nanoTime();
+
+        private final long cpuStart = cpuTime();
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Add the time since the phase was entered.
+         */
+        @Override
+        public void close() {
+            add(name, System.nanoTime() - wallStart, cpuTime() - cpuStart);
+        }
+    }
+
+    /**
+     * Enter a phase.
+     *
+     * @param name the phase's name
+     *
+     * @return an object to close when the phase is left
+     */
+    Phase start(String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * Add time to a phase.
+     *
+     * @param name the phase's name
+     *
+     * @param wall the elapsed time in nanoseconds
+     *
+     * @param cpu the CPU time in nanoseconds
+     */
+    void add(String name, long wall, long cpu) {
+        LongAdder[] times = phases.computeIfAbsent(name, k -> new LongAdder[]
+        { new LongAdder(), new LongAdder() });
+        times[0].add(wall);
+        times[1].add(cpu);
+    }
+
+    /**
+     * Add to a counter.
+     *
+     * @param name the counter's name
+     *
+     * @param amount the amount to add
+     */
+    void count(String name, long amount) {
+        counts.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Get the CPU time of the current thread.
+     *
+     * @return the CPU time in nanoseconds, or 0 if it is not available
+     */
+    static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported()
+            ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Write the record, including the peak heap usage of the process.
+     *
+     * @param file the destination
+     */
+    void write(File file) throws IOException {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory
+            .getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        try (PrintWriter out = JardepsCompiler.textWriter(file)) {
+            for (Map.Entry<String, LongAdder[]> entry : new TreeMap<>(phases)
+                .entrySet()) {
+                LongAdder[] times = entry.getValue();
+                out.printf(Locale.ROOT, "phase\t%s\t%.3f\t%.3f%n",
+                           entry.getKey(), times[0].sum() / 1e6,
+                           times[1].sum() / 1e6);
+            }
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counts)
+                .entrySet())
+                out.printf(Locale.ROOT, "count\t%s\t%d%n", entry.getKey(),
+                           entry.getValue().sum());
+            out.printf(Locale.ROOT, "count\tpeak-heap\t%d%n", peakHeap);
+        }
+    }
+}
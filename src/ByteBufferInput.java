@@ -0,0 +1,210 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads big-endian data sequentially from a byte buffer, presenting it
+ * to parsers as a {@link DataInput}. This adapter keeps its own cursor
+ * and fetches each value from the buffer at that absolute index, so
+ * the caller's buffer position is not disturbed, and skipping just
+ * advances the cursor. Strings consisting only of ASCII characters are
+ * decoded without going through the general modified-UTF-8 decoder.
+ *
+ * @author simpsons
+ */
+final class ByteBufferInput implements DataInput {
+    private final ByteBuffer buf;
+    private final int limit;
+    private int pos;
+
+    /**
+     * Prepare to read the remaining content of a buffer.
+     *
+     * @param buf the buffer to read from
+     */
+    public ByteBufferInput(ByteBuffer buf) {
+        this.buf = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.pos = buf.position();
+        this.limit = buf.limit();
+    }
+
+    /**
+     * Map a file into memory.
+     *
+     * @param path the file to map
+     *
+     * @return a read-only buffer of the file's contents
+     */
+    public static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+            return chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+        }
+    }
+
+    /**
+     * Get the offset of the next byte to be read.
+     */
+    public int position() {
+        return pos;
+    }
+
+    private int advance(int amount) throws EOFException {
+        int at = pos;
+        if (amount > limit - at) {
+            pos = limit;
+            throw new EOFException();
+        }
+        pos = at + amount;
+        return at;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        buf.get(advance(len), b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        if (n <= 0) return 0;
+        int got = Math.min(n, limit - pos);
+        pos += got;
+        return got;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return buf.get(advance(1)) != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return buf.get(advance(1));
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return buf.get(advance(1)) & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return buf.getShort(advance(2));
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return buf.getShort(advance(2)) & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return buf.getChar(advance(2));
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return buf.getInt(advance(4));
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return buf.getLong(advance(8));
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return buf.getFloat(advance(4));
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return buf.getDouble(advance(8));
+    }
+
+    /**
+     * Read bytes up to the end of a line, converting each to a
+     * character without decoding. A line ends at {@code '\n'},
+     * {@code '\r'}, {@code "\r\n"} or the end of the buffer.
+     *
+     * @return the line without its terminator, or {@code null} if the
+     * end of the buffer has already been reached
+     */
+    @Override
+    public String readLine() {
+        if (pos >= limit) return null;
+        final int start = pos;
+        int end = start;
+        while (end < limit) {
+            byte b = buf.get(end);
+            if (b == '\n' || b == '\r') break;
+            end++;
+        }
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        pos = end;
+        if (pos < limit && buf.get(pos++) == '\r' && pos < limit
+            && buf.get(pos) == '\n') pos++;
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        /* Check for a string of plain ASCII, which is the usual
+         * case. */
+        if (limit - pos >= 2) {
+            final int len = buf.getShort(pos) & 0xffff;
+            final int start = pos + 2;
+            if (len <= limit - start) {
+                boolean ascii = true;
+                for (int i = 0; ascii && i < len; i++) {
+                    byte b = buf.get(start + i);
+                    ascii = b > 0;
+                }
+                if (ascii) {
+                    pos = start + len;
+                    if (buf.hasArray())
+                        return new String(buf.array(),
+                                          buf.arrayOffset() + start, len,
+                                          StandardCharsets.ISO_8859_1);
+                    byte[] bytes = new byte[len];
+                    buf.get(start, bytes);
+                    return new String(bytes, StandardCharsets.ISO_8859_1);
+                }
+            }
+        }
+
+        /* Use the general decoder for anything else. */
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -20,6 +20,8 @@
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -108,6 +110,18 @@ public final class ClassAnalysis {
         return clid;
     }
 
+    /**
+     * Get the direct supertypes of the class currently described by
+     * this object.
+     * 
+     * @param into the destination for the superclass, if any, and the
+     * implemented interfaces
+     */
+    public void getSupertypes(Collection<? super ClassId> into) {
+        if (superclass != null) into.add(superclass);
+        into.addAll(interfaces);
+    }
+
     /**
      * Get the major version number of the classfile format represented
      * the currently described class.
@@ -168,6 +182,53 @@ public final class ClassAnalysis {
         return classLine.toString();
     }
 
+    /**
+     * Receives profile lines of a class.
+     */
+    private interface ProfileSink {
+        /**
+         * Accept a profile line.
+         * 
+         * @param key identifies the class or member described by the
+         * line
+         * 
+         * @param kind the kind of entity described by the line
+         * 
+         * @param line the line
+         * 
+         * @param isPublic whether the line belongs in the public
+         * profile as well as the package-private one
+         */
+        void accept(String key, String kind, String line, boolean isPublic);
+    }
+
+    /**
+     * Kind of profile entry describing a class
+     */
+    public static final String CLASS_KIND = "class";
+
+    /**
+     * Kind of profile entry describing a field
+     */
+    public static final String FIELD_KIND = "field";
+
+    /**
+     * Kind of profile entry describing a field with a constant value,
+     * which compilers copy into classes that use it
+     */
+    public static final String CONSTANT_KIND = "constant";
+
+    /**
+     * Kind of profile entry describing a method with a body
+     */
+    public static final String METHOD_KIND = "method";
+
+    /**
+     * Kind of profile entry describing an abstract method, which
+     * subclasses must implement
+     */
+    public static final String ABSTRACT_KIND = "abstract";
+
     /**
      * Create the public and package-private profiles of this class.
      * 
@@ -179,17 +240,127 @@ public final class ClassAnalysis {
     public void
         createProfiles(Collection<? super String> publicMemberLines,
                        Collection<? super String> packageMemberLines) {
+        generateProfiles((key, kind, line, isPublic) -> {
+            packageMemberLines.add(line);
+            if (isPublic) publicMemberLines.add(line);
+        });
+    }
+
+    /**
+     * Create the structured public profile of this class. Each entry
+     * consists of four tab-separated fields: a key identifying the
+     * class or member, its kind ({@value #CLASS_KIND},
+     * {@value #FIELD_KIND}, {@value #CONSTANT_KIND},
+     * {@value #METHOD_KIND} or {@value #ABSTRACT_KIND}), the
+     * space-separated internal names of the direct supertypes of a
+     * class (empty for members), and its line in the public profile.
+     * Class keys are internal class names. Field keys are the class
+     * key, a dot and the field name. Method keys are the class key, a
+     * dot, the method name and its erased descriptor.
+     * 
+     * @param publicEntries the structured public profile to be added
+     * to
+     */
+    public void
+        createStructuredProfile(Collection<? super String> publicEntries) {
+        StringBuilder supers = new StringBuilder();
+        if (superclass != null) supers.append(superclass);
+        for (ClassId iface : interfaces) {
+            if (supers.length() > 0) supers.append(' ');
+            supers.append(iface);
+        }
+        generateProfiles((key, kind, line, isPublic) -> {
+            if (!isPublic) return;
+            publicEntries.add(key + '\t' + kind + '\t'
+                + (CLASS_KIND.equals(kind) ? supers : "") + '\t' + line);
+        });
+    }
+
+    /**
+     * Create the profile lines of this class's fields with constant
+     * values, whether public or package-private. Compilers copy these
+     * values into the classes that use them.
+     * 
+     * @param constantLines the lines to be added to
+     */
+    public void createConstantProfile(Collection<? super String> constantLines) {
+        generateProfiles((key, kind, line, isPublic) -> {
+            if (CONSTANT_KIND.equals(kind)) constantLines.add(line);
+        });
+    }
+
+    /**
+     * Prefix of a usage entry naming a class
+     */
+    public static final String USED_CLASS = "class ";
+
+    /**
+     * Prefix of a usage entry naming a member, as a field name, or as
+     * a method name followed by its erased descriptor
+     */
+    public static final String USED_MEMBER = "member ";
+
+    /**
+     * Get the classes and members that this class might depend on.
+     * This over-approximates, as some uses leave no precise trace.
+     * Classes include those named in descriptors and signatures, as
+     * well as those directly referenced. Members include every method
+     * referenced or declared (so that overrides are detected), and
+     * every text that could be a field name, as annotations refer to
+     * enumeration constants only by name.
+     * 
+     * @param into the destination for usage entries, each beginning
+     * with {@value #USED_CLASS} or {@value #USED_MEMBER}
+     */
+    public void getUsage(Collection<? super String> into) {
+        for (ClassId ref : constantPool.getClasses()) {
+            ref = ref.baseType();
+            if (ref == null) continue;
+            into.add(USED_CLASS + ref);
+        }
+        for (String text : constantPool.getTexts()) {
+            if (isIdentifier(text)) into.add(USED_MEMBER + text);
+
+            /* Pick out class names from descriptors and signatures.
+             * An 'L' within a name yields a spurious extra name, which
+             * does no harm. */
+            for (int start = text.indexOf('L'); start >= 0;
+                 start = text.indexOf('L', start + 1)) {
+                int end = start + 1;
+                while (end < text.length()
+                    && ";<>.".indexOf(text.charAt(end)) < 0)
+                    end++;
+                if (end == text.length() || end == start + 1) continue;
+                into.add(USED_CLASS + text.substring(start + 1, end));
+            }
+        }
+        for (NameAndType nat : constantPool.getNamesAndTypes()) {
+            if (nat.name == null || nat.type == null) continue;
+            if (nat.type.startsWith("("))
+                into.add(USED_MEMBER + nat.name + nat.type);
+        }
+        for (MemberEntry entry : methods)
+            into.add(USED_MEMBER + entry.name() + entry.rawDescriptor());
+    }
+
+    private static boolean isIdentifier(String text) {
+        if (text.isEmpty()) return false;
+        if (!Character.isJavaIdentifierStart(text.charAt(0))) return false;
+        for (int i = 1; i < text.length(); i++)
+            if (!Character.isJavaIdentifierPart(text.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private void generateProfiles(ProfileSink sink) {
         final String classLine = getProfileClassLine();
         /* We don't add synthetic or anonymous classes to signature
          * files. */
         if (!anonymous && !synthetic && visibility.isVisible()) {
-            /* Add the class line to the package-private signature. */
-            packageMemberLines.add(classLine.toString());
-
-            if (visibility.isPublic()) {
-                /* Add the class line to the public signature. */
-                publicMemberLines.add(classLine.toString());
-            }
+            /* Add the class line to the package-private signature, and
+             * to the public signature if public. */
+            sink.accept(clid.toString(), CLASS_KIND, classLine,
+                        visibility.isPublic());
         }
 
         /* Process the fields. */
@@ -234,16 +405,12 @@ public final class ClassAnalysis {
             for (String annot : entry.annotations())
                 if (annot != null) line.append(' ').append(annot);
 
-            /* Add the signature line to the package-private
-             * signature. */
-            packageMemberLines.add(line.toString());
-
-            /* Don't bother with anything more if this member is not
-             * effectively public or protected. */
-            if (!computedVisibility.isPublic()) continue;
-
-            /* Add the signature line to the public signature. */
-            publicMemberLines.add(line.toString());
+            /* Add the signature line to the package-private signature,
+             * and to the public signature if this member is effectively
+             * public or protected. */
+            sink.accept(clid + "." + entry.name(),
+                        entry.hasValue() ? CONSTANT_KIND : FIELD_KIND,
+                        line.toString(), computedVisibility.isPublic());
         }
 
         /* Process the methods. */
@@ -312,17 +479,39 @@ public final class ClassAnalysis {
                 line.append(entry.annotationDefault());
             }
 
-            /* Add the signature line to the package-private
-             * signature. */
-            packageMemberLines.add(line.toString());
+            /* Add the signature line to the package-private signature,
+             * and to the public signature if this member is effectively
+             * public or protected. */
+            sink.accept(clid + "." + entry.name() + entry.rawDescriptor(),
+                        (entry.flags() & Constants.ACC_ABSTRACT) != 0
+                            ? ABSTRACT_KIND : METHOD_KIND,
+                        line.toString(), computedVisibility.isPublic());
+        }
+    }
 
-            /* Don't bother with anything more if this member is not
-             * effectively public or protected. */
-            if (!computedVisibility.isPublic()) continue;
+    /**
+     * Load a class from a buffer.
+     * 
+     * @param clid the id of the class expected in the buffer, or null
+     * to disable checking
+     * 
+     * @param buf the raw classfile data, from the buffer's position to
+     * its limit
+     */
+    public void load(ClassId clid, ByteBuffer buf) throws IOException {
+        load(clid, new ByteBufferInput(buf));
+    }
 
-            /* Add the signature line to the public signature. */
-            publicMemberLines.add(line.toString());
-        }
+    /**
+     * Load a class from a file by mapping it into memory.
+     * 
+     * @param clid the id of the class expected in the file, or null to
+     * disable checking
+     * 
+     * @param path the classfile
+     */
+    public void load(ClassId clid, Path path) throws IOException {
+        load(clid, ByteBufferInput.map(path));
     }
 
     /**
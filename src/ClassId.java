@@ -19,9 +19,11 @@
  */
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Immutably identifies a class type. This includes plain classes and
@@ -68,23 +70,115 @@ class ClassId implements Comparable<ClassId> {
      */
     public static ClassId forName(String text) {
         if (text == null) return null;
-        Matcher m = arrayPattern.matcher(text);
-        if (!m.matches())
-            throw new IllegalArgumentException("Not class: " + text);
-        assert m.matches();
-        if (m.group(5) != null) return new ClassId(0, m.group(5));
-        if (m.group(3) != null)
-            return new ClassId(m.group(3).length(), m.group(4).charAt(0));
-        return new ClassId(m.group(1).length(), m.group(2));
+        ClassId result = parsed.get(text);
+        if (result != null) return result;
+        result = intern(parse(text));
+        if (parsed.size() >= INTERN_LIMIT) parsed.clear();
+        parsed.putIfAbsent(text, result);
+        return result;
     }
 
-    private static final Pattern arrayPattern = Pattern
-        .compile("^(?:(\\[+)L(.*);)|(?:(\\[+)([ZCSIJBFD]))|([^\\[].*)$");
+    /**
+     * Parse a class identifier without consulting the interning table.
+     * This accepts exactly what the
+     * regular expression <code>^(?:(\[+)L(.*);)|(?:(\[+)([ZCSIJBFD]))|([^\[].*)$</code>
+     * would.
+     */
+    private static ClassId parse(String text) {
+        final int len = text.length();
+        if (len == 0) throw notClass(text);
+
+        /* Recognize a plain class name. */
+        if (text.charAt(0) != '[') {
+            if (hasLineTerminator(text, 1, len)) throw notClass(text);
+            return new ClassId(0, text);
+        }
+
+        /* Count the array dimensions. */
+        int depth = 1;
+        while (depth < len && text.charAt(depth) == '[')
+            depth++;
+        if (depth == len) throw notClass(text);
+
+        /* Recognize an array of objects. */
+        final char c = text.charAt(depth);
+        if (c == 'L' && len - depth >= 2 && text.charAt(len - 1) == ';'
+            && !hasLineTerminator(text, depth + 1, len - 1))
+            return new ClassId(depth, text.substring(depth + 1, len - 1));
+
+        /* Recognize an array of primitives. */
+        if (depth + 1 == len && PRIMITIVES.indexOf(c) >= 0)
+            return new ClassId(depth, c);
+
+        throw notClass(text);
+    }
+
+    private static final String PRIMITIVES = "ZCSIJBFD";
+
+    private static IllegalArgumentException notClass(String text) {
+        return new IllegalArgumentException("Not class: " + text);
+    }
 
-    private static final Pattern anonPattern = Pattern.compile(".*\\$[0-9]");
+    /**
+     * Determine whether part of a string contains a character that a
+     * regular expression's <code>.</code> would not match.
+     */
+    private static boolean hasLineTerminator(String text, int start,
+                                             int end) {
+        for (int i = start; i < end; i++) {
+            switch (text.charAt(i)) {
+            case '\n':
+            case '\r':
+            case '\u0085':
+            case '\u2028':
+            case '\u2029':
+                return true;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Determine whether a leaf name ends with a dollar and a digit.
+     */
     private static boolean isAnonymous(String leaf) {
-        return anonPattern.matcher(leaf).matches();
+        final int len = leaf.length();
+        if (len < 2) return false;
+        final char last = leaf.charAt(len - 1);
+        if (last < '0' || last > '9') return false;
+        if (leaf.charAt(len - 2) != '$') return false;
+        return !hasLineTerminator(leaf, 0, len - 2);
+    }
+
+    /**
+     * The largest number of entries to keep in each interning table
+     * before it is cleared
+     */
+    private static final int INTERN_LIMIT = 1 << 16;
+
+    /**
+     * Maps texts given to {@link #forName(String)} to their results.
+     * The canonical text of an identifier is not necessarily accepted
+     * by the parser, so this is kept apart from {@link #interned}.
+     */
+    private static final ConcurrentMap<String, ClassId> parsed =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Maps canonical texts to canonical identifiers.
+     */
+    private static final ConcurrentMap<String, ClassId> interned =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Get the canonical instance of a class identifier.
+     */
+    private static ClassId intern(ClassId clid) {
+        if (interned.size() >= INTERN_LIMIT) interned.clear();
+        ClassId old = interned.putIfAbsent(clid.text, clid);
+        return old == null ? clid : old;
     }
 
     /**
@@ -124,7 +218,31 @@ class ClassId implements Comparable<ClassId> {
      * @param rest This must be a slash-separated class name.
      */
     private ClassId(int depth, String rest) {
-        this(depth, slashSep.split(rest));
+        this(depth, splitName(rest));
+    }
+
+    /**
+     * Split a name at dots and slashes, as {@link String#split(String)}
+     * would.
+     */
+    private static String[] splitName(String name) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        final int len = name.length();
+        for (int i = 0; i < len; i++) {
+            char c = name.charAt(i);
+            if (c != '.' && c != '/') continue;
+            result.add(name.substring(start, i));
+            start = i + 1;
+        }
+        if (start == 0) return new String[] { name };
+        result.add(name.substring(start));
+
+        /* Drop trailing empty parts. */
+        int size = result.size();
+        while (size > 0 && result.get(size - 1).isEmpty())
+            size--;
+        return result.subList(0, size).toArray(new String[size]);
     }
 
     private ClassId(int depth, final String[] parts) {
@@ -158,7 +276,7 @@ class ClassId implements Comparable<ClassId> {
     public ClassId baseType() {
         if (depth == 0) return this;
         if (baseIsPrimitive()) return null;
-        return new ClassId(0, parts);
+        return intern(new ClassId(0, parts));
     }
 
     /**
@@ -181,7 +299,9 @@ class ClassId implements Comparable<ClassId> {
      */
     public ClassId elementType() {
         if (depth == 0) return null;
-        if (depth == 1 && baseIsPrimitive()) return null;
+        if (baseIsPrimitive())
+            return depth == 1 ? null
+                : new ClassId(depth - 1, parts[0].charAt(0));
         return new ClassId(depth - 1, parts);
     }
 
@@ -242,6 +362,7 @@ class ClassId implements Comparable<ClassId> {
     }
 
     public boolean equals(Object o) {
+        if (o == this) return true;
         if (o instanceof ClassId) {
             ClassId other = (ClassId) o;
             return text.equals(other.text);
@@ -251,6 +372,7 @@ class ClassId implements Comparable<ClassId> {
 
     @Override
     public int compareTo(ClassId other) {
+        if (other == this) return 0;
         return text.compareTo(other.text);
     }
 
@@ -264,8 +386,6 @@ class ClassId implements Comparable<ClassId> {
         return text.replace('/', '.');
     }
 
-    private static final Pattern slashSep = Pattern.compile("[./]");
-
     /**
      * Get the top-level class defining this class.
      * 
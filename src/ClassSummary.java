@@ -0,0 +1,264 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Holds the results of analysing a class that contribute to a tree's
+ * by-products, in a form that can be stored and reloaded.
+ *
+ * @author simpsons
+ */
+final class ClassSummary {
+    /**
+     * Identifies the format of profile lines and of the serialized
+     * form. This must be changed whenever either changes, so that
+     * stored summaries are discarded.
+     */
+    static final int FORMAT_VERSION = 4;
+
+    private final ClassId clid;
+    private final List<String> publicMemberLines;
+    private final List<String> packageMemberLines;
+    private final List<String> publicEntries;
+    private final List<String> usage;
+    private final List<String> constantLines;
+    private final List<ClassId> supertypes;
+    private final List<ClassId> runtimeClasses;
+
+    private ClassSummary(ClassId clid, List<String> publicMemberLines,
+                         List<String> packageMemberLines,
+                         List<String> publicEntries, List<String> usage,
+                         List<String> constantLines,
+                         List<ClassId> supertypes,
+                         List<ClassId> runtimeClasses) {
+        this.clid = clid;
+        this.publicMemberLines = publicMemberLines;
+        this.packageMemberLines = packageMemberLines;
+        this.publicEntries = publicEntries;
+        this.usage = usage;
+        this.constantLines = constantLines;
+        this.supertypes = supertypes;
+        this.runtimeClasses = runtimeClasses;
+    }
+
+    /**
+     * Summarize an analysed class.
+     *
+     * @param anal the analysis of the class
+     *
+     * @return the class's summary
+     */
+    public static ClassSummary of(ClassAnalysis anal) {
+        List<String> pub = new ArrayList<>();
+        List<String> pkg = new ArrayList<>();
+        anal.createProfiles(pub, pkg);
+        List<String> struct = new ArrayList<>();
+        anal.createStructuredProfile(struct);
+        Collection<String> used = new LinkedHashSet<>();
+        anal.getUsage(used);
+        List<String> consts = new ArrayList<>();
+        anal.createConstantProfile(consts);
+        List<ClassId> supers = new ArrayList<>();
+        anal.getSupertypes(supers);
+        Collection<ClassId> refs = new LinkedHashSet<>();
+        anal.getRuntimeClassReferences(refs);
+        return new ClassSummary(anal.getClassId(), pub, pkg, struct,
+                                new ArrayList<>(used), consts, supers,
+                                new ArrayList<>(refs));
+    }
+
+    /**
+     * Get the id of the summarized class.
+     */
+    public ClassId getClassId() {
+        return clid;
+    }
+
+    /**
+     * Get the name of the package of the summarized class.
+     *
+     * @return the dot-separated package name, or {@code null} if the
+     * class is in the default package
+     */
+    public String getPackageName() {
+        return clid.getPackageName();
+    }
+
+    /**
+     * Get the class's lines for the public profile.
+     */
+    public List<String> getPublicMemberLines() {
+        return Collections.unmodifiableList(publicMemberLines);
+    }
+
+    /**
+     * Get the class's lines for the package-private profile.
+     */
+    public List<String> getPackageMemberLines() {
+        return Collections.unmodifiableList(packageMemberLines);
+    }
+
+    /**
+     * Get the class's entries for the structured public profile.
+     * 
+     * @see ClassAnalysis#createStructuredProfile(Collection)
+     */
+    public List<String> getPublicEntries() {
+        return Collections.unmodifiableList(publicEntries);
+    }
+
+    /**
+     * Get the classes and members that the class might depend on.
+     * 
+     * @see ClassAnalysis#getUsage(Collection)
+     */
+    public List<String> getUsage() {
+        return Collections.unmodifiableList(usage);
+    }
+
+    /**
+     * Get the class's lines for fields with constant values.
+     * 
+     * @see ClassAnalysis#createConstantProfile(Collection)
+     */
+    public List<String> getConstantLines() {
+        return Collections.unmodifiableList(constantLines);
+    }
+
+    /**
+     * Get the class's direct supertypes.
+     */
+    public List<ClassId> getSupertypes() {
+        return Collections.unmodifiableList(supertypes);
+    }
+
+    /**
+     * Get the base types of the classes referenced by this class's
+     * constant pool.
+     */
+    public List<ClassId> getRuntimeClasses() {
+        return Collections.unmodifiableList(runtimeClasses);
+    }
+
+    /**
+     * Write this summary.
+     *
+     * @param out the destination
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, clid.toString());
+        writeStrings(out, publicMemberLines);
+        writeStrings(out, packageMemberLines);
+        writeStrings(out, publicEntries);
+        writeStrings(out, usage);
+        writeStrings(out, constantLines);
+        writeClasses(out, supertypes);
+        writeClasses(out, runtimeClasses);
+    }
+
+    /**
+     * Read a summary.
+     *
+     * @param in the source
+     *
+     * @return the summary read
+     *
+     * @throws IOException if the data could not be read, or were in
+     * the wrong format
+     */
+    public static ClassSummary read(DataInput in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("summary version " + version);
+        ClassId clid = ClassId.forName(readString(in));
+        List<String> pub = readStrings(in);
+        List<String> pkg = readStrings(in);
+        List<String> struct = readStrings(in);
+        List<String> used = readStrings(in);
+        List<String> consts = readStrings(in);
+        List<ClassId> supers = readClasses(in);
+        List<ClassId> refs = readClasses(in);
+        return new ClassSummary(clid, pub, pkg, struct, used, consts, supers,
+                                refs);
+    }
+
+    /* Profile lines are not limited in length, so don't use writeUTF.
+     * They might also contain unpaired surrogates (from string
+     * constants), so write UTF-16 rather than encoding them. */
+    private static void writeString(DataOutput out, String text)
+        throws IOException {
+        out.writeInt(text.length());
+        out.writeChars(text);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final int len = in.readInt();
+        if (len < 0 || len > MAX_STRING)
+            throw new IOException("bad string length " + len);
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++)
+            chars[i] = in.readChar();
+        return new String(chars);
+    }
+
+    private static void writeStrings(DataOutput out, List<String> texts)
+        throws IOException {
+        out.writeInt(texts.size());
+        for (String text : texts)
+            writeString(out, text);
+    }
+
+    private static void writeClasses(DataOutput out, List<ClassId> clids)
+        throws IOException {
+        out.writeInt(clids.size());
+        for (ClassId clid : clids)
+            writeString(out, clid.toString());
+    }
+
+    private static final int MAX_STRING = 1 << 24;
+
+    private static List<String> readStrings(DataInput in)
+        throws IOException {
+        final int count = in.readInt();
+        if (count < 0) throw new IOException("bad count " + count);
+        List<String> result = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++)
+            result.add(readString(in));
+        return result;
+    }
+
+    private static List<ClassId> readClasses(DataInput in)
+        throws IOException {
+        final int count = in.readInt();
+        if (count < 0) throw new IOException("bad count " + count);
+        List<ClassId> result = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++)
+            result.add(ClassId.forName(readString(in)));
+        return result;
+    }
+}
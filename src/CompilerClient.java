@@ -0,0 +1,225 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes a compilation request to a {@link CompilerDaemon}, starting
+ * one if necessary.
+ *
+ * <p>
+ * Usage:
+ * {@code CompilerClient -socket SOCKET [-idle SECONDS] [-threads N] [-stop] [LAUNCH...] -- ARGS...}
+ *
+ * <p>
+ * {@code LAUNCH} is the command (typically {@code java} with a class
+ * path) that runs a named main class with the compiler on its class
+ * path. If no daemon answers on {@code SOCKET}, it is used to start
+ * one. {@code ARGS} are passed to {@link JardepsCompiler}. If the
+ * daemon cannot be reached or declines the request, the compilation
+ * is performed in this process instead. The daemon runs any external
+ * commands of the compilation in this process's environment. If the daemon fails after
+ * accepting the request, the failure is reported instead, as the
+ * compilation might already have been done.
+ *
+ * <p>
+ * {@code SECONDS} is passed to a launched daemon as its idle period,
+ * with 0 meaning that it waits until stopped, and {@code N} as the
+ * number of requests it serves at once.
+ *
+ * <p>
+ * With {@code -stop}, any daemon on the socket is asked to terminate,
+ * and nothing is compiled.
+ */
+public class CompilerClient {
+    /**
+     * How long to wait for a newly launched daemon to start listening
+     */
+    private static final long START_TIMEOUT = 10000;
+
+    private static SocketChannel connect(Path socket) {
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static SocketChannel launch(Path socket, long idle,
+                                        String threads,
+                                        List<String> launcher)
+        throws IOException,
+            InterruptedException {
+        List<String> cmd = new ArrayList<>(launcher);
+        cmd.add(CompilerDaemon.class.getName());
+        cmd.add(socket.toString());
+        cmd.add(Long.toString(idle));
+        if (threads != null) cmd.add(threads);
+        ProcessBuilder builder = new ProcessBuilder(cmd);
+        builder.environment().putAll(System.getenv());
+        File log = new File(socket.toString() + ".log");
+        builder.redirectInput(ProcessBuilder.Redirect
+            .from(new File("/dev/null")));
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+        builder.redirectErrorStream(true);
+        Process proc = builder.start();
+
+        final long expiry = System.currentTimeMillis() + START_TIMEOUT;
+        do {
+            Thread.sleep(50);
+            SocketChannel conn = connect(socket);
+            if (conn != null) return conn;
+        } while (proc.isAlive() && System.currentTimeMillis() < expiry);
+
+        /* The daemon might have exited because another got in first. */
+        return connect(socket);
+    }
+
+    /**
+     * Send a request, and relay the response.
+     *
+     * @return the exit status, or {@code null} if the request was
+     * declined or could not be sent
+     *
+     * @throws IOException if the response could not be read, in which
+     * case the daemon might have acted on the request
+     */
+    private static Integer request(SocketChannel conn, String command,
+                                   String[] args)
+        throws IOException {
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Channels
+                .newOutputStream(conn)));
+        try {
+            out.writeUTF(CompilerDaemon.PROTOCOL);
+            out.writeUTF(command);
+            out.writeUTF(CompilerDaemon.currentDirectory());
+            Map<String, String> env = System.getenv();
+            out.writeInt(env.size());
+            for (Map.Entry<String, String> entry : env.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            out.writeInt(args.length);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+        } catch (IOException ex) {
+            /* The daemon cannot have received the whole request, so
+             * it has not acted on it. */
+            System.err.printf("  Compiler daemon unreachable: %s%n", ex);
+            return null;
+        }
+
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(Channels
+                .newInputStream(conn)));
+        while (true) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case CompilerDaemon.OUTPUT_FRAME:
+                System.err.print(in.readUTF());
+                System.err.flush();
+                break;
+
+            case CompilerDaemon.EXIT_FRAME:
+                return in.readInt();
+
+            case CompilerDaemon.REJECT_FRAME:
+                System.err.printf("  Compiler daemon: %s%n", in.readUTF());
+                return null;
+
+            default:
+                throw new IOException("bad frame " + tag);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path socket = null;
+        long idle = 300;
+        String threads = null;
+        boolean stop = false;
+        List<String> launcher = new ArrayList<>();
+
+        int i = 0;
+        while (i < args.length && !"--".equals(args[i])) {
+            if ("-socket".equals(args[i])) {
+                socket = Paths.get(args[++i]);
+            } else if ("-idle".equals(args[i])) {
+                idle = Long.parseLong(args[++i]);
+            } else if ("-threads".equals(args[i])) {
+                threads = args[++i];
+            } else if ("-stop".equals(args[i])) {
+                stop = true;
+            } else {
+                launcher.add(args[i]);
+            }
+            i++;
+        }
+        if (socket == null) {
+            System.err.println("CompilerClient: -socket required");
+            System.exit(1);
+        }
+        String[] compilerArgs =
+            i < args.length ? Arrays.copyOfRange(args, i + 1, args.length)
+                : new String[0];
+
+        if (stop) {
+            try (SocketChannel conn = connect(socket)) {
+                if (conn != null)
+                    request(conn, CompilerDaemon.STOP_COMMAND, compilerArgs);
+            }
+            return;
+        }
+
+        Integer rc = null;
+        SocketChannel conn = connect(socket);
+        if (conn == null && !launcher.isEmpty())
+            conn = launch(socket, idle, threads, launcher);
+        if (conn != null) {
+            try (SocketChannel c = conn) {
+                rc = request(c, CompilerDaemon.COMPILE_COMMAND, compilerArgs);
+            } catch (IOException ex) {
+                /* The daemon might already have compiled the tree, so
+                 * doing so again could repeat its diagnostics. */
+                System.err.printf("  Compiler daemon failed: %s%n", ex);
+                System.exit(1);
+            }
+        }
+
+        /* Do it ourselves if the daemon is unavailable or declined. */
+        if (rc == null) rc = JardepsCompiler.compile(compilerArgs, null);
+        if (rc != 0) System.exit(rc);
+    }
+}
@@ -0,0 +1,381 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.StandardProtocolFamily;
+import java.net.URISyntaxException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a JVM resident to compile trees on behalf of
+ * {@link CompilerClient}, so that JVM start-up, compiler class loading
+ * and JIT warm-up are paid once per build rather than once per tree.
+ *
+ * <p>
+ * Usage: {@code CompilerDaemon SOCKET IDLE-SECONDS [THREADS]}
+ *
+ * <p>
+ * The daemon listens on a Unix-domain socket. Each connection carries
+ * one request, and is served on a pool of {@code THREADS} threads (by
+ * default, one per processor), so each compilation gets its own
+ * {@link JardepsCompiler} state. Requests beyond that wait for a
+ * thread. The daemon only serves clients running in the same
+ * directory as itself, as the arguments of a request are usually
+ * relative paths. External commands run for a request get the
+ * client's environment. The daemon exits when it has been idle for
+ * the given period (unless it is 0), when asked to stop, or when its
+ * own classes have been rebuilt since it started.
+ *
+ * <p>
+ * A request consists of a protocol identifier, a command, the
+ * client's working directory, the number of environment variables
+ * followed by the name and value of each, and the number of arguments
+ * followed by the arguments, all written with
+ * {@link DataOutputStream#writeUTF} except the counts. The response is a sequence of frames, each a
+ * single-byte tag followed by a payload:
+ *
+ * <dl>
+ *
+ * <dt>{@value #OUTPUT_FRAME}
+ *
+ * <dd>Diagnostic text, to be written to the client's standard error
+ * output.
+ *
+ * <dt>{@value #EXIT_FRAME}
+ *
+ * <dd>The exit status of the compilation, as an integer. This is the
+ * last frame.
+ *
+ * <dt>{@value #REJECT_FRAME}
+ *
+ * <dd>The reason for not processing the request. This is the last
+ * frame, and the client should compile the tree itself.
+ *
+ * </dl>
+ */
+public class CompilerDaemon {
+    static final String PROTOCOL = "jardeps-compiler-2";
+
+    static final String COMPILE_COMMAND = "compile";
+
+    static final String STOP_COMMAND = "stop";
+
+    static final char OUTPUT_FRAME = 'O';
+
+    static final char EXIT_FRAME = 'X';
+
+    static final char REJECT_FRAME = 'R';
+
+    /**
+     * The largest number of characters to send in one output frame,
+     * ensuring that the modified UTF-8 encoding fits in 64KiB
+     */
+    private static final int MAX_FRAME_CHARS = 65535 / 3;
+
+    private final Path socket;
+
+    private final long idleMillis;
+
+    private final int threads;
+
+    private final String workingDirectory;
+
+    private final File codeSource;
+
+    private final long codeStamp;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private volatile boolean stopping = false;
+
+    private final Selector selector;
+
+    private CompilerDaemon(Path socket, long idleMillis, int threads)
+        throws IOException {
+        this.socket = socket;
+        this.idleMillis = idleMillis;
+        this.threads = threads;
+        this.workingDirectory = currentDirectory();
+        this.codeSource = findCodeSource();
+        this.codeStamp = codeSource == null ? 0 : codeSource.lastModified();
+        this.selector = Selector.open();
+    }
+
+    static String currentDirectory() {
+        return Paths.get("").toAbsolutePath().normalize().toString();
+    }
+
+    private static File findCodeSource() {
+        CodeSource src =
+            CompilerDaemon.class.getProtectionDomain().getCodeSource();
+        if (src == null) return null;
+        try {
+            File file = new File(src.getLocation().toURI());
+            return file.isFile() ? file : null;
+        } catch (URISyntaxException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private boolean isStale() {
+        return codeSource != null && codeSource.lastModified() != codeStamp;
+    }
+
+    private void stop() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    private void serve() throws IOException {
+        try (ServerSocketChannel server =
+            ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            try {
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+                ExecutorService executor =
+                    Executors.newFixedThreadPool(threads, r -> {
+                        Thread t = new Thread(r, "jardeps-request");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                while (!stopping) {
+                    selector.select(idleMillis);
+                    selector.selectedKeys().clear();
+                    SocketChannel conn;
+                    while ((conn = server.accept()) != null) {
+                        lastActivity = System.currentTimeMillis();
+                        active.incrementAndGet();
+                        final SocketChannel chan = conn;
+                        executor.execute(() -> handle(chan));
+                    }
+                    if (idleMillis > 0 && active.get() == 0
+                        && System.currentTimeMillis()
+                            - lastActivity >= idleMillis) break;
+                }
+            } finally {
+                Files.deleteIfExists(socket);
+            }
+
+            /* Let outstanding requests finish. */
+            while (active.get() > 0) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void handle(SocketChannel chan) {
+        try (SocketChannel conn = chan) {
+            conn.configureBlocking(true);
+            DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Channels
+                    .newInputStream(conn)));
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Channels
+                    .newOutputStream(conn)));
+            if (!PROTOCOL.equals(in.readUTF())) {
+                reject(out, "protocol mismatch");
+                return;
+            }
+            String command = in.readUTF();
+            String dir = in.readUTF();
+            Map<String, String> env = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                env.put(name, in.readUTF());
+            }
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++)
+                args[i] = in.readUTF();
+
+            if (STOP_COMMAND.equals(command)) {
+                stop();
+                synchronized (out) {
+                    out.writeByte(EXIT_FRAME);
+                    out.writeInt(0);
+                    out.flush();
+                }
+                return;
+            }
+            if (!COMPILE_COMMAND.equals(command)) {
+                reject(out, "unknown command " + command);
+                return;
+            }
+            if (stopping) {
+                reject(out, "daemon is stopping");
+                return;
+            }
+            if (isStale()) {
+                stop();
+                reject(out, "daemon is out of date");
+                return;
+            }
+            if (!workingDirectory.equals(dir)) {
+                reject(out, "daemon is serving " + workingDirectory);
+                return;
+            }
+
+            int rc;
+            PrintWriter err = new PrintWriter(new FrameWriter(out));
+            try {
+                rc = JardepsCompiler.compile(args, err, env);
+            } catch (Exception | Error ex) {
+                ex.printStackTrace(err);
+                rc = 1;
+            }
+            err.flush();
+            synchronized (out) {
+                out.writeByte(EXIT_FRAME);
+                out.writeInt(rc);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            /* The client has probably gone away. */
+        } finally {
+            lastActivity = System.currentTimeMillis();
+            active.decrementAndGet();
+            selector.wakeup();
+        }
+    }
+
+    private static void reject(DataOutputStream out, String reason)
+        throws IOException {
+        synchronized (out) {
+            out.writeByte(REJECT_FRAME);
+            out.writeUTF(reason);
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends diagnostic text to the client in output frames.
+     */
+    private static class FrameWriter extends Writer {
+        private final DataOutputStream out;
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        FrameWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            buffer.append(cbuf, off, len);
+            if (buffer.length() >= MAX_FRAME_CHARS) flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                int pos = 0;
+                while (pos < buffer.length()) {
+                    int end = Math.min(buffer.length(), pos + MAX_FRAME_CHARS);
+                    out.writeByte(OUTPUT_FRAME);
+                    out.writeUTF(buffer.substring(pos, end));
+                    pos = end;
+                }
+                buffer.setLength(0);
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("usage: CompilerDaemon SOCKET IDLE-SECONDS"
+                + " [THREADS]");
+            System.exit(1);
+        }
+        final Path socket = Paths.get(args[0]);
+        final long idleMillis = Long.parseLong(args[1]) * 1000;
+        if (idleMillis < 0) {
+            System.err.println("CompilerDaemon: IDLE-SECONDS must not be"
+                + " negative");
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 2) {
+            try {
+                threads = Integer.parseInt(args[2]);
+            } catch (NumberFormatException ex) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                System.err.println("CompilerDaemon: THREADS must be"
+                    + " positive");
+                System.exit(1);
+            }
+        }
+
+        /* Leave it to another daemon that is already listening, or
+         * remove the remains of a defunct one. */
+        if (Files.exists(socket)) {
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket))
+                    .close();
+                return;
+            } catch (IOException ex) {
+                Files.deleteIfExists(socket);
+            }
+        }
+
+        CompilerDaemon daemon =
+            new CompilerDaemon(socket, idleMillis, threads);
+        try {
+            daemon.serve();
+        } catch (BindException ex) {
+            /* Another daemon beat us to it. */
+            return;
+        }
+    }
+}
@@ -20,95 +20,176 @@
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Map;
+import java.util.List;
 
+/**
+ * Holds a class's constant pool as arrays indexed by slot. Numeric
+ * constants and texts are stored as read; references between entries
+ * are resolved when first requested.
+ */
 class ConstantPool {
-    ConstantPool(Map<Integer, Object> constants,
-                 Map<Integer, NameAndType> nats, Map<Integer, String> texts,
-                 Map<Integer, String> strings, Map<Integer, ClassId> classes,
-                 Map<Integer, Ref> fieldrefs, Map<Integer, Ref> methodrefs,
-                 Map<Integer, Ref> interfaceMethodrefs) {
-        this.constants = constants;
-        this.nats = nats;
-        this.texts = texts;
-        this.strings = strings;
-        this.classes = classes;
-        this.fieldrefs = fieldrefs;
-        this.methodrefs = methodrefs;
-        this.interfaceMethodrefs = interfaceMethodrefs;
+    static final byte CONSTANT_Utf8 = 1;
+    static final byte CONSTANT_Integer = 3;
+    static final byte CONSTANT_Float = 4;
+    static final byte CONSTANT_Long = 5;
+    static final byte CONSTANT_Double = 6;
+    static final byte CONSTANT_Class = 7;
+    static final byte CONSTANT_String = 8;
+    static final byte CONSTANT_Fieldref = 9;
+    static final byte CONSTANT_Methodref = 10;
+    static final byte CONSTANT_InterfaceMethodref = 11;
+    static final byte CONSTANT_NameAndType = 12;
+
+    /**
+     * Create a pool from raw entries.
+     * 
+     * @param tags the tag of each slot, or 0 for unused slots and
+     * entries that are not recorded
+     * 
+     * @param first the first index of each referring entry
+     * 
+     * @param second the second index of each entry referring to two
+     * others
+     * 
+     * @param values the texts and numeric values of each slot, with
+     * other slots to be filled as they are resolved
+     */
+    ConstantPool(byte[] tags, int[] first, int[] second, Object[] values) {
+        this.tags = tags;
+        this.first = first;
+        this.second = second;
+        this.values = values;
     }
 
     static ConstantPool build(DataInput in) throws IOException {
         return new ConstantPoolBuilder().read(in);
     }
 
+    private boolean has(int id, byte tag) {
+        return id >= 0 && id < tags.length && tags[id] == tag;
+    }
+
+    private String textOrNull(int id) {
+        return has(id, CONSTANT_Utf8) ? (String) values[id] : null;
+    }
+
+    private ClassId classOrNull(int id) {
+        if (!has(id, CONSTANT_Class)) return null;
+        ClassId result = (ClassId) values[id];
+        if (result == null)
+            values[id] = result = ClassId.forName(textOrNull(first[id]));
+        return result;
+    }
+
+    private NameAndType natOrNull(int id) {
+        if (!has(id, CONSTANT_NameAndType)) return null;
+        NameAndType result = (NameAndType) values[id];
+        if (result == null)
+            values[id] = result = new NameAndType(textOrNull(first[id]),
+                                                  textOrNull(second[id]));
+        return result;
+    }
+
+    private Ref ref(int id) {
+        Ref result = (Ref) values[id];
+        if (result == null) values[id] = result =
+            new Ref(classOrNull(first[id]), natOrNull(second[id]));
+        return result;
+    }
+
     Object getConstant(int id) {
-        if (!constants.containsKey(id))
-            throw new IllegalArgumentException("constant missing: " + id);
-        return constants.get(id);
+        if (id >= 0 && id < tags.length) {
+            switch (tags[id]) {
+            case CONSTANT_Integer:
+            case CONSTANT_Float:
+            case CONSTANT_Long:
+            case CONSTANT_Double:
+                return values[id];
+
+            case CONSTANT_String:
+                return textOrNull(first[id]);
+
+            case CONSTANT_Class:
+                return classOrNull(id);
+
+            default:
+                break;
+            }
+        }
+        throw new IllegalArgumentException("constant missing: " + id);
     }
 
     NameAndType getNameAndType(int id) {
-        if (!nats.containsKey(id))
+        if (!has(id, CONSTANT_NameAndType))
             throw new IllegalArgumentException("NameAndType missing: " + id);
-        return nats.get(id);
+        return natOrNull(id);
     }
 
     String getString(int id) {
-        if (!strings.containsKey(id))
+        if (!has(id, CONSTANT_String))
             throw new IllegalArgumentException("string missing: " + id);
-        return strings.get(id);
+        return textOrNull(first[id]);
     }
 
     String getText(int id) {
-        if (!texts.containsKey(id))
+        if (!has(id, CONSTANT_Utf8))
             throw new IllegalArgumentException("text missing: " + id);
-        return texts.get(id);
+        return (String) values[id];
     }
 
     Iterable<ClassId> getClasses() {
-        return Collections.unmodifiableCollection(classes.values());
+        List<ClassId> result = new ArrayList<>();
+        for (int id = 1; id < tags.length; id++)
+            if (tags[id] == CONSTANT_Class) result.add(classOrNull(id));
+        return Collections.unmodifiableList(result);
+    }
+
+    Iterable<NameAndType> getNamesAndTypes() {
+        List<NameAndType> result = new ArrayList<>();
+        for (int id = 1; id < tags.length; id++)
+            if (tags[id] == CONSTANT_NameAndType) result.add(natOrNull(id));
+        return Collections.unmodifiableList(result);
+    }
+
+    Iterable<String> getTexts() {
+        List<String> result = new ArrayList<>();
+        for (int id = 1; id < tags.length; id++)
+            if (tags[id] == CONSTANT_Utf8) result.add((String) values[id]);
+        return Collections.unmodifiableList(result);
     }
 
     ClassId getClass(int id) {
-        if (!classes.containsKey(id))
+        if (!has(id, CONSTANT_Class))
             throw new IllegalArgumentException("class missing: " + id);
-        return classes.get(id);
+        return classOrNull(id);
     }
 
     Ref getField(int id) {
-        if (!fieldrefs.containsKey(id))
+        if (!has(id, CONSTANT_Fieldref))
             throw new IllegalArgumentException("field missing: " + id);
-        return fieldrefs.get(id);
+        return ref(id);
     }
 
     Ref getMethod(int id) {
-        if (!methodrefs.containsKey(id))
+        if (!has(id, CONSTANT_Methodref))
             throw new IllegalArgumentException("method missing: " + id);
-        return methodrefs.get(id);
+        return ref(id);
     }
 
     Ref getInterfaceMethod(int id) {
-        if (!interfaceMethodrefs.containsKey(id))
+        if (!has(id, CONSTANT_InterfaceMethodref))
             throw new IllegalArgumentException("interface method missing: "
                 + id);
-        return interfaceMethodrefs.get(id);
+        return ref(id);
     }
 
-    private final Map<Integer, Object> constants;
-
-    private final Map<Integer, NameAndType> nats;
-
-    private final Map<Integer, String> texts;
-
-    private final Map<Integer, String> strings;
-
-    private final Map<Integer, ClassId> classes;
+    private final byte[] tags;
 
-    private final Map<Integer, Ref> fieldrefs;
+    private final int[] first;
 
-    private final Map<Integer, Ref> methodrefs;
+    private final int[] second;
 
-    private final Map<Integer, Ref> interfaceMethodrefs;
+    private final Object[] values;
 }
@@ -20,8 +20,6 @@
 
 import java.io.DataInput;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 class ConstantPoolBuilder {
     private static final int CONSTANT_Class = 7;
@@ -61,51 +59,15 @@ class ConstantPoolBuilder {
     ConstantPool read(DataInput in) throws IOException {
         /* Read in raw pool data. */
         int poolCount = in.readUnsignedShort();
+        tags = new byte[poolCount];
+        first = new int[poolCount];
+        second = new int[poolCount];
+        values = new Object[poolCount];
         for (int i = 1; i < poolCount;)
             i += readItem(i, in);
 
-        /* Resolve pool references. */
-
-        Map<Integer, String> strings = new HashMap<Integer, String>();
-        for (Map.Entry<Integer, Integer> entry : stringIndices.entrySet()) {
-            int index = entry.getKey();
-            String value = texts.get(entry.getValue());
-            strings.put(index, value);
-            constants.put(index, value);
-        }
-
-        Map<Integer, ClassId> classes = new HashMap<Integer, ClassId>();
-        for (Map.Entry<Integer, Integer> entry : classIndices.entrySet()) {
-            int index = entry.getKey();
-            ClassId value = ClassId.forName(texts.get(entry.getValue()));
-            classes.put(entry.getKey(), value);
-            constants.put(index, value);
-        }
-
-        Map<Integer, NameAndType> nats = new HashMap<Integer, NameAndType>();
-        for (Map.Entry<Integer, NameAndTypeIndex> entry : nameAndTypeIndices
-            .entrySet())
-            nats.put(entry.getKey(), entry.getValue().resolve());
-
-        Map<Integer, Ref> fieldrefs = new HashMap<Integer, Ref>();
-        for (Map.Entry<Integer, RefIndex> entry : fieldrefIndices.entrySet())
-            fieldrefs.put(entry.getKey(),
-                          entry.getValue().resolve(classes, nats));
-
-        Map<Integer, Ref> methodrefs = new HashMap<Integer, Ref>();
-        for (Map.Entry<Integer, RefIndex> entry : methodrefIndices.entrySet())
-            methodrefs.put(entry.getKey(),
-                           entry.getValue().resolve(classes, nats));
-
-        Map<Integer, Ref> interfaceMethodrefs = new HashMap<Integer, Ref>();
-        for (Map.Entry<Integer, RefIndex> entry : interfaceMethodrefIndices
-            .entrySet())
-            interfaceMethodrefs.put(entry.getKey(),
-                                    entry.getValue().resolve(classes, nats));
-
-        /* Build the read-only pool. */
-        return new ConstantPool(constants, nats, texts, strings, classes,
-                                fieldrefs, methodrefs, interfaceMethodrefs);
+        /* References are resolved by the pool on demand. */
+        return new ConstantPool(tags, first, second, values);
     }
 
     private int readItem(int id, DataInput in) throws IOException {
@@ -113,7 +75,8 @@ class ConstantPoolBuilder {
         switch (tag) {
         case CONSTANT_Class: {
             int value = in.readUnsignedShort();
-            classIndices.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Class;
+            first[id] = value;
             // System.err.println("read #" + id + " = Class[#" + value +
             // "]");
             return 1;
@@ -122,8 +85,9 @@ class ConstantPoolBuilder {
         case CONSTANT_Fieldref: {
             int clazzIndex = in.readUnsignedShort();
             int natIndex = in.readUnsignedShort();
-            RefIndex value = new RefIndex(clazzIndex, natIndex);
-            fieldrefIndices.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Fieldref;
+            first[id] = clazzIndex;
+            second[id] = natIndex;
             // System.err.println("read #" + id +
             // " = Fieldref[#" + value + "]");
             return 1;
@@ -132,8 +96,9 @@ class ConstantPoolBuilder {
         case CONSTANT_Methodref: {
             int clazzIndex = in.readUnsignedShort();
             int natIndex = in.readUnsignedShort();
-            RefIndex value = new RefIndex(clazzIndex, natIndex);
-            methodrefIndices.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Methodref;
+            first[id] = clazzIndex;
+            second[id] = natIndex;
             // System.err.println("read #" + id +
             // " = Methodref[#" + value + "]");
             return 1;
@@ -142,8 +107,9 @@ class ConstantPoolBuilder {
         case CONSTANT_InterfaceMethodref: {
             int clazzIndex = in.readUnsignedShort();
             int natIndex = in.readUnsignedShort();
-            RefIndex value = new RefIndex(clazzIndex, natIndex);
-            interfaceMethodrefIndices.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_InterfaceMethodref;
+            first[id] = clazzIndex;
+            second[id] = natIndex;
             // System.err.println("read #" + id +
             // " = InterfaceMethodref[#" + value + "]");
             return 1;
@@ -151,7 +117,8 @@ class ConstantPoolBuilder {
 
         case CONSTANT_String: {
             int value = in.readUnsignedShort();
-            stringIndices.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_String;
+            first[id] = value;
             // System.err.println("read #" + id + " = String[#" + value
             // + "]");
             return 1;
@@ -159,7 +126,8 @@ class ConstantPoolBuilder {
 
         case CONSTANT_Integer: {
             int value = in.readInt();
-            constants.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Integer;
+            values[id] = value;
             // System.err.println("read #" + id + " = Integer[" + value
             // + "]");
             return 1;
@@ -167,7 +135,8 @@ class ConstantPoolBuilder {
 
         case CONSTANT_Float: {
             float value = in.readFloat();
-            constants.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Float;
+            values[id] = value;
             // System.err.println("read #" + id + " = Float[" + value +
             // "]");
             return 1;
@@ -175,7 +144,8 @@ class ConstantPoolBuilder {
 
         case CONSTANT_Long: {
             long value = in.readLong();
-            constants.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Long;
+            values[id] = value;
             // System.err.println("read #" + id + " = Long[" + value +
             // "]");
             return 2;
@@ -183,7 +153,8 @@ class ConstantPoolBuilder {
 
         case CONSTANT_Double: {
             double value = in.readDouble();
-            constants.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Double;
+            values[id] = value;
             // System.err.println("read #" + id + " = Double[" + value +
             // "]");
             return 2;
@@ -192,9 +163,9 @@ class ConstantPoolBuilder {
         case CONSTANT_NameAndType: {
             int nameIndex = in.readUnsignedShort();
             int typeIndex = in.readUnsignedShort();
-            NameAndTypeIndex value =
-                new NameAndTypeIndex(nameIndex, typeIndex);
-            nameAndTypeIndices.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_NameAndType;
+            first[id] = nameIndex;
+            second[id] = typeIndex;
             // System.err.println("read #" + id +
             // " = NameAndType[" + value + "]");
             return 1;
@@ -202,7 +173,8 @@ class ConstantPoolBuilder {
 
         case CONSTANT_Utf8: {
             String value = in.readUTF();
-            texts.put(id, value);
+            tags[id] = ConstantPool.CONSTANT_Utf8;
+            values[id] = value;
             // System.err.println("read #" + id + " = Utf8[" + value +
             // "]");
             return 1;
@@ -236,61 +208,11 @@ class ConstantPoolBuilder {
         }
     }
 
-    private class NameAndTypeIndex {
-        final int name, type;
-
-        NameAndTypeIndex(int name, int type) {
-            this.name = name;
-            this.type = type;
-        }
-
-        NameAndType resolve() {
-            return new NameAndType(texts.get(name), texts.get(type));
-        }
-
-        public String toString() {
-            return "#" + name + ".#" + type;
-        }
-    }
-
-    private class RefIndex {
-        final int clazz, nat;
-
-        RefIndex(int clazz, int nat) {
-            this.clazz = clazz;
-            this.nat = nat;
-        }
-
-        Ref resolve(Map<? super Integer, ? extends ClassId> classes,
-                    Map<? super Integer, ? extends NameAndType> nats) {
-            return new Ref(classes.get(clazz), nats.get(nat));
-        }
-
-        public String toString() {
-            return "#" + clazz + ".#" + nat;
-        }
-    }
-
-    private final Map<Integer, Object> constants =
-        new HashMap<Integer, Object>();
-
-    private final Map<Integer, String> texts = new HashMap<Integer, String>();
-
-    private final Map<Integer, Integer> stringIndices =
-        new HashMap<Integer, Integer>();
-
-    private final Map<Integer, Integer> classIndices =
-        new HashMap<Integer, Integer>();
-
-    private final Map<Integer, NameAndTypeIndex> nameAndTypeIndices =
-        new HashMap<Integer, NameAndTypeIndex>();
+    private byte[] tags;
 
-    private final Map<Integer, RefIndex> fieldrefIndices =
-        new HashMap<Integer, RefIndex>();
+    private int[] first;
 
-    private final Map<Integer, RefIndex> methodrefIndices =
-        new HashMap<Integer, RefIndex>();
+    private int[] second;
 
-    private final Map<Integer, RefIndex> interfaceMethodrefIndices =
-        new HashMap<Integer, RefIndex>();
+    private Object[] values;
 }
@@ -0,0 +1,167 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Merges files of the same name from several directories.
+ *
+ * <p>
+ * Usage: {@code FileMerger LIST DEST SRC...}
+ *
+ * <p>
+ * For each name in {@code LIST}, one per line, the files of that name
+ * in each {@code SRC} that has one are concatenated into
+ * {@code DEST}. Service-provider files under
+ * {@code META-INF/services/} have repeated entries removed. A
+ * destination is only rewritten if its content would change, so that
+ * its timestamp still reflects when it last changed.
+ *
+ * @author simpsons
+ */
+public class FileMerger {
+    private static final String SERVICES = "META-INF/services/";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: FileMerger LIST DEST SRC...");
+            System.exit(1);
+        }
+        List<String> names = Files.readAllLines(Paths.get(args[0]));
+        Path dest = Paths.get(args[1]);
+        List<Path> roots = new ArrayList<>();
+        for (int i = 2; i < args.length; i++)
+            roots.add(Paths.get(args[i]));
+
+        for (String name : names) {
+            if (name.isEmpty()) continue;
+            System.out.printf("  %s%n", name);
+            List<Path> sources = new ArrayList<>();
+            for (Path root : roots) {
+                Path source = root.resolve(name);
+                if (Files.isRegularFile(source)) sources.add(source);
+            }
+            Path target = dest.resolve(name);
+            Files.createDirectories(target.getParent());
+            if (name.startsWith(SERVICES))
+                mergeServices(sources, target);
+            else
+                concatenate(sources, target);
+        }
+    }
+
+    /**
+     * Concatenate files, unless the target already holds the result.
+     */
+    private static void concatenate(List<Path> sources, Path target)
+        throws IOException {
+        long total = 0;
+        for (Path source : sources)
+            total += Files.size(source);
+        if (matches(sources, target, total)) return;
+
+        try (FileChannel out =
+            FileChannel.open(target, StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.WRITE)) {
+            for (Path source : sources) {
+                try (FileChannel in = FileChannel.open(source)) {
+                    long size = in.size();
+                    long done = 0;
+                    while (done < size) {
+                        long got = in.transferTo(done, size - done, out);
+                        if (got <= 0) break;
+                        done += got;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine whether a file already holds the concatenation of
+     * others.
+     */
+    private static boolean matches(List<Path> sources, Path target,
+                                   long total)
+        throws IOException {
+        try {
+            if (Files.size(target) != total) return false;
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        try (InputStream existing = Files.newInputStream(target)) {
+            byte[] expected = new byte[8192];
+            byte[] actual = new byte[8192];
+            for (Path source : sources) {
+                try (InputStream in = Files.newInputStream(source)) {
+                    int got;
+                    while ((got = in.read(expected)) > 0) {
+                        if (existing.readNBytes(actual, 0, got) != got)
+                            return false;
+                        if (!Arrays.equals(expected, 0, got, actual, 0, got))
+                            return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merge service-provider files, keeping only the first occurrence
+     * of each provider.
+     */
+    private static void mergeServices(List<Path> sources, Path target)
+        throws IOException {
+        Collection<String> seen = new HashSet<>();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (Path source : sources) {
+            for (String line : Files
+                .readAllLines(source, StandardCharsets.UTF_8)) {
+                int hash = line.indexOf('#');
+                String provider =
+                    (hash < 0 ? line : line.substring(0, hash)).trim();
+                if (!provider.isEmpty() && !seen.add(provider)) continue;
+                buf.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        byte[] content = buf.toByteArray();
+        try {
+            if (Arrays.equals(Files.readAllBytes(target), content)) return;
+        } catch (NoSuchFileException ex) {
+            /* Create it. */
+        }
+        Files.write(target, content);
+    }
+}
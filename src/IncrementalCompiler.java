@@ -0,0 +1,649 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * Recompiles only the sources of a tree affected by changes since its
+ * last compilation, as recorded by {@link IncrementalState}. Changed
+ * sources are compiled first, then sources that use classes whose API
+ * changed, and so on, with the previous output on the class path.
+ * Whenever the consequences of a change cannot be determined, or the
+ * result disagrees with the recorded state, the caller is told to
+ * perform a full compilation instead.
+ *
+ * @author simpsons
+ */
+final class IncrementalCompiler {
+    private IncrementalCompiler() {}
+
+    /**
+     * The maximum number of rounds of incremental compilation before
+     * falling back to a full compilation
+     */
+    private static final int MAX_ROUNDS = 10;
+
+    /**
+     * The only annotation processor whose effects incremental
+     * compilation can account for
+     */
+    private static final String KNOWN_PROCESSOR =
+        "uk.ac.lancs.scc.jardeps.apt.ServiceProcessor";
+
+    /**
+     * Matches annotations that might interest {@link #KNOWN_PROCESSOR}.
+     * Sources containing them are compiled in every incremental round,
+     * as the processor regenerates its outputs in full each time.
+     */
+    private static final Pattern processedAnnotation = Pattern
+        .compile("@\\s*(?:[\\w$]+\\s*\\.\\s*)*(?:Service|Application)\\b");
+
+    /**
+     * Get the lines that characterize a compilation's configuration.
+     * If these change, an incremental compilation is not possible.
+     * 
+     * @param compilerArgs the arguments passed to the compiler
+     * 
+     * @param managerArgs the arguments passed to the file manager
+     * 
+     * @return the configuration lines
+     */
+    static List<String> configuration(List<String> compilerArgs,
+                                      List<String> managerArgs) {
+        List<String> result = new ArrayList<>();
+        result.add(System.getProperty("java.version"));
+        result.addAll(compilerArgs);
+        result.add("--");
+        result.addAll(managerArgs);
+        return result;
+    }
+
+    /**
+     * Determine whether annotation processors other than
+     * {@link #KNOWN_PROCESSOR} could run.
+     * 
+     * @param compilerArgs the arguments passed to the compiler
+     * 
+     * @param fm the file manager, with its locations already set
+     * 
+     * @return {@code true} if other processors could run
+     */
+    static boolean hasForeignProcessors(List<String> compilerArgs,
+                                        StandardJavaFileManager fm)
+        throws IOException {
+        if (compilerArgs.contains("-proc:none")) return false;
+
+        /* Named processors are the only ones run. */
+        int pos = compilerArgs.indexOf("-processor");
+        if (pos >= 0 && pos + 1 < compilerArgs.size()) {
+            for (String name : compilerArgs.get(pos + 1).split(","))
+                if (!name.trim().equals(KNOWN_PROCESSOR)) return true;
+            return false;
+        }
+
+        /* Otherwise, see which processors would be discovered. */
+        StandardLocation loc =
+            fm.hasLocation(StandardLocation.ANNOTATION_PROCESSOR_PATH)
+                ? StandardLocation.ANNOTATION_PROCESSOR_PATH
+                : StandardLocation.CLASS_PATH;
+        ClassLoader loader = fm.getClassLoader(loc);
+        if (loader == null) return true;
+        try {
+            Enumeration<URL> services = loader.getResources("META-INF/services/"
+                + "javax.annotation.processing.Processor");
+            while (services.hasMoreElements()) {
+                try (BufferedReader in =
+                    new BufferedReader(new InputStreamReader(services
+                        .nextElement().openStream(), StandardCharsets.UTF_8))) {
+                    for (String line = in.readLine(); line != null; line =
+                        in.readLine()) {
+                        int hash = line.indexOf('#');
+                        if (hash >= 0) line = line.substring(0, hash);
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.equals(KNOWN_PROCESSOR))
+                            return true;
+                    }
+                }
+            }
+        } finally {
+            if (loader instanceof Closeable) ((Closeable) loader).close();
+        }
+        return false;
+    }
+
+    /**
+     * Get the source names of a set of source files.
+     * 
+     * @param fm the file manager
+     * 
+     * @param sources the source files
+     * 
+     * @return the name of each source, mapped to its file
+     */
+    static Map<ClassId, JavaFileObject>
+        sourceNames(JavaFileManager fm,
+                    Iterable<? extends JavaFileObject> sources) {
+        Map<ClassId, JavaFileObject> result = new LinkedHashMap<>();
+        for (JavaFileObject item : sources) {
+            String name = fm.inferBinaryName(StandardLocation.SOURCE_PATH,
+                                             item);
+            if (name != null)
+                result.put(ClassId.forName(name.replace('.', '/')), item);
+        }
+        return result;
+    }
+
+    /**
+     * Find a source file by name.
+     * 
+     * @param fm the file manager
+     * 
+     * @param files known source files by name, which is augmented by
+     * any file found
+     * 
+     * @param name the source's name
+     * 
+     * @return the source file, or {@code null} if it does not exist
+     */
+    private static JavaFileObject
+        findSource(StandardJavaFileManager fm,
+                   Map<ClassId, JavaFileObject> files, ClassId name)
+            throws IOException {
+        JavaFileObject result = files.get(name);
+        if (result != null) return result;
+        result = fm.getJavaFileForInput(StandardLocation.SOURCE_PATH,
+                                        name.toString().replace('/', '.'),
+                                        Kind.SOURCE);
+        if (result != null) files.put(name, result);
+        return result;
+    }
+
+    private static byte[] readSource(JavaFileObject file) throws IOException {
+        try (InputStream in = file.openInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Delete class files from the output directory.
+     * 
+     * @param fm the file manager
+     * 
+     * @param classes the classes to delete, or {@code null} to delete
+     * all classes
+     */
+    static void deleteClasses(StandardJavaFileManager fm,
+                              Collection<ClassId> classes)
+        throws IOException {
+        if (classes != null) {
+            for (ClassId clid : classes) {
+                JavaFileObject file = fm
+                    .getJavaFileForInput(StandardLocation.CLASS_OUTPUT,
+                                         clid.toString(), Kind.CLASS);
+                if (file != null) file.delete();
+            }
+            return;
+        }
+        for (Path dir : fm
+            .getLocationAsPaths(StandardLocation.CLASS_OUTPUT)) {
+            if (!Files.isDirectory(dir)) continue;
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : (Iterable<Path>) paths
+                    .filter(p -> p.toString().endsWith(".class"))::iterator)
+                    Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Record the state of compiled sources and the classes generated
+     * from them.
+     * 
+     * @param state the state to update
+     * 
+     * @param compiled the names of the compiled sources
+     * 
+     * @param classSources the source of each generated class
+     * 
+     * @param files known source files by name
+     * 
+     * @param resources a means to analyse the generated classes
+     * 
+     * @param fm the file manager
+     * 
+     * @return {@code true} if the state was updated; {@code false} if
+     * it could not be, because a source is missing, or a class has
+     * moved from a source that was not compiled
+     */
+    static boolean recordSources(IncrementalState state,
+                                 Collection<ClassId> compiled,
+                                 Map<ClassId, ClassId> classSources,
+                                 Map<ClassId, JavaFileObject> files,
+                                 JardepsCompiler.Resources resources,
+                                 StandardJavaFileManager fm)
+        throws IOException {
+        /* Detect classes that have moved from other sources. */
+        Map<ClassId, ClassId> owners = new HashMap<>();
+        for (Map.Entry<ClassId, IncrementalState.Source> entry : state.sources
+            .entrySet())
+            for (ClassId clid : entry.getValue().classes)
+                owners.put(clid, entry.getKey());
+        for (ClassId clid : classSources.keySet()) {
+            ClassId owner = owners.get(clid);
+            if (owner != null && !compiled.contains(owner)) return false;
+        }
+
+        /* Replace the records of the compiled sources. */
+        resources.analyse(classSources.keySet());
+        Map<ClassId, IncrementalState.Source> added = new HashMap<>();
+        for (ClassId name : compiled) {
+            state.removeSource(name);
+            JavaFileObject file = findSource(fm, files, name);
+            if (file == null) return false;
+            byte[] content = readSource(file);
+            IncrementalState.Source source = new IncrementalState.Source();
+            source.digest = IncrementalState.digest(content);
+            source.annotated = processedAnnotation
+                .matcher(new String(content, StandardCharsets.ISO_8859_1))
+                .find();
+            state.sources.put(name, source);
+            added.put(name, source);
+        }
+        for (Map.Entry<ClassId, ClassId> entry : classSources.entrySet()) {
+            ClassId clid = entry.getKey();
+            ClassSummary summary = resources.summary(clid);
+            added.get(entry.getValue()).classes.add(clid);
+            state.classes.put(clid, new IncrementalState.ClassInfo(
+                apiDigest(summary), constantsDigest(summary),
+                summary.getSupertypes()));
+        }
+
+        /* Record which of the tree's classes each source uses. */
+        for (IncrementalState.Source source : added.values()) {
+            for (ClassId clid : source.classes) {
+                for (String line : resources.summary(clid).getUsage()) {
+                    if (!line.startsWith(ClassAnalysis.USED_CLASS)) continue;
+                    ClassId used;
+                    try {
+                        used = ClassId.forName(line
+                            .substring(ClassAnalysis.USED_CLASS.length()));
+                    } catch (RuntimeException ex) {
+                        continue;
+                    }
+                    if (state.classes.containsKey(used)
+                        && !source.classes.contains(used))
+                        source.uses.add(used);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recompile only the sources affected by changes since the last
+     * compilation. Changed sources are compiled first, then sources
+     * that use classes whose API changed, and so on, with the
+     * previous output on the class path.
+     * 
+     * @param state the state of the last compilation, which is updated
+     * 
+     * @param compiler the compiler
+     * 
+     * @param fm the underlying file manager
+     * 
+     * @param monitor the monitoring file manager
+     * 
+     * @param compilerArgs the arguments to pass to the compiler
+     * 
+     * @param explicitSources the sources named on the command line
+     * 
+     * @param resources a means to analyse the generated classes
+     * 
+     * @param log the destination for diagnostics
+     * 
+     * @return {@code true} on success; {@code false} if a full
+     * compilation is required
+     */
+    static boolean
+        compileIncrementally(IncrementalState state, JavaCompiler compiler,
+                             StandardJavaFileManager fm,
+                             JardepsCompiler.Monitor monitor,
+                             List<String> compilerArgs,
+                             Iterable<? extends JavaFileObject> explicitSources,
+                             JardepsCompiler.Resources resources,
+                             PrintWriter log)
+            throws IOException {
+        final String noConstants =
+            IncrementalState.digest(Collections.<String>emptyList());
+
+        /* Find sources that have changed, appeared or disappeared. */
+        Map<ClassId, JavaFileObject> files =
+            sourceNames(fm, explicitSources);
+        Collection<ClassId> pending = new TreeSet<>(files.keySet());
+        pending.removeAll(state.sources.keySet());
+        Collection<ClassId> gone = new TreeSet<>();
+        for (Map.Entry<ClassId, IncrementalState.Source> entry : state.sources
+            .entrySet()) {
+            JavaFileObject file = findSource(fm, files, entry.getKey());
+            if (file == null)
+                gone.add(entry.getKey());
+            else if (!IncrementalState.digest(readSource(file))
+                .equals(entry.getValue().digest))
+                pending.add(entry.getKey());
+        }
+
+        /* Remove the classes of sources that have disappeared, and
+         * recompile their users. */
+        Collection<ClassId> removed = new TreeSet<>();
+        for (ClassId name : gone) {
+            for (ClassId clid : state.sources.get(name).classes) {
+                if (!noConstants.equals(state.classes.get(clid).constants)) {
+                    log.println("  Incremental: constants removed");
+                    return false;
+                }
+                if (isAnnotation(state, clid)) {
+                    log.println("  Incremental: annotation type removed");
+                    return false;
+                }
+            }
+            removed.addAll(state.removeSource(name));
+        }
+        deleteClasses(fm, removed);
+        resources.forget(removed);
+        pending.addAll(state.users(removed));
+
+        /* Compile against the previous output. */
+        List<Path> classPath = new ArrayList<>();
+        Iterable<? extends Path> given =
+            fm.getLocationAsPaths(StandardLocation.CLASS_PATH);
+        if (given != null) for (Path path : given)
+            classPath.add(path);
+        List<Path> augmented = new ArrayList<>();
+        for (Path path : fm.getLocationAsPaths(StandardLocation.CLASS_OUTPUT))
+            augmented.add(path);
+        augmented.addAll(classPath);
+        fm.setLocationFromPaths(StandardLocation.CLASS_PATH, augmented);
+        Collection<ClassId> compiledAll = new TreeSet<>();
+        try {
+            for (int round = 0; !pending.isEmpty(); round++) {
+                if (round == MAX_ROUNDS) {
+                    log.println("  Incremental: too many rounds");
+                    return false;
+                }
+
+                /* Include all sources that the annotation processor
+                 * might be interested in. */
+                for (Map.Entry<ClassId, IncrementalState.Source> entry : state
+                    .sources.entrySet())
+                    if (entry.getValue().annotated)
+                        pending.add(entry.getKey());
+
+                /* Remember the APIs before the classes are replaced. */
+                Map<ClassId, String> oldApis = state.effectiveDigests();
+                Map<ClassId, String> oldConstants = new HashMap<>();
+                Collection<ClassId> stale = new TreeSet<>();
+                for (ClassId name : pending) {
+                    IncrementalState.Source source = state.sources.get(name);
+                    if (source != null) stale.addAll(source.classes);
+                }
+                Collection<ClassId> oldAnnotations = new HashSet<>();
+                for (ClassId clid : stale) {
+                    oldConstants.put(clid, state.classes.get(clid).constants);
+                    if (isAnnotation(state, clid)) oldAnnotations.add(clid);
+                }
+                deleteClasses(fm, stale);
+                resources.forget(stale);
+
+                /* Compile, keeping the output for reporting only on
+                 * success, as failure is dealt with by a full
+                 * compilation. */
+                List<JavaFileObject> inputs = new ArrayList<>();
+                for (ClassId name : pending) {
+                    JavaFileObject file = findSource(fm, files, name);
+                    if (file == null) return false;
+                    inputs.add(file);
+                }
+                monitor.generatedFiles.clear();
+                monitor.classSources.clear();
+                StringWriter out = new StringWriter();
+                boolean okay;
+                BuildStats.Phase phase = resources.stats.start("javac");
+                try {
+                    okay = compiler
+                        .getTask(out, monitor, null, compilerArgs, null,
+                                 inputs)
+                        .call();
+                } finally {
+                    phase.close();
+                }
+                if (!okay) {
+                    log.println("  Incremental: compilation failed");
+                    return false;
+                }
+                log.print(out);
+                if (!monitor.classSources.keySet()
+                    .containsAll(monitor.generatedFiles)) {
+                    log.println("  Incremental: class of unknown source");
+                    return false;
+                }
+
+                Collection<ClassId> compiled = new TreeSet<>(pending);
+                compiled.addAll(monitor.classSources.values());
+                if (!recordSources(state, compiled, monitor.classSources,
+                                   files, resources, fm)) {
+                    log.println("  Incremental: class moved");
+                    return false;
+                }
+                compiledAll.addAll(compiled);
+
+                /* Constants are inlined, so their users are not
+                 * recorded. */
+                for (Map.Entry<ClassId, String> entry : oldConstants
+                    .entrySet()) {
+                    IncrementalState.ClassInfo info =
+                        state.classes.get(entry.getKey());
+                    String now = info == null ? noConstants : info.constants;
+                    if (!now.equals(entry.getValue())) {
+                        log.println("  Incremental: constants changed");
+                        return false;
+                    }
+                }
+
+                /* Recompile the users of classes whose APIs have
+                 * changed.  Uses of annotation types with source
+                 * retention leave no trace in class files, so the users
+                 * of a changed annotation type cannot be known. */
+                Map<ClassId, String> newApis = state.effectiveDigests();
+                Collection<ClassId> altered = new TreeSet<>();
+                for (Map.Entry<ClassId, String> entry : oldApis.entrySet()) {
+                    if (entry.getValue().equals(newApis.get(entry.getKey())))
+                        continue;
+                    if (oldAnnotations.contains(entry.getKey())
+                        || isAnnotation(state, entry.getKey())) {
+                        log.println("  Incremental: annotation type changed");
+                        return false;
+                    }
+                    altered.add(entry.getKey());
+                }
+                pending = state.users(altered);
+                pending.removeAll(compiledAll);
+            }
+        } finally {
+            fm.setLocationFromPaths(StandardLocation.CLASS_PATH, classPath);
+        }
+
+        /* Check that the result is what a full compilation would
+         * have produced, as far as can be told. */
+        if (!verify(state, fm, resources)) {
+            log.println("  Incremental: output disagrees with state");
+            return false;
+        }
+
+        /* Report the whole tree as if it had been compiled. */
+        monitor.generatedFiles.clear();
+        monitor.generatedFiles.addAll(state.classes.keySet());
+        monitor.usedSourceFiles.addAll(state.sources.keySet());
+        for (String uri : state.inputs)
+            monitor.inputFiles.add(URI.create(uri));
+        for (String uri : state.outputs)
+            monitor.outputFiles.add(URI.create(uri));
+        log.printf("  Incremental: recompiled %d of %d sources%n",
+                   compiledAll.size(), state.sources.size());
+        return true;
+    }
+
+    /**
+     * Check that the output directory holds exactly the classes
+     * recorded in the state, and that each has the API and constants
+     * recorded for it. Classes that were not recompiled are expected
+     * to be as they were after the compilation that produced them.
+     * 
+     * @param state the state, updated by the compilation
+     * 
+     * @param fm the file manager
+     * 
+     * @param resources a means to analyse the classes
+     * 
+     * @return {@code true} if the output agrees with the state
+     */
+    private static boolean verify(IncrementalState state,
+                                  StandardJavaFileManager fm,
+                                  JardepsCompiler.Resources resources)
+        throws IOException {
+        /* Compare the classes present with those recorded. */
+        Collection<ClassId> present = new TreeSet<>();
+        for (Path dir : fm
+            .getLocationAsPaths(StandardLocation.CLASS_OUTPUT)) {
+            if (!Files.isDirectory(dir)) continue;
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : (Iterable<Path>) paths
+                    .filter(p -> p.toString().endsWith(".class"))::iterator) {
+                    String name = dir.relativize(path).toString()
+                        .replace(File.separatorChar, '/');
+                    present.add(ClassId
+                        .forName(name.substring(0, name.length() - 6)));
+                }
+            } catch (IllegalArgumentException ex) {
+                /* A class name could not be parsed. */
+                return false;
+            }
+        }
+        if (!present.equals(state.classes.keySet())) return false;
+
+        /* Compare the classes that were not recompiled with their
+         * records, a chunk at a time.  The others have just been
+         * recorded from their current analyses. */
+        List<ClassId> unchanged = new ArrayList<>();
+        for (ClassId clid : present)
+            if (resources.summary(clid) == null) unchanged.add(clid);
+        for (int i = 0; i < unchanged.size();
+             i += JardepsCompiler.STREAM_CHUNK) {
+            List<ClassId> chunk = unchanged
+                .subList(i, Math.min(unchanged.size(),
+                                     i + JardepsCompiler.STREAM_CHUNK));
+            Map<ClassId, ClassSummary> summaries = resources.take(chunk);
+            for (ClassId clid : chunk) {
+                IncrementalState.ClassInfo info = state.classes.get(clid);
+                ClassSummary summary = summaries.get(clid);
+                if (!info.api.equals(apiDigest(summary))
+                    || !info.constants.equals(constantsDigest(summary)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The supertype of all annotation types
+     */
+    private static final ClassId ANNOTATION =
+        ClassId.forName("java/lang/annotation/Annotation");
+
+    /**
+     * Determine whether a recorded class is an annotation type.
+     * 
+     * @param state the state recording the class
+     * 
+     * @param clid the class
+     * 
+     * @return {@code true} if the class is recorded as an annotation
+     * type
+     */
+    private static boolean isAnnotation(IncrementalState state,
+                                        ClassId clid) {
+        IncrementalState.ClassInfo info = state.classes.get(clid);
+        return info != null && info.supertypes.contains(ANNOTATION);
+    }
+
+    /**
+     * Compute a digest of a class's API, as recorded in the state.
+     * 
+     * @param summary the class's summary
+     * 
+     * @return the digest
+     */
+    private static String apiDigest(ClassSummary summary) {
+        List<String> api = new ArrayList<>(summary.getPackageMemberLines());
+        api.addAll(summary.getPublicEntries());
+        return IncrementalState.digest(api);
+    }
+
+    /**
+     * Compute a digest of a class's constants, as recorded in the
+     * state.
+     * 
+     * @param summary the class's summary
+     * 
+     * @return the digest
+     */
+    private static String constantsDigest(ClassSummary summary) {
+        return IncrementalState.digest(summary.getConstantLines());
+    }
+}
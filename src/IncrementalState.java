@@ -0,0 +1,343 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records what a tree's last compilation produced, so that the next
+ * can recompile only the sources affected by changes. For each source,
+ * this holds a digest of its content, the classes it produced, and the
+ * classes of the tree that those classes use. For each class, it holds
+ * a digest of its API, a digest of its constants, and its direct
+ * supertypes.
+ *
+ * @author simpsons
+ */
+final class IncrementalState {
+    private static final String HEADER = "jardeps-incremental 1";
+
+    /**
+     * Records a source file.
+     */
+    static final class Source {
+        /**
+         * A digest of the content
+         */
+        String digest;
+
+        /**
+         * Whether the source might be of interest to the annotation
+         * processor
+         */
+        boolean annotated;
+
+        /**
+         * The classes generated from the source
+         */
+        final Collection<ClassId> classes = new TreeSet<>();
+
+        /**
+         * The tree's classes that the source's classes use
+         */
+        final Collection<ClassId> uses = new TreeSet<>();
+    }
+
+    /**
+     * Records a generated class.
+     */
+    static final class ClassInfo {
+        /**
+         * A digest of the class's profile lines
+         */
+        final String api;
+
+        /**
+         * A digest of the class's constants
+         */
+        final String constants;
+
+        /**
+         * The class's direct supertypes
+         */
+        final List<ClassId> supertypes;
+
+        ClassInfo(String api, String constants, List<ClassId> supertypes) {
+            this.api = api;
+            this.constants = constants;
+            this.supertypes = supertypes;
+        }
+    }
+
+    /**
+     * A digest of the compiler configuration
+     */
+    final String config;
+
+    /**
+     * The sources of the tree
+     */
+    final Map<ClassId, Source> sources = new TreeMap<>();
+
+    /**
+     * The classes of the tree
+     */
+    final Map<ClassId, ClassInfo> classes = new TreeMap<>();
+
+    /**
+     * The URIs of files other than classes that were generated
+     */
+    final Collection<String> outputs = new TreeSet<>();
+
+    /**
+     * The URIs of files other than sources that were read
+     */
+    final Collection<String> inputs = new TreeSet<>();
+
+    /**
+     * Create an empty state.
+     *
+     * @param config a digest of the compiler configuration
+     */
+    IncrementalState(String config) {
+        this.config = config;
+    }
+
+    /**
+     * Read a state from a file.
+     *
+     * @param file the file to read
+     *
+     * @return the state read, or {@code null} if the file does not exist
+     * or is not in the expected format
+     */
+    static IncrementalState read(File file) throws IOException {
+        try (BufferedReader in = Files
+            .newBufferedReader(file.toPath(), JardepsCompiler.TEXT_ENCODING)) {
+            if (!HEADER.equals(in.readLine())) return null;
+            String line = in.readLine();
+            if (line == null || !line.startsWith("config ")) return null;
+            IncrementalState result = new IncrementalState(line.substring(7));
+            Source source = null;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.split(" ");
+                switch (words[0]) {
+                case "source":
+                    if (words.length != 4) return null;
+                    source = new Source();
+                    source.digest = words[2];
+                    source.annotated = words[3].equals("annotated");
+                    result.sources.put(ClassId.forName(words[1]), source);
+                    break;
+
+                case "class":
+                    if (words.length < 4 || source == null) return null;
+                    ClassId clid = ClassId.forName(words[1]);
+                    List<ClassId> supers = new ArrayList<>();
+                    for (int i = 4; i < words.length; i++)
+                        supers.add(ClassId.forName(words[i]));
+                    source.classes.add(clid);
+                    result.classes
+                        .put(clid, new ClassInfo(words[2], words[3], supers));
+                    break;
+
+                case "use":
+                    if (words.length != 2 || source == null) return null;
+                    source.uses.add(ClassId.forName(words[1]));
+                    break;
+
+                case "input":
+                    if (words.length != 2) return null;
+                    result.inputs.add(words[1]);
+                    break;
+
+                case "output":
+                    if (words.length != 2) return null;
+                    result.outputs.add(words[1]);
+                    break;
+
+                default:
+                    return null;
+                }
+            }
+            return result;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IllegalArgumentException ex) {
+            /* A class name could not be parsed. */
+            return null;
+        }
+    }
+
+    /**
+     * Write the state to a file.
+     *
+     * @param file the destination file
+     */
+    void write(File file) throws IOException {
+        try (PrintWriter out = JardepsCompiler.textWriter(file)) {
+            out.println(HEADER);
+            out.printf("config %s%n", config);
+            for (Map.Entry<ClassId, Source> entry : sources.entrySet()) {
+                Source source = entry.getValue();
+                out.printf("source %s %s %s%n", entry.getKey(), source.digest,
+                           source.annotated ? "annotated" : "plain");
+                for (ClassId clid : source.classes) {
+                    ClassInfo info = classes.get(clid);
+                    out.printf("class %s %s %s", clid, info.api,
+                               info.constants);
+                    for (ClassId sup : info.supertypes)
+                        out.printf(" %s", sup);
+                    out.println();
+                }
+                for (ClassId clid : source.uses)
+                    out.printf("use %s%n", clid);
+            }
+            for (String uri : inputs)
+                out.printf("input %s%n", uri);
+            for (String uri : outputs)
+                out.printf("output %s%n", uri);
+        }
+    }
+
+    /**
+     * Remove a source and its classes.
+     *
+     * @param name the source's name
+     *
+     * @return the source's classes
+     */
+    Collection<ClassId> removeSource(ClassId name) {
+        Source source = sources.remove(name);
+        if (source == null) return Collections.emptySet();
+        for (ClassId clid : source.classes)
+            classes.remove(clid);
+        return source.classes;
+    }
+
+    /**
+     * Find the sources using any of a set of classes.
+     *
+     * @param used the used classes
+     *
+     * @return the names of the sources using them
+     */
+    Collection<ClassId> users(Collection<ClassId> used) {
+        Collection<ClassId> result = new TreeSet<>();
+        for (Map.Entry<ClassId, Source> entry : sources.entrySet()) {
+            for (ClassId clid : entry.getValue().uses) {
+                if (used.contains(clid)) {
+                    result.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute a digest of each class's API that also reflects changes
+     * to its supertypes within the tree, as those change the members
+     * that the class inherits.
+     *
+     * @return the digest of each class
+     */
+    Map<ClassId, String> effectiveDigests() {
+        Map<ClassId, String> result = new HashMap<>();
+        for (ClassId clid : classes.keySet())
+            effectiveDigest(clid, result);
+        return result;
+    }
+
+    private String effectiveDigest(ClassId clid, Map<ClassId, String> done) {
+        String result = done.get(clid);
+        if (result != null) return result;
+        ClassInfo info = classes.get(clid);
+        if (info == null) return "";
+
+        /* Guard against (invalid) cyclic inheritance. */
+        done.put(clid, info.api);
+
+        List<String> parts = new ArrayList<>();
+        parts.add(info.api);
+        for (ClassId sup : info.supertypes)
+            parts.add(effectiveDigest(sup, done));
+        result = digest(parts);
+        done.put(clid, result);
+        return result;
+    }
+
+    /**
+     * Compute a digest of a sequence of lines.
+     *
+     * @param lines the lines to digest
+     *
+     * @return the hexadecimal digest
+     */
+    static String digest(Iterable<String> lines) {
+        MessageDigest md = newDigest();
+        for (String line : lines) {
+            md.update(line.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * Compute a digest of a byte array.
+     *
+     * @param content the bytes to digest
+     *
+     * @return the hexadecimal digest
+     */
+    static String digest(byte[] content) {
+        return hex(newDigest().digest(content));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError("unreachable", ex);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder result = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            result.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        return result.toString();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Generates the profiles of a prebuilt jar or class directory, and
+ * the classes reachable from a set of roots within it.
+ *
+ * <p>
+ * Usage: {@code JarMeta SOURCE NAME TMPDIR < ROOTS}
+ *
+ * <p>
+ * {@code SOURCE} is a jar file or a directory of classes. {@code ROOTS}
+ * lists the root classes, one per line, in binary or internal form.
+ * Classes are analysed in rounds, each adding classes of
+ * {@code SOURCE} that the previous round referred to, until no more
+ * are found. The public and package-private profiles are written to
+ * {@code TMPDIR/NAME.api-test} and {@code TMPDIR/NAME.ppi-test}, the
+ * reached classes to {@code TMPDIR/NAME.list}, and rules making
+ * {@code NAME} depend on their sources to {@code TMPDIR/NAME.mk}.
+ *
+ * @author simpsons
+ */
+public class JarMeta {
+    /**
+     * Reads classes from a jar or a directory.
+     */
+    private interface ClassSource extends AutoCloseable {
+        /**
+         * Read a class.
+         *
+         * @param clid the class's identifier
+         *
+         * @return the class file's content, or {@code null} if it is
+         * not present
+         */
+        byte[] read(ClassId clid) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static ClassSource open(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            return new ClassSource() {
+                @Override
+                public byte[] read(ClassId clid) throws IOException {
+                    try {
+                        return Files
+                            .readAllBytes(path.resolve(clid + ".class"));
+                    } catch (NoSuchFileException ex) {
+                        return null;
+                    }
+                }
+
+                @Override
+                public void close() {}
+            };
+        }
+
+        ZipFile zip = new ZipFile(path.toFile());
+        return new ClassSource() {
+            @Override
+            public byte[] read(ClassId clid) throws IOException {
+                ZipEntry entry = zip.getEntry(clid + ".class");
+                if (entry == null) return null;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    return in.readAllBytes();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                zip.close();
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: JarMeta SOURCE NAME TMPDIR < ROOTS");
+            System.exit(1);
+        }
+        final Path sourcePath = Paths.get(args[0]);
+        final String name = args[1];
+        final Path tmpDir = Paths.get(args[2]);
+
+        Collection<ClassId> pending = new TreeSet<>();
+        try (BufferedReader in =
+            new BufferedReader(new InputStreamReader(System.in))) {
+            for (String line = in.readLine(); line != null; line =
+                in.readLine()) {
+                line = line.trim();
+                if (!line.isEmpty())
+                    pending.add(ClassId.forName(line.replace('.', '/')));
+            }
+        }
+
+        /* Analyse each round's classes concurrently, and queue the
+         * classes they refer to. */
+        Map<ClassId, ClassSummary> known = new ConcurrentHashMap<>();
+        Collection<ClassId> absent = ConcurrentHashMap.newKeySet();
+        try (ClassSource source = open(sourcePath)) {
+            while (!pending.isEmpty()) {
+                try {
+                    pending.parallelStream().forEach(clid -> {
+                        try {
+                            byte[] bytes = source.read(clid);
+                            if (bytes == null) {
+                                absent.add(clid);
+                                return;
+                            }
+                            ClassAnalysis anal = new ClassAnalysis();
+                            anal.load(clid, ByteBuffer.wrap(bytes));
+                            known.put(clid, ClassSummary.of(anal));
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+
+                Collection<ClassId> next = new TreeSet<>();
+                for (ClassId clid : pending) {
+                    ClassSummary summary = known.get(clid);
+                    if (summary == null) continue;
+                    for (ClassId ref : summary.getRuntimeClasses())
+                        if (!known.containsKey(ref) && !absent.contains(ref))
+                            next.add(ref);
+                }
+                pending = next;
+            }
+        }
+
+        /* Generate the profiles. */
+        List<String> api = new ArrayList<>();
+        List<String> ppi = new ArrayList<>();
+        for (ClassSummary summary : known.values()) {
+            api.addAll(summary.getPublicMemberLines());
+            ppi.addAll(summary.getPackageMemberLines());
+        }
+        Collections.sort(api);
+        Collections.sort(ppi);
+        Files.write(tmpDir.resolve(name + ".api-test"), api);
+        Files.write(tmpDir.resolve(name + ".ppi-test"), ppi);
+
+        /* Generate the internal dependencies triggering rebuild of
+         * this jar, and the class list. */
+        Collection<ClassId> classes = new TreeSet<>(known.keySet());
+        Collection<String> sources = new TreeSet<>();
+        for (ClassId clid : classes) {
+            String text = clid.toString();
+            if (text.indexOf('$') < 0)
+                sources.add("$(JARDEPS_SRCDIR)/" + name + "/" + text
+                    + ".java");
+        }
+        try (PrintWriter out = new PrintWriter(Files
+            .newBufferedWriter(tmpDir.resolve(name + ".mk")))) {
+            out.printf("$(JARDEPS_TMPDIR)/%s.compiled"
+                + " $(JARDEPS_OUTDIR)/%s-src.zip:", name, name);
+            for (String src : sources) {
+                JardepsCompiler.listLine(out, " \\");
+                out.printf("  %s", src);
+            }
+            JardepsCompiler.listLine(out, "");
+            for (String src : sources)
+                JardepsCompiler.listLine(out, "%s:", src);
+            JardepsCompiler.listLine(out, "");
+        }
+        try (PrintWriter out = new PrintWriter(Files
+            .newBufferedWriter(tmpDir.resolve(name + ".list")))) {
+            for (ClassId clid : classes)
+                JardepsCompiler.listLine(out, "%s.class", clid);
+        }
+    }
+}
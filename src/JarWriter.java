@@ -0,0 +1,284 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Assembles an uncompressed jar from lists of files, without passing
+ * each file on the command line.
+ *
+ * <p>
+ * Usage: {@code JarWriter [OPTIONS] JAR}
+ *
+ * <p>
+ * Options:
+ *
+ * <dl>
+ *
+ * <dt>{@code -m MANIFEST}
+ *
+ * <dd>Use the manifest in {@code MANIFEST}.
+ *
+ * <dt>{@code -C DIR LIST}
+ *
+ * <dd>Add the files of {@code DIR} named in {@code LIST}, one per
+ * line. Where several options name the same entry, the first is
+ * used.
+ *
+ * <dt>{@code -date TIME}
+ *
+ * <dd>Give every entry the local date and time {@code TIME}, in ISO
+ * 8601 form, so that the same content always yields the same jar.
+ *
+ * <dt>{@code -previous JAR}
+ *
+ * <dd>Copy entries unaltered from {@code JAR}, a previous version of
+ * the jar being written, where their files have not been modified
+ * since it was written, and their lengths and dates match. Only
+ * uncompressed entries are copied, so the result is the same as
+ * without this option.
+ *
+ * <dt>{@code -sorted:N OUT IN...}
+ *
+ * <dd>Write the lines of the {@code N} files {@code IN...} to
+ * {@code OUT} in order. Missing inputs are treated as empty.
+ *
+ * </dl>
+ *
+ * <p>
+ * The manifest comes first, then the other entries in name order.
+ * Checksums are computed concurrently, as uncompressed entries need
+ * them before their content is written.
+ *
+ * @author simpsons
+ */
+public class JarWriter {
+    private static final LocalDateTime DEFAULT_TIME =
+        LocalDateTime.of(1980, 1, 1, 0, 0, 2);
+
+    /**
+     * Marks the first entry as belonging to a jar, as the jar tool
+     * does
+     */
+    private static final byte[] JAR_MAGIC = { (byte) 0xfe, (byte) 0xca, 0, 0 };
+
+    private static class Item {
+        final Path file;
+
+        long size;
+
+        long crc;
+
+        ZipWriter.Entry previous;
+
+        Item(Path file) {
+            this.file = file;
+        }
+
+        void check() throws IOException {
+            CRC32 sum = new CRC32();
+            byte[] buf = new byte[8192];
+            long total = 0;
+            try (InputStream in = Files.newInputStream(file)) {
+                int got;
+                while ((got = in.read(buf)) >= 0) {
+                    sum.update(buf, 0, got);
+                    total += got;
+                }
+            }
+            size = total;
+            crc = sum.getValue();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path manifestFile = null;
+        Path previousFile = null;
+        LocalDateTime time = DEFAULT_TIME;
+        Map<String, Item> items = new TreeMap<>();
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-m".equals(arg)) {
+                manifestFile = Paths.get(args[++i]);
+            } else if ("-previous".equals(arg)) {
+                previousFile = Paths.get(args[++i]);
+            } else if ("-date".equals(arg)) {
+                time = LocalDateTime.parse(args[++i]);
+            } else if ("-C".equals(arg)) {
+                Path dir = Paths.get(args[++i]);
+                for (String name : Files.readAllLines(Paths.get(args[++i]))) {
+                    if (name.isEmpty()) continue;
+                    Path file = dir.resolve(name);
+                    Item old = items.putIfAbsent(name, new Item(file));
+                    if (old != null && !Files.isSameFile(old.file, file))
+                        System.err.printf("  Duplicate entry %s ignored%n",
+                                          name);
+                }
+            } else if (arg.startsWith("-sorted:")) {
+                int count = Integer.parseInt(arg.substring(8));
+                Path out = Paths.get(args[++i]);
+                List<Path> ins = new ArrayList<>(count);
+                while (count-- > 0)
+                    ins.add(Paths.get(args[++i]));
+                writeSorted(out, ins);
+            } else {
+                rest.add(arg);
+            }
+        }
+        if (rest.size() != 1) {
+            System.err.println("usage: JarWriter [-m MANIFEST]"
+                + " [-date TIME] [-previous JAR] [-C DIR LIST ...]"
+                + " [-sorted:N OUT IN...] JAR");
+            System.exit(1);
+        }
+        Path jarFile = Paths.get(rest.get(0));
+
+        /* Complete the manifest as the jar tool would. */
+        Manifest manifest = new Manifest();
+        if (manifestFile != null) {
+            try (InputStream in = Files.newInputStream(manifestFile)) {
+                manifest.read(in);
+            }
+        }
+        Attributes main = manifest.getMainAttributes();
+        main.putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+        main.putIfAbsent(new Attributes.Name("Created-By"),
+                         System.getProperty("java.version") + " ("
+                             + System.getProperty("java.vendor") + ")");
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        manifest.write(manifestBytes);
+        items.remove("META-INF/");
+        items.remove(JarFile.MANIFEST_NAME);
+
+        final int dosTime = ZipWriter.dosTime(time);
+        try (FileChannel previous = openPrevious(previousFile)) {
+            /* Find entries that can be copied from the previous jar,
+             * which must be older than their files. */
+            Map<String, ZipWriter.Entry> priors = Collections.emptyMap();
+            FileTime written = null;
+            if (previous != null) {
+                written = Files.getLastModifiedTime(previousFile);
+                try {
+                    priors = ZipWriter.readDirectory(previous);
+                } catch (ZipException ex) {
+                    System.err.printf("  Ignoring %s: %s%n", previousFile,
+                                      ex.getMessage());
+                }
+            }
+            final Map<String, ZipWriter.Entry> finalPriors = priors;
+            final FileTime finalWritten = written;
+
+            /* Compute sizes and checksums concurrently, unless the
+             * previous jar already has them. */
+            try {
+                items.entrySet().parallelStream().forEach(entry -> {
+                    try {
+                        Item item = entry.getValue();
+                        ZipWriter.Entry prior =
+                            finalPriors.get(entry.getKey());
+                        if (prior != null
+                            && prior.method == ZipWriter.STORED
+                            && prior.dosTime == dosTime
+                            && prior.size == Files.size(item.file)
+                            && Files.getLastModifiedTime(item.file)
+                                .compareTo(finalWritten) < 0)
+                            item.previous = prior;
+                        else
+                            item.check();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+
+            int copied = 0;
+            try (ZipWriter out = new ZipWriter(jarFile)) {
+                out.add("META-INF/", dosTime, JAR_MAGIC, 0, new byte[0]);
+                byte[] manifestContent = manifestBytes.toByteArray();
+                CRC32 sum = new CRC32();
+                sum.update(manifestContent);
+                out.add(JarFile.MANIFEST_NAME, dosTime, new byte[0],
+                        sum.getValue(), manifestContent);
+                for (Map.Entry<String, Item> entry : items.entrySet()) {
+                    Item item = entry.getValue();
+                    if (item.previous != null) {
+                        out.copy(entry.getKey(), item.previous, previous);
+                        copied++;
+                    } else {
+                        out.add(entry.getKey(), dosTime, new byte[0],
+                                item.crc, item.size, item.file);
+                    }
+                }
+            }
+            if (previous != null)
+                System.err.printf("  Copied %d of %d entries%n", copied,
+                                  items.size());
+        }
+    }
+
+    private static FileChannel openPrevious(Path path) throws IOException {
+        if (path == null) return null;
+        try {
+            return FileChannel.open(path);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private static void writeSorted(Path out, List<Path> ins)
+        throws IOException {
+        /* Treat lines as bytes, so that their order does not depend on
+         * their encoding. */
+        List<String> lines = new ArrayList<>();
+        for (Path in : ins) {
+            try {
+                lines.addAll(Files
+                    .readAllLines(in, StandardCharsets.ISO_8859_1));
+            } catch (NoSuchFileException ex) {
+                continue;
+            }
+        }
+        Collections.sort(lines);
+        Files.write(out, lines, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -1,4 +1,3 @@
-
 /*
   Jardeps - per-tree Java dependencies in Make
   Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
@@ -19,17 +18,29 @@
  */
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -44,6 +55,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 import javax.tools.FileObject;
@@ -60,21 +73,103 @@ import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
 public final class JardepsCompiler {
+    /**
+     * The encoding of the text files that the compiler and the other
+     * utilities write for each other, regardless of the platform's
+     * default
+     */
+    static final Charset TEXT_ENCODING = StandardCharsets.UTF_8;
+
+    /**
+     * Open a text file for writing in {@link #TEXT_ENCODING}.
+     *
+     * @param file the file to write
+     *
+     * @return a writer for the file
+     *
+     * @throws IOException if the file could not be opened
+     */
+    static PrintWriter textWriter(File file) throws IOException {
+        return new PrintWriter(Files.newBufferedWriter(file.toPath(),
+                                                       TEXT_ENCODING));
+    }
+
+    /**
+     * Replace a file, so that anything reading it sees either the old
+     * content or the new.
+     *
+     * @param file the file to replace
+     *
+     * @param content the new content
+     *
+     * @throws IOException if the file could not be written
+     */
+    static void replaceFile(Path file, byte[] content) throws IOException {
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+                                        file.getFileName() + ".", null);
+        try {
+            Files.write(tmp, content);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } finally {
+            if (tmp != null) Files.deleteIfExists(tmp);
+        }
+    }
+
     private static class ExtraArgs implements OptionChecker {
         public List<String> sourceCommand;
         public List<String> classCommand;
         public List<String> inputCommand;
+        public List<String> sourceListing;
+        public List<String> classListing;
+        public List<String> inputListing;
+        public List<String> depfileListing;
+        public List<String> digestsListing;
         public File apiFile;
         public File ppiFile;
+        public File apiStructFile;
+        public File usageFile;
+        public File incrementalFile;
+        public File statsFile;
         public File usedPackagesFile;
         public File providedPackagesFile;
+        public File analysisCacheDir;
+        public long analysisCacheSize = 64;
+        public boolean streaming;
+        public File providedCommit;
+        public File usedCommit;
+        public File apiCommit;
+        public File ppiCommit;
+        public File commitStatusFile;
+        public String usageError;
 
         @Override
         public int isSupportedOption(String arg0) {
             if ("-profile:public".equals(arg0)) return 1;
             if ("-profile:default".equals(arg0)) return 1;
+            if ("-profile:struct".equals(arg0)) return 1;
+            if ("-usage".equals(arg0)) return 1;
+            if ("-incremental".equals(arg0)) return 1;
+            if ("-stats".equals(arg0)) return 1;
             if ("-packages:provided".equals(arg0)) return 1;
             if ("-packages:used".equals(arg0)) return 1;
+            if ("-cache:analysis".equals(arg0)) return 1;
+            if ("-cache:size".equals(arg0)) return 1;
+            if ("-streaming".equals(arg0)) return 0;
+            if ("-commit:provided".equals(arg0)) return 1;
+            if ("-commit:used".equals(arg0)) return 1;
+            if ("-commit:public".equals(arg0)) return 1;
+            if ("-commit:default".equals(arg0)) return 1;
+            if ("-commit:status".equals(arg0)) return 1;
+            if ("-list:sources:native".equals(arg0)) return 3;
+            if ("-list:inputs:native".equals(arg0)) return 3;
+            if ("-list:classes:native".equals(arg0)) return 2;
+            if ("-list:depfile".equals(arg0)) return 3;
+            if ("-digests".equals(arg0)) return 2;
             if (arg0.startsWith("-list:sources:"))
                 return Integer.parseInt(arg0.substring(14)) + 1;
             if (arg0.startsWith("-list:inputs:"))
@@ -99,6 +194,26 @@ public final class JardepsCompiler {
                     continue;
                 }
 
+                if ("-profile:struct".equals(arg0)) {
+                    apiStructFile = new File(iter.next());
+                    continue;
+                }
+
+                if ("-usage".equals(arg0)) {
+                    usageFile = new File(iter.next());
+                    continue;
+                }
+
+                if ("-incremental".equals(arg0)) {
+                    incrementalFile = new File(iter.next());
+                    continue;
+                }
+
+                if ("-stats".equals(arg0)) {
+                    statsFile = new File(iter.next());
+                    continue;
+                }
+
                 if ("-packages:provided".equals(arg0)) {
                     providedPackagesFile = new File(iter.next());
                     continue;
@@ -109,6 +224,80 @@ public final class JardepsCompiler {
                     continue;
                 }
 
+                if ("-cache:analysis".equals(arg0)) {
+                    analysisCacheDir = new File(iter.next());
+                    continue;
+                }
+
+                if ("-cache:size".equals(arg0)) {
+                    try {
+                        analysisCacheSize = Long.parseLong(iter.next());
+                    } catch (NumberFormatException ex) {
+                        analysisCacheSize = -1;
+                    }
+                    if (analysisCacheSize < 0)
+                        usageError = "-cache:size MEGABYTES";
+                    continue;
+                }
+
+                if ("-streaming".equals(arg0)) {
+                    streaming = true;
+                    continue;
+                }
+
+                if ("-commit:provided".equals(arg0)) {
+                    providedCommit = new File(iter.next());
+                    continue;
+                }
+
+                if ("-commit:used".equals(arg0)) {
+                    usedCommit = new File(iter.next());
+                    continue;
+                }
+
+                if ("-commit:public".equals(arg0)) {
+                    apiCommit = new File(iter.next());
+                    continue;
+                }
+
+                if ("-commit:default".equals(arg0)) {
+                    ppiCommit = new File(iter.next());
+                    continue;
+                }
+
+                if ("-commit:status".equals(arg0)) {
+                    commitStatusFile = new File(iter.next());
+                    continue;
+                }
+
+                if ("-list:sources:native".equals(arg0)) {
+                    sourceListing = Arrays.asList(iter.next(), iter.next(),
+                                                  iter.next());
+                    continue;
+                }
+
+                if ("-list:inputs:native".equals(arg0)) {
+                    inputListing = Arrays.asList(iter.next(), iter.next(),
+                                                 iter.next());
+                    continue;
+                }
+
+                if ("-list:classes:native".equals(arg0)) {
+                    classListing = Arrays.asList(iter.next(), iter.next());
+                    continue;
+                }
+
+                if ("-list:depfile".equals(arg0)) {
+                    depfileListing = Arrays.asList(iter.next(), iter.next(),
+                                                   iter.next());
+                    continue;
+                }
+
+                if ("-digests".equals(arg0)) {
+                    digestsListing = Arrays.asList(iter.next(), iter.next());
+                    continue;
+                }
+
                 if (arg0.startsWith("-list:sources:")) {
                     int amount = Integer.parseInt(arg0.substring(14)) + 1;
                     sourceCommand = new ArrayList<>(amount);
@@ -142,6 +331,60 @@ public final class JardepsCompiler {
         }
     }
 
+    /**
+     * List the readable source files and other input files used in a
+     * build that lie within a tree.
+     *
+     * @param prefix the path of the tree, ending with a separator
+     *
+     * @param sources the source files used
+     *
+     * @param inputs the other input files used
+     *
+     * @return the files' paths, relative to the current directory
+     */
+    private static List<String> usedFiles(String prefix,
+                                          Collection<ClassId> sources,
+                                          Collection<URI> inputs) {
+        List<String> result = new ArrayList<>();
+        for (ClassId clid : sources) {
+            String pt = prefix + clid + ".java";
+            if (Files.isReadable(Paths.get(pt))) result.add(pt);
+        }
+        Path here = Paths.get("").toAbsolutePath();
+        for (URI loc : inputs) {
+            String pt = here.relativize(Paths.get(loc)).toString();
+            if (pt.startsWith(prefix)) result.add(pt);
+        }
+        return result;
+    }
+
+    /**
+     * Escape a path for a depfile, in which spaces separate paths and
+     * hashes start comments, and dollars are doubled.
+     */
+    private static String escapeDepfile(String path) {
+        return path.replace(" ", "\\ ").replace("#", "\\#")
+            .replace("$", "$$");
+    }
+
+    /**
+     * Write a formatted line of a list or makefile fragment. Such
+     * files are read by Make, Ninja and the shell scripts that used to
+     * write them, so lines end with a line feed on every platform,
+     * rather than with the platform's line separator.
+     *
+     * @param out the destination
+     *
+     * @param format the format of the line, without its terminator
+     *
+     * @param args the arguments of the format
+     */
+    static void listLine(PrintWriter out, String format, Object... args) {
+        out.printf(format, args);
+        out.print('\n');
+    }
+
     private static void expandAtArgs(List<String> args) throws IOException {
         for (ListIterator<String> iter = args.listIterator(); iter
             .hasNext();) {
@@ -166,6 +409,57 @@ public final class JardepsCompiler {
 
     public static void
         main(String[] args) throws IOException, InterruptedException {
+        int rc;
+        if (args.length > 0
+            && (args[0].equals("-batch") || args[0].startsWith("-batch:"))) {
+            rc = BatchScheduler.run(args);
+        } else {
+            rc = compile(args, null);
+        }
+        if (rc != 0) System.exit(rc);
+    }
+
+    /**
+     * Compile a tree, and generate the requested by-products, running
+     * external commands in this process's environment.
+     * 
+     * @param args the command-line arguments
+     * 
+     * @param err the destination for diagnostics and the output of
+     * external commands, or {@code null} to use the standard error
+     * output and let external commands inherit the standard streams
+     * 
+     * @return the exit status, 0 on success
+     */
+    static int compile(String[] args, PrintWriter err)
+        throws IOException,
+            InterruptedException {
+        return compile(args, err, null);
+    }
+
+    /**
+     * Compile a tree, and generate the requested by-products.
+     * 
+     * @param args the command-line arguments
+     * 
+     * @param err the destination for diagnostics and the output of
+     * external commands, or {@code null} to use the standard error
+     * output and let external commands inherit the standard streams
+     * 
+     * @param env the environment of external commands, or {@code null}
+     * to use this process's
+     * 
+     * @return the exit status, 0 on success
+     */
+    static int compile(String[] args, PrintWriter err,
+                       Map<String, String> env)
+        throws IOException,
+            InterruptedException {
+        final PrintWriter log =
+            err != null ? err : new PrintWriter(System.err, true);
+        final BuildStats stats = new BuildStats();
+        final BuildStats.Phase total = stats.start("total");
+
         /* Create basic components. */
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
         OptionChecker classList = new OptionChecker() {
@@ -189,15 +483,16 @@ public final class JardepsCompiler {
         final Collection<ClassId> usedSourceFiles = new TreeSet<>();
         final Collection<URI> inputFiles = new TreeSet<>();
         final Collection<URI> outputFiles = new TreeSet<>();
+        final Map<ClassId, byte[]> classBytes = new ConcurrentHashMap<>();
 
         /* Create a way to monitor which files are used and
          * generated. */
         try (
             StandardJavaFileManager fm =
                 compiler.getStandardFileManager(null, null, null);
-            JavaFileManager monitor =
+            Monitor monitor =
                 new Monitor(fm, generatedFiles, usedSourceFiles, inputFiles,
-                            outputFiles) {
+                            outputFiles, classBytes) {
                     @Override
                     public String toString() {
                         return "monitor";
@@ -243,6 +538,15 @@ public final class JardepsCompiler {
 
             /* Pass our extension options. */
             extras.applyOptions(arguments.get(extras));
+            if (extras.usageError != null) {
+                log.println("usage: " + extras.usageError);
+                return 1;
+            }
+
+            /* When streaming, classes are read back as they are
+             * analysed, rather than all being kept as they are
+             * written. */
+            monitor.keepClasses = !extras.streaming;
 
             /* Pass options to the file manager. */
             for (Iterator<String> iter =
@@ -252,50 +556,200 @@ public final class JardepsCompiler {
                 assert status;
             }
 
+            /* Prepare to generate resources on demand. */
+            AnalysisCache cache = extras.analysisCacheDir == null ? null
+                : new AnalysisCache(extras.analysisCacheDir.toPath(),
+                                    extras.analysisCacheSize << 20);
+            Resources resources =
+                new Resources(fm, generatedFiles, classBytes, cache, stats);
+
             Iterable<? extends JavaFileObject> explicitSources =
                 fm.getJavaFileObjectsFromStrings(arguments.get(classList));
             if (!arguments.get(classList).isEmpty()) {
-                /* Prepare for compilation. */
-                CompilationTask task = compiler
-                    .getTask(null, monitor, null, arguments.get(compiler),
-                             null, explicitSources);
+                /* Try to recompile only what has changed since the last
+                 * compilation. */
+                IncrementalState state = null;
+                boolean done = false;
+                if (extras.incrementalFile != null
+                    && !fm.hasLocation(StandardLocation.CLASS_OUTPUT)) {
+                    log.println("  Incremental: no class output directory");
+                } else if (extras.incrementalFile != null) {
+                    String config = IncrementalState
+                        .digest(IncrementalCompiler
+                            .configuration(arguments.get(compiler),
+                                           arguments.get(monitor)));
+                    state = IncrementalState.read(extras.incrementalFile);
+                    if (state != null && !state.config.equals(config)) {
+                        log.println("  Incremental: configuration changed");
+                        state = null;
+                    }
+                    if (state != null && IncrementalCompiler
+                        .hasForeignProcessors(arguments.get(compiler), fm)) {
+                        log.println("  Incremental: unknown"
+                            + " annotation processors");
+                        state = null;
+                    }
+                    if (state != null)
+                        done = IncrementalCompiler
+                            .compileIncrementally(state, compiler, fm, monitor,
+                                                  arguments.get(compiler),
+                                                  explicitSources, resources,
+                                                  log);
+
+                    /* Start again from scratch otherwise. */
+                    if (!done) {
+                        extras.incrementalFile.delete();
+                        generatedFiles.clear();
+                        usedSourceFiles.clear();
+                        inputFiles.clear();
+                        outputFiles.clear();
+                        classBytes.clear();
+                        monitor.classSources.clear();
+                        resources.forget(new ArrayList<>(resources.summaries
+                            .keySet()));
+                        IncrementalCompiler.deleteClasses(fm, null);
+                        state = new IncrementalState(config);
+                    }
+                }
+
+                if (!done) {
+                    /* Prepare for compilation. */
+                    CompilationTask task = compiler
+                        .getTask(err, monitor, null, arguments.get(compiler),
+                                 null, explicitSources);
+
+                    /* Compile. */
+                    boolean okay;
+                    BuildStats.Phase phase = stats.start("javac");
+                    try {
+                        okay = task.call();
+                    } finally {
+                        phase.close();
+                    }
 
-                /* Compile. */
-                boolean okay = task.call();
+                    /* Report failure. */
+                    if (!okay) {
+                        total.close();
+                        if (extras.statsFile != null)
+                            stats.write(extras.statsFile);
+                        return 1;
+                    }
 
-                /* Report failure. */
-                if (!okay) System.exit(1);
+                    /* Record everything that was compiled. */
+                    if (state != null) {
+                        Map<ClassId, JavaFileObject> files =
+                            IncrementalCompiler.sourceNames(fm,
+                                                            explicitSources);
+                        Collection<ClassId> compiled =
+                            new TreeSet<>(files.keySet());
+                        compiled.addAll(monitor.classSources.values());
+                        if (!monitor.classSources.keySet()
+                            .containsAll(generatedFiles)
+                            || !IncrementalCompiler
+                                .recordSources(state, compiled,
+                                               monitor.classSources, files,
+                                               resources, fm))
+                            state = null;
+                    }
+                }
+
+                /* Save the state for the next compilation. */
+                if (state != null) {
+                    state.inputs.clear();
+                    for (URI uri : inputFiles)
+                        state.inputs.add(uri.toString());
+                    state.outputs.clear();
+                    for (URI uri : outputFiles)
+                        state.outputs.add(uri.toString());
+                    state.write(extras.incrementalFile);
+                }
             }
 
-            /* Prepare to generate resources on demand. */
-            Resources resources = new Resources(fm, generatedFiles);
+            /* Include the explicit sources in the list of source
+             * files. */
+            BuildStats.Phase listing = stats.start("lists");
+            for (JavaFileObject item : explicitSources) {
+                ClassId clid = ClassId.forName(monitor
+                    .inferBinaryName(StandardLocation.SOURCE_PATH, item));
+                usedSourceFiles.add(clid);
+            }
+
+            /* Record the readable source files used in this build as
+             * a makefile fragment.  It replaces the old one only once
+             * complete, as Make may be reading it while preparing
+             * other trees of a batch. */
+            if (extras.sourceListing != null) {
+                final String prefix = extras.sourceListing.get(1);
+                final String tree = extras.sourceListing.get(2);
+                StringWriter text = new StringWriter();
+                try (PrintWriter out = new PrintWriter(text)) {
+                    for (ClassId clid : usedSourceFiles) {
+                        if (!Files.isReadable(Paths
+                            .get(prefix + clid + ".java")))
+                            continue;
+                        listLine(out, "srclist-%s += %s.java", tree, clid);
+                    }
+                }
+                replaceFile(Paths.get(extras.sourceListing.get(0)),
+                            text.toString().getBytes(TEXT_ENCODING));
+            }
 
             /* Run an external command to deal with the list of source
              * files used in this build. */
             if (extras.sourceCommand != null) {
-                /* Include the explicit sources in the list of source
-                 * files. */
-                for (JavaFileObject item : explicitSources) {
-                    ClassId clid = ClassId.forName(monitor
-                        .inferBinaryName(StandardLocation.SOURCE_PATH, item));
-                    usedSourceFiles.add(clid);
-                }
-
                 for (ClassId clid : usedSourceFiles)
                     extras.sourceCommand.add(clid.toString());
-                ProcessBuilder builder =
-                    new ProcessBuilder(extras.sourceCommand);
-                builder.environment().putAll(System.getenv());
-                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
-                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                Process proc = builder.start();
-                proc.getOutputStream().close();
-                int rc = proc.waitFor();
+                int rc = runCommand(extras.sourceCommand, err, env);
                 if (rc != 0)
-                    System.err.printf("Warning: -list:sources command"
+                    log.printf("Warning: -list:sources command"
                         + " returned %d%n", rc);
             }
 
+            /* Record the non-Java input files used in this build as a
+             * makefile fragment. */
+            if (extras.inputListing != null) {
+                final String prefix = extras.inputListing.get(1);
+                final String tree = extras.inputListing.get(2);
+                Path here = Paths.get("").toAbsolutePath();
+                StringWriter text = new StringWriter();
+                try (PrintWriter out = new PrintWriter(text)) {
+                    for (URI loc : inputFiles) {
+                        String pt = here.relativize(Paths.get(loc)).toString();
+                        if (!pt.startsWith(prefix)) continue;
+                        listLine(out, "srclist-%s += %s", tree,
+                                 pt.substring(prefix.length()));
+                    }
+                }
+                replaceFile(Paths.get(extras.inputListing.get(0)),
+                            text.toString().getBytes(TEXT_ENCODING));
+            }
+
+            /* Record the readable source files and other input files
+             * used in this build as a depfile, naming the given
+             * target, for build tools other than Make. */
+            if (extras.depfileListing != null) {
+                final String target = extras.depfileListing.get(1);
+                final String prefix = extras.depfileListing.get(2);
+                try (PrintWriter out = textWriter(new File(extras
+                    .depfileListing.get(0)))) {
+                    out.printf("%s:", escapeDepfile(target));
+                    for (String pt : usedFiles(prefix, usedSourceFiles,
+                                               inputFiles)) {
+                        listLine(out, " \\");
+                        out.printf("  %s", escapeDepfile(pt));
+                    }
+                    listLine(out, "");
+                }
+            }
+
+            /* Record digests of the same files, so that their content
+             * can be checked for changes later. */
+            if (extras.digestsListing != null) {
+                SourceDigests.record(Paths.get(extras.digestsListing.get(0)),
+                                     usedFiles(extras.digestsListing.get(1),
+                                               usedSourceFiles, inputFiles));
+            }
+
             /* Run an external command to deal with the list of non-Java
              * input files used in this build. */
             if (extras.inputCommand != null) {
@@ -304,18 +758,28 @@ public final class JardepsCompiler {
                     Path pt = here.relativize(Paths.get(loc));
                     extras.inputCommand.add(pt.toString());
                 }
-                ProcessBuilder builder =
-                    new ProcessBuilder(extras.inputCommand);
-                builder.environment().putAll(System.getenv());
-                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
-                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                Process proc = builder.start();
-                proc.getOutputStream().close();
-                int rc = proc.waitFor();
-                if (rc != 0) System.err.printf("Warning: -list:inputs command"
+                int rc = runCommand(extras.inputCommand, err, env);
+                if (rc != 0) log.printf("Warning: -list:inputs command"
                     + " returned %d%n", rc);
             }
 
+            /* Record the classes and other files generated in this
+             * build. */
+            if (extras.classListing != null) {
+                final String prefix = extras.classListing.get(1);
+                Path here = Paths.get("").toAbsolutePath();
+                try (PrintWriter out = textWriter(new File(extras
+                    .classListing.get(0)))) {
+                    for (ClassId clid : generatedFiles)
+                        listLine(out, "%s.class", clid);
+                    for (URI loc : outputFiles) {
+                        String pt = here.relativize(Paths.get(loc)).toString();
+                        if (!pt.startsWith(prefix)) continue;
+                        listLine(out, "%s", pt.substring(prefix.length()));
+                    }
+                }
+            }
+
             /* Run an external command to deal with the list of classes
              * generated in this build. */
             if (extras.classCommand != null) {
@@ -327,29 +791,38 @@ public final class JardepsCompiler {
                     Path pt = here.relativize(Paths.get(loc));
                     extras.classCommand.add(pt.toString());
                 }
-                ProcessBuilder builder =
-                    new ProcessBuilder(extras.classCommand);
-                builder.environment().putAll(System.getenv());
-                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
-                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                Process proc = builder.start();
-                proc.getOutputStream().close();
-                int rc = proc.waitFor();
+                int rc = runCommand(extras.classCommand, err, env);
                 if (rc != 0)
-                    System.err.printf("Warning: -list:classes command"
+                    log.printf("Warning: -list:classes command"
                         + " returned %d%n", rc);
             }
 
+            listing.close();
+            stats.count("classes", generatedFiles.size());
+            stats.count("sources", usedSourceFiles.size());
+            stats.count("inputs", inputFiles.size());
+            stats.count("outputs", outputFiles.size());
+
+            /* Analyse the generated classes now if any by-product needs
+             * them, so that their analysis is timed separately.  When
+             * streaming, they are analysed as the by-products are
+             * generated instead. */
+            if (!extras.streaming && (extras.usedPackagesFile != null
+                || extras.apiFile != null || extras.ppiFile != null
+                || extras.apiStructFile != null || extras.usageFile != null))
+                resources.doAnalyses();
+
             /* Generate a list of packages of all generated classes. */
+            BuildStats.Phase packaging = stats.start("packages");
             if (extras.providedPackagesFile != null) {
-                Collection<String> providedPackages = new HashSet<>();
+                Collection<String> providedPackages = new TreeSet<>();
                 for (ClassId clid : generatedFiles) {
                     String pkg = clid.getPackageName();
                     if (pkg == null) continue;
                     providedPackages.add(pkg);
                 }
                 try (PrintWriter out =
-                    new PrintWriter(new FileWriter(extras.providedPackagesFile))) {
+                    textWriter(extras.providedPackagesFile)) {
                     for (String pkg : providedPackages)
                         out.println(pkg);
                 }
@@ -357,35 +830,41 @@ public final class JardepsCompiler {
 
             /* Generate a list of packages referenced by classed
              * compiled in this build. */
-            if (extras.usedPackagesFile != null) {
+            if (extras.usedPackagesFile != null && !extras.streaming) {
                 Collection<ClassId> runtimeClasses = new HashSet<>();
                 resources.getRuntimeClasses(runtimeClasses);
                 Collection<ClassId> externals = new TreeSet<>(runtimeClasses);
                 externals.removeAll(generatedFiles);
-                Collection<String> packages = new HashSet<>();
+                Collection<String> packages = new TreeSet<>();
                 for (ClassId clid : externals) {
                     String pkg = clid.getPackageName();
                     if (pkg != null) packages.add(pkg);
                 }
                 try (PrintWriter out =
-                    new PrintWriter(new FileWriter(extras.usedPackagesFile))) {
+                    textWriter(extras.usedPackagesFile)) {
                     for (String pkg : packages)
                         out.println(pkg);
                 }
             }
 
+            packaging.close();
+
             /* Generate the public and default profiles if requested. */
-            if (extras.apiFile != null || extras.ppiFile != null) {
+            BuildStats.Phase profiling = stats.start("profiles");
+            if (!extras.streaming
+                && (extras.apiFile != null || extras.ppiFile != null)) {
                 /* Compute the signatures and record all referenced
                  * classes. */
                 List<String> publicMemberLines = new ArrayList<>();
                 List<String> packageMemberLines = new ArrayList<>();
                 resources.getProfiles(publicMemberLines, packageMemberLines);
+                stats.count("public-lines", publicMemberLines.size());
+                stats.count("package-lines", packageMemberLines.size());
 
                 if (extras.apiFile != null) {
                     Collections.sort(publicMemberLines);
                     try (PrintWriter out =
-                        new PrintWriter(new FileWriter(extras.apiFile))) {
+                        textWriter(extras.apiFile)) {
                         for (String line : publicMemberLines)
                             out.println(line);
                     }
@@ -393,91 +872,500 @@ public final class JardepsCompiler {
                 if (extras.ppiFile != null) {
                     Collections.sort(packageMemberLines);
                     try (PrintWriter out =
-                        new PrintWriter(new FileWriter(extras.ppiFile))) {
+                        textWriter(extras.ppiFile)) {
                         for (String line : packageMemberLines)
                             out.println(line);
                     }
                 }
             }
+
+            /* Generate the structured public profile if requested. */
+            if (extras.apiStructFile != null && !extras.streaming) {
+                List<String> publicEntries = new ArrayList<>();
+                resources.getStructuredProfile(publicEntries);
+                Collections.sort(publicEntries);
+                try (PrintWriter out =
+                    textWriter(extras.apiStructFile)) {
+                    for (String line : publicEntries)
+                        out.println(line);
+                }
+            }
+
+            profiling.close();
+
+            /* Record the classes and members that the compiled classes
+             * might depend on, except for the classes themselves. */
+            if (extras.usageFile != null && !extras.streaming) {
+                BuildStats.Phase phase = stats.start("usage");
+                Collection<String> usage = new TreeSet<>();
+                resources.getUsage(usage);
+                for (ClassId clid : generatedFiles)
+                    usage.remove(ClassAnalysis.USED_CLASS + clid);
+                try (PrintWriter out =
+                    textWriter(extras.usageFile)) {
+                    for (String line : usage)
+                        out.println(line);
+                }
+                phase.close();
+            }
+
+            if (extras.streaming)
+                streamByProducts(extras, resources, generatedFiles, stats);
+
+            /* Replace the committed versions of by-products that have
+             * changed, and say which. */
+            List<String> changed = new ArrayList<>();
+            commit(extras.providedPackagesFile, extras.providedCommit,
+                   "Package provision changed", changed, log);
+            commit(extras.usedPackagesFile, extras.usedCommit,
+                   "Package use changed", changed, log);
+            commit(extras.apiFile, extras.apiCommit, "API changed", changed,
+                   log);
+            commit(extras.ppiFile, extras.ppiCommit, "PPI changed", changed,
+                   log);
+            if (extras.commitStatusFile != null)
+                Files.write(extras.commitStatusFile.toPath(), changed);
+        }
+        total.close();
+        if (extras.statsFile != null) stats.write(extras.statsFile);
+        return 0;
+    }
+
+    /**
+     * Replace the committed version of a by-product if its content
+     * differs, so that the committed file's timestamp reflects when
+     * its content last changed. The replacement is atomic.
+     * 
+     * @param file the by-product, or {@code null} if not generated
+     * 
+     * @param committed the committed version, or {@code null} if
+     * there is none
+     * 
+     * @param message the message to report if the content changed
+     * 
+     * @param changed a list to add the committed file to if it is
+     * replaced
+     * 
+     * @param log where to report the change
+     */
+    private static void commit(File file, File committed, String message,
+                               List<? super String> changed,
+                               PrintWriter log)
+        throws IOException {
+        if (file == null || committed == null) return;
+        byte[] content = Files.readAllBytes(file.toPath());
+        Path dest = committed.toPath();
+        try {
+            if (Arrays.equals(Files.readAllBytes(dest), content)) return;
+        } catch (NoSuchFileException ex) {
+            /* Create it. */
+        }
+        replaceFile(dest, content);
+        log.printf("  %s%n", message);
+        changed.add(committed.getPath());
+    }
+
+    /**
+     * The number of classes analysed together when streaming
+     */
+    static final int STREAM_CHUNK = 256;
+
+    /**
+     * The number of profile lines held before they are sorted and
+     * written out as a run
+     */
+    private static final int SORT_LIMIT = 1 << 16;
+
+    /**
+     * Generate the by-products that need the generated classes'
+     * analyses, analysing the classes a chunk at a time, and
+     * discarding each analysis once its lines have been taken. The
+     * lines are sorted in runs kept beside the files they are destined
+     * for, so memory use does not grow with the number of classes.
+     * 
+     * @param extras the by-products to generate
+     * 
+     * @param resources a means to analyse the generated classes
+     * 
+     * @param generatedFiles the generated classes
+     * 
+     * @param stats a record of the work done
+     */
+    private static void streamByProducts(ExtraArgs extras,
+                                         Resources resources,
+                                         Collection<ClassId> generatedFiles,
+                                         BuildStats stats)
+        throws IOException {
+        Collection<String> ownClasses = new HashSet<>();
+        if (extras.usageFile != null)
+            for (ClassId clid : generatedFiles)
+                ownClasses.add(ClassAnalysis.USED_CLASS + clid);
+        Collection<String> packages = new TreeSet<>();
+        try (LineSorter api = sorter(extras.apiFile, false);
+             LineSorter ppi = sorter(extras.ppiFile, false);
+             LineSorter struct = sorter(extras.apiStructFile, false);
+             LineSorter usage = sorter(extras.usageFile, true)) {
+            List<ClassId> chunk = new ArrayList<>(STREAM_CHUNK);
+            for (Iterator<ClassId> iter = generatedFiles.iterator(); iter
+                .hasNext();) {
+                chunk.add(iter.next());
+                if (chunk.size() < STREAM_CHUNK && iter.hasNext()) continue;
+                Map<ClassId, ClassSummary> summaries = resources.take(chunk);
+                BuildStats.Phase phase = stats.start("profiles");
+                try {
+                    for (ClassId clid : chunk) {
+                        ClassSummary summary = summaries.get(clid);
+                        if (api != null)
+                            for (String line : summary
+                                .getPublicMemberLines())
+                                api.add(line);
+                        if (ppi != null)
+                            for (String line : summary
+                                .getPackageMemberLines())
+                                ppi.add(line);
+                        if (struct != null)
+                            for (String line : summary.getPublicEntries())
+                                struct.add(line);
+                        if (usage != null)
+                            for (String line : summary.getUsage())
+                                if (!ownClasses.contains(line))
+                                    usage.add(line);
+                        if (extras.usedPackagesFile != null) {
+                            for (ClassId ref : summary.getRuntimeClasses()) {
+                                String pkg = ref.getPackageName();
+                                if (pkg != null
+                                    && !generatedFiles.contains(ref))
+                                    packages.add(pkg);
+                            }
+                        }
+                    }
+                } finally {
+                    phase.close();
+                }
+                chunk.clear();
+            }
+
+            BuildStats.Phase phase = stats.start("profiles");
+            try {
+                if (extras.usedPackagesFile != null) {
+                    try (PrintWriter out = textWriter(extras
+                        .usedPackagesFile)) {
+                        for (String pkg : packages)
+                            out.println(pkg);
+                    }
+                }
+                if (api != null) {
+                    stats.count("public-lines", api.count());
+                    api.writeTo(extras.apiFile);
+                }
+                if (ppi != null) {
+                    stats.count("package-lines", ppi.count());
+                    ppi.writeTo(extras.ppiFile);
+                }
+                if (struct != null) struct.writeTo(extras.apiStructFile);
+                if (usage != null) usage.writeTo(extras.usageFile);
+            } finally {
+                phase.close();
+            }
+        }
+    }
+
+    private static LineSorter sorter(File dest, boolean distinct) {
+        if (dest == null) return null;
+        File dir = dest.getAbsoluteFile().getParentFile();
+        return new LineSorter(dir.toPath(), SORT_LIMIT, distinct);
+    }
+
+    /**
+     * Run an external command to completion.
+     * 
+     * @param command the command and its arguments
+     * 
+     * @param err the destination for the command's output, or
+     * {@code null} if it should inherit the standard streams
+     * 
+     * @param env the command's environment, or {@code null} to use this
+     * process's
+     * 
+     * @return the command's exit status
+     */
+    static int runCommand(List<String> command, Writer err,
+                          Map<String, String> env)
+        throws IOException,
+            InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        if (env != null) {
+            builder.environment().clear();
+            builder.environment().putAll(env);
+        }
+        if (err == null) {
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        } else {
+            builder.redirectErrorStream(true);
+        }
+        Process proc = builder.start();
+        proc.getOutputStream().close();
+        if (err != null) {
+            try (Reader in = new InputStreamReader(proc.getInputStream())) {
+                char[] buf = new char[1024];
+                int got;
+                while ((got = in.read(buf)) >= 0)
+                    err.write(buf, 0, got);
+            }
+            err.flush();
         }
+        return proc.waitFor();
     }
 
-    private static class Resources {
+    static class Resources {
         private final Collection<ClassId> generatedFiles;
         private final StandardJavaFileManager fileManager;
+        private final Map<ClassId, byte[]> classBytes;
+        private final AnalysisCache cache;
+        final BuildStats stats;
 
         public Resources(StandardJavaFileManager fileManager,
-                         Collection<ClassId> generatedFiles) {
+                         Collection<ClassId> generatedFiles,
+                         Map<ClassId, byte[]> classBytes,
+                         AnalysisCache cache, BuildStats stats) {
             this.fileManager = fileManager;
             this.generatedFiles = generatedFiles;
+            this.classBytes = classBytes;
+            this.cache = cache;
+            this.stats = stats;
         }
 
-        private Map<ClassId, ClassAnalysis> analyses;
+        private final Map<ClassId, ClassSummary> summaries =
+            new ConcurrentHashMap<>();
 
         private void doAnalyses() throws IOException {
-            if (analyses != null) return;
-            analyses = new HashMap<>();
-            for (ClassId clid : generatedFiles) {
+            analyse(generatedFiles);
+        }
+
+        /**
+         * Discard analyses of classes that are about to be regenerated.
+         * 
+         * @param classes the classes whose analyses are to be discarded
+         */
+        public void forget(Collection<ClassId> classes) {
+            summaries.keySet().removeAll(classes);
+        }
+
+        /**
+         * Get the analysis of a class, which must have already been
+         * analysed.
+         * 
+         * @param clid the class
+         * 
+         * @return the class's analysis
+         */
+        public ClassSummary summary(ClassId clid) {
+            return summaries.get(clid);
+        }
+
+        /**
+         * Analyse classes that have not already been analysed.
+         * 
+         * @param classes the classes to be analysed
+         */
+        public void analyse(Collection<ClassId> classes) throws IOException {
+            summarize(locate(classes), summaries);
+        }
+
+        /**
+         * Get the analyses of classes, without keeping them. Any
+         * analyses already kept are discarded.
+         * 
+         * @param classes the classes whose analyses are required
+         * 
+         * @return the analyses of the classes
+         */
+        public Map<ClassId, ClassSummary> take(Collection<ClassId> classes)
+            throws IOException {
+            Map<ClassId, ClassSummary> result = new ConcurrentHashMap<>();
+            summarize(locate(classes), result);
+            for (ClassId clid : classes) {
+                ClassSummary summary = summaries.remove(clid);
+                if (summary != null) result.put(clid, summary);
+            }
+            return result;
+        }
+
+        /**
+         * Locate the classes that have not already been analysed.
+         * 
+         * @param classes the classes to locate
+         * 
+         * @return the classes' files, or {@code null} for those whose
+         * content was captured
+         */
+        private Map<ClassId, JavaFileObject>
+            locate(Collection<ClassId> classes) throws IOException {
+            /* The file manager is not thread-safe, so locate all the
+             * class files first.  Classes whose content was captured as
+             * they were written don't need to be read back. */
+            Map<ClassId, JavaFileObject> files = new LinkedHashMap<>();
+            for (ClassId clid : classes) {
+                if (summaries.containsKey(clid)) continue;
+                if (classBytes.containsKey(clid)) {
+                    files.put(clid, null);
+                    continue;
+                }
                 String className = clid.toString();
                 JavaFileObject fo = fileManager
                     .getJavaFileForInput(StandardLocation.CLASS_OUTPUT,
                                          className, Kind.CLASS);
-                try (DataInputStream in =
-                    new DataInputStream(fo.openInputStream())) {
-                    ClassAnalysis anal = new ClassAnalysis();
-                    anal.load(clid, in);
-                    analyses.put(clid, anal);
-                }
+                files.put(clid, fo);
+            }
+            return files;
+        }
+
+        /**
+         * Analyse classes.
+         * 
+         * @param files the classes' files, or {@code null} for those
+         * whose content was captured
+         * 
+         * @param into where to put the analyses
+         */
+        private void summarize(Map<ClassId, JavaFileObject> files,
+                               Map<? super ClassId, ? super ClassSummary> into)
+            throws IOException {
+            /* Load and analyse the classes concurrently, unless an
+             * identical class has already been analysed.  Each task
+             * also builds its class's profile, usage and runtime-class
+             * lines, so the getters below only gather them.  The CPU
+             * time is that of each task, wherever it runs. */
+            if (files.isEmpty()) return;
+            final long wallStart = System.nanoTime();
+            final LongAdder cpu = new LongAdder();
+            try {
+                files.entrySet().parallelStream().forEach(entry -> {
+                    final long cpuStart = BuildStats.cpuTime();
+                    try {
+                        byte[] bytes = classBytes.get(entry.getKey());
+                        if (bytes == null) {
+                            try (InputStream in =
+                                entry.getValue().openInputStream()) {
+                                bytes = in.readAllBytes();
+                            }
+                        }
+                        String key = null;
+                        ClassSummary summary = null;
+                        if (cache != null) {
+                            key = AnalysisCache.key(bytes);
+                            summary = cache.get(key);
+                        }
+                        if (summary == null) {
+                            ClassAnalysis anal = new ClassAnalysis();
+                            anal.load(entry.getKey(), ByteBuffer.wrap(bytes));
+                            summary = ClassSummary.of(anal);
+                            if (cache != null) cache.put(key, summary);
+                            stats.count("classes-parsed", 1);
+                            stats.count("bytes-parsed", bytes.length);
+                        } else {
+                            stats.count("cache-hits", 1);
+                        }
+                        into.put(entry.getKey(), summary);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    } finally {
+                        cpu.add(BuildStats.cpuTime() - cpuStart);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
             }
+            if (cache != null) cache.trim();
+            stats.add("analyse", System.nanoTime() - wallStart, cpu.sum());
         }
 
         public void getProfiles(Collection<? super String> publicMemberLines,
                                 Collection<? super String> packageMemberLines)
             throws IOException {
+            /* The lines were built concurrently by summarize; gather
+             * them in class order. */
             doAnalyses();
-            for (ClassAnalysis anal : analyses.values()) {
-                anal.createProfiles(publicMemberLines, packageMemberLines);
+            for (ClassId clid : generatedFiles) {
+                ClassSummary summary = summaries.get(clid);
+                publicMemberLines.addAll(summary.getPublicMemberLines());
+                packageMemberLines.addAll(summary.getPackageMemberLines());
             }
         }
 
+        public void getStructuredProfile(Collection<? super String> into)
+            throws IOException {
+            doAnalyses();
+            for (ClassId clid : generatedFiles)
+                into.addAll(summaries.get(clid).getPublicEntries());
+        }
+
+        public void getUsage(Collection<? super String> into)
+            throws IOException {
+            doAnalyses();
+            for (ClassId clid : generatedFiles)
+                into.addAll(summaries.get(clid).getUsage());
+        }
+
         public void getRuntimeClasses(Collection<? super ClassId> into)
             throws IOException {
             doAnalyses();
-            for (ClassAnalysis anal : analyses.values()) {
-                anal.getRuntimeClassReferences(into);
-            }
+            for (ClassId clid : generatedFiles)
+                into.addAll(summaries.get(clid).getRuntimeClasses());
         }
     }
 
-    private static class Monitor
+    static class Monitor
         extends ForwardingJavaFileManager<StandardJavaFileManager> {
 
-        private final Collection<ClassId> generatedFiles;
-        private final Collection<ClassId> usedSourceFiles;
-        private final Collection<URI> inputFiles;
-        private final Collection<URI> outputFiles;
+        final Collection<ClassId> generatedFiles;
+        final Collection<ClassId> usedSourceFiles;
+        final Collection<URI> inputFiles;
+        final Collection<URI> outputFiles;
+        private final Map<ClassId, byte[]> classBytes;
+
+        /**
+         * Records the source that each generated class came from, if
+         * known
+         */
+        final Map<ClassId, ClassId> classSources = new HashMap<>();
+
+        /**
+         * Whether to keep a copy of each class as it is written
+         */
+        boolean keepClasses = true;
 
         public Monitor(StandardJavaFileManager fileManager,
                        Collection<ClassId> generatedFiles,
                        Collection<ClassId> usedSourceFiles,
                        Collection<URI> inputFiles,
-                       Collection<URI> outputFiles) {
+                       Collection<URI> outputFiles,
+                       Map<ClassId, byte[]> classBytes) {
             super(fileManager);
             this.generatedFiles = generatedFiles;
             this.usedSourceFiles = usedSourceFiles;
             this.inputFiles = inputFiles;
             this.outputFiles = outputFiles;
+            this.classBytes = classBytes;
+        }
+
+        private static FileObject unwrap(FileObject file) {
+            if (file instanceof ReadHook) return ((ReadHook) file).base();
+            if (file instanceof WriteHook) return ((WriteHook) file).base();
+            return file;
         }
 
         @Override
         public String inferBinaryName(Location location,
                                       JavaFileObject file) {
-            if (file instanceof ReadHook) {
-                return super.inferBinaryName(location,
-                                             ((ReadHook) file).base());
-            } else {
-                return super.inferBinaryName(location, file);
-            }
+            return super.inferBinaryName(location,
+                                         (JavaFileObject) unwrap(file));
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            return super.isSameFile(unwrap(a), unwrap(b));
         }
 
         @Override
@@ -556,13 +1444,79 @@ public final class JardepsCompiler {
                 super.getJavaFileForOutput(location, className, kind,
                                            sibling);
             if (kind == Kind.CLASS
-                && location == StandardLocation.CLASS_OUTPUT)
-                generatedFiles
-                    .add(ClassId.forName(className.replace('.', '/')));
+                && location == StandardLocation.CLASS_OUTPUT) {
+                ClassId clid = ClassId.forName(className.replace('.', '/'));
+                generatedFiles.add(clid);
+                if (sibling instanceof JavaFileObject
+                    && ((JavaFileObject) sibling).getKind() == Kind.SOURCE) {
+                    String srcName =
+                        inferBinaryName(StandardLocation.SOURCE_PATH,
+                                        (JavaFileObject) sibling);
+                    if (srcName != null) classSources
+                        .put(clid, ClassId.forName(srcName.replace('.', '/')));
+                }
+
+                /* Keep a copy of the class as it is written. */
+                if (result != null && keepClasses)
+                    result = new WriteHook(result, clid, classBytes);
+            }
             return result;
         }
     }
 
+    private static class WriteHook
+        extends ForwardingJavaFileObject<JavaFileObject> {
+        private final ClassId clid;
+        private final Map<? super ClassId, ? super byte[]> into;
+
+        public WriteHook(JavaFileObject base, ClassId clid,
+                         Map<? super ClassId, ? super byte[]> into) {
+            super(base);
+            this.clid = clid;
+            this.into = into;
+        }
+
+        private JavaFileObject base() {
+            return fileObject;
+        }
+
+        @Override
+        public OutputStream openOutputStream() throws IOException {
+            into.remove(clid);
+            final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            return new FilterOutputStream(super.openOutputStream()) {
+                private boolean closed = false;
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    copy.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                    throws IOException {
+                    out.write(b, off, len);
+                    copy.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) return;
+                    closed = true;
+                    super.close();
+                    into.put(clid, copy.toByteArray());
+                }
+            };
+        }
+
+        @Override
+        public boolean delete() {
+            into.remove(clid);
+            return super.delete();
+        }
+    }
+
     private static class ReadHook
         extends ForwardingJavaFileObject<JavaFileObject> {
         private final ClassId clid;
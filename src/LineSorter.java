@@ -0,0 +1,180 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts lines using bounded memory. Lines are held until there are
+ * too many, and are then sorted and written to a temporary file as a
+ * run. The runs are merged as the result is written.
+ *
+ * @author simpsons
+ */
+final class LineSorter implements Closeable {
+    private final Path dir;
+
+    private final int limit;
+
+    private final boolean distinct;
+
+    private final List<String> lines = new ArrayList<>();
+
+    private final List<Path> runs = new ArrayList<>();
+
+    private long count;
+
+    /**
+     * Prepare to sort lines.
+     *
+     * @param dir the directory to hold runs in
+     *
+     * @param limit the number of lines to hold before writing a run
+     *
+     * @param distinct {@code true} if repeated lines are to be written
+     * only once
+     */
+    LineSorter(Path dir, int limit, boolean distinct) {
+        this.dir = dir;
+        this.limit = limit;
+        this.distinct = distinct;
+    }
+
+    /**
+     * Add a line.
+     *
+     * @param line the line to add
+     */
+    void add(String line) throws IOException {
+        lines.add(line);
+        count++;
+        if (lines.size() >= limit) spill();
+    }
+
+    /**
+     * Get the number of lines added.
+     *
+     * @return the number of lines added, including repeats
+     */
+    long count() {
+        return count;
+    }
+
+    private void spill() throws IOException {
+        Path run = Files.createTempFile(dir, "sort-", ".run");
+        runs.add(run);
+        sort();
+        try (BufferedWriter out =
+            Files.newBufferedWriter(run, JardepsCompiler.TEXT_ENCODING)) {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+        lines.clear();
+    }
+
+    private void sort() {
+        Collections.sort(lines);
+        if (!distinct) return;
+        int kept = 0;
+        for (String line : lines)
+            if (kept == 0 || !lines.get(kept - 1).equals(line))
+                lines.set(kept++, line);
+        lines.subList(kept, lines.size()).clear();
+    }
+
+    /**
+     * Write the sorted lines to a file, and discard them.
+     *
+     * @param file the destination
+     */
+    void writeTo(File file) throws IOException {
+        try (PrintWriter out = JardepsCompiler.textWriter(file)) {
+            if (runs.isEmpty()) {
+                sort();
+                for (String line : lines)
+                    out.println(line);
+                lines.clear();
+                return;
+            }
+            if (!lines.isEmpty()) spill();
+
+            /* Merge the runs, taking the least line from the head of
+             * each. */
+            class Head {
+                final BufferedReader in;
+
+                String line;
+
+                Head(BufferedReader in) throws IOException {
+                    this.in = in;
+                    this.line = in.readLine();
+                }
+            }
+            PriorityQueue<Head> heads =
+                new PriorityQueue<>((a, b) -> a.line.compareTo(b.line));
+            List<BufferedReader> readers = new ArrayList<>();
+            try {
+                for (Path run : runs) {
+                    BufferedReader in = Files
+                        .newBufferedReader(run, JardepsCompiler.TEXT_ENCODING);
+                    readers.add(in);
+                    Head head = new Head(in);
+                    if (head.line != null) heads.add(head);
+                }
+                String last = null;
+                while (!heads.isEmpty()) {
+                    Head head = heads.poll();
+                    if (!distinct || last == null || !last.equals(head.line))
+                        out.println(head.line);
+                    last = head.line;
+                    head.line = head.in.readLine();
+                    if (head.line != null) heads.add(head);
+                }
+            } finally {
+                for (BufferedReader in : readers)
+                    in.close();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Discard all lines and runs.
+     */
+    @Override
+    public void close() throws IOException {
+        lines.clear();
+        for (Path run : runs)
+            Files.deleteIfExists(run);
+        runs.clear();
+    }
+}
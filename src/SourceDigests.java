@@ -0,0 +1,182 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a digest of each source and input file used to compile a
+ * tree, so that the files can later be checked for changes of content
+ * rather than of modification time. The size and time of each file
+ * are recorded too, and a file that still has them is not read again.
+ *
+ * <p>
+ * Usage: {@code SourceDigests NAME DATABASE STAMP...}
+ *
+ * <p>
+ * For each tree {@code NAME}, the files listed in {@code DATABASE}
+ * are checked. If the database is missing, or any file has gone or
+ * has different content, {@code STAMP} is touched. Otherwise, the
+ * database is rewritten with the files' current sizes and times.
+ *
+ * @author simpsons
+ */
+public final class SourceDigests {
+    private static final String HEADER = "jardeps-digests 1";
+
+    private static final class Entry {
+        final String digest;
+
+        final long size;
+
+        final long time;
+
+        Entry(String digest, long size, long time) {
+            this.digest = digest;
+            this.size = size;
+            this.time = time;
+        }
+
+        /**
+         * Record a file's current content, size and time.
+         */
+        static Entry of(Path file) throws IOException {
+            BasicFileAttributes attrs =
+                Files.readAttributes(file, BasicFileAttributes.class);
+            return new Entry(IncrementalState
+                .digest(Files.readAllBytes(file)), attrs.size(),
+                             attrs.lastModifiedTime()
+                                 .to(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length % 3 != 0) {
+            System.err.println("usage: SourceDigests"
+                + " [NAME DATABASE STAMP]...");
+            System.exit(2);
+        }
+        for (int i = 0; i < args.length; i += 3) {
+            final String name = args[i];
+            final Path dbFile = Paths.get(args[i + 1]);
+            final Path stamp = Paths.get(args[i + 2]);
+            Map<String, Entry> db = read(dbFile);
+            if (db == null || !refresh(db)) {
+                System.err.printf("[JARDEPS] %s: Source content changed%n",
+                                  name);
+                if (Files.exists(stamp))
+                    Files.setLastModifiedTime(stamp, FileTime
+                        .fromMillis(System.currentTimeMillis()));
+                else
+                    Files.createFile(stamp);
+            } else {
+                write(dbFile, db);
+            }
+        }
+    }
+
+    /**
+     * Record the current state of some files.
+     *
+     * @param dbFile the database to write
+     *
+     * @param files the files to record
+     */
+    static void record(Path dbFile, Collection<String> files)
+        throws IOException {
+        Map<String, Entry> db = new TreeMap<>();
+        for (String file : files)
+            db.put(file, Entry.of(Paths.get(file)));
+        write(dbFile, db);
+    }
+
+    /**
+     * Bring the sizes and times of the files in a database up to date,
+     * provided that their content has not changed.
+     *
+     * @param db the database to update
+     *
+     * @return {@code true} if all files are present with their recorded
+     * content
+     */
+    private static boolean refresh(Map<String, Entry> db)
+        throws IOException {
+        for (Map.Entry<String, Entry> item : db.entrySet()) {
+            Path file = Paths.get(item.getKey());
+            Entry old = item.getValue();
+            final BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException ex) {
+                return false;
+            }
+            if (attrs.size() != old.size) return false;
+            if (attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) == old.time)
+                continue;
+            Entry now = Entry.of(file);
+            if (!now.digest.equals(old.digest)) return false;
+            item.setValue(now);
+        }
+        return true;
+    }
+
+    private static Map<String, Entry> read(Path dbFile) throws IOException {
+        try (BufferedReader in = Files
+            .newBufferedReader(dbFile, JardepsCompiler.TEXT_ENCODING)) {
+            if (!HEADER.equals(in.readLine())) return null;
+            Map<String, Entry> result = new TreeMap<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.split(" ", 4);
+                if (words.length != 4) return null;
+                result.put(words[3],
+                           new Entry(words[0], Long.parseLong(words[1]),
+                                     Long.parseLong(words[2])));
+            }
+            return result;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static void write(Path dbFile, Map<String, Entry> db)
+        throws IOException {
+        try (PrintWriter out = JardepsCompiler.textWriter(dbFile.toFile())) {
+            out.println(HEADER);
+            for (Map.Entry<String, Entry> item : db.entrySet()) {
+                Entry entry = item.getValue();
+                out.printf("%s %d %d %s%n", entry.digest, entry.size,
+                           entry.time, item.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Holds a structured public profile, as generated by
+ * {@link ClassAnalysis#createStructuredProfile(Collection)}, indexed
+ * by key.
+ *
+ * @author simpsons
+ */
+final class StructuredProfile {
+    private static class Entry {
+        final String kind;
+        final String supers;
+        final String line;
+
+        Entry(String kind, String supers, String line) {
+            this.kind = kind;
+            this.supers = supers;
+            this.line = line;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Read a structured profile.
+     *
+     * @param path the file to read
+     *
+     * @return the profile, or {@code null} if the file does not exist
+     *
+     * @throws IOException if the file could not be read
+     */
+    public static StructuredProfile read(Path path) throws IOException {
+        StructuredProfile result = new StructuredProfile();
+        return result.load(path) ? result : null;
+    }
+
+    /**
+     * Read and combine several structured profiles. Missing files are
+     * treated as empty.
+     *
+     * @param paths the files to read
+     *
+     * @return the combined profile
+     *
+     * @throws IOException if a file could not be read
+     */
+    public static StructuredProfile
+        readAll(Collection<? extends Path> paths) throws IOException {
+        StructuredProfile result = new StructuredProfile();
+        for (Path path : paths)
+            result.load(path);
+        return result;
+    }
+
+    private boolean load(Path path) throws IOException {
+        /* Use the same encoding as the writer, and don't reject
+         * anything. */
+        try (BufferedReader in =
+            new BufferedReader(new InputStreamReader(Files
+                .newInputStream(path), JardepsCompiler.TEXT_ENCODING))) {
+            for (String text = in.readLine(); text != null; text =
+                in.readLine()) {
+                String[] fields = text.split("\t", 4);
+                if (fields.length < 4) continue;
+                entries.put(fields[0],
+                            new Entry(fields[1], fields[2], fields[3]));
+            }
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write this profile in the form it was read, ordered by key.
+     *
+     * @param path the destination file
+     *
+     * @throws IOException if the file could not be written
+     */
+    public void write(Path path) throws IOException {
+        try (PrintWriter out =
+            JardepsCompiler.textWriter(path.toFile())) {
+            for (Map.Entry<String, Entry> item : new TreeMap<>(entries)
+                .entrySet()) {
+                Entry entry = item.getValue();
+                out.println(item.getKey() + '\t' + entry.kind + '\t'
+                    + entry.supers + '\t' + entry.line);
+            }
+        }
+    }
+
+    /**
+     * Get the kind of an entry.
+     *
+     * @param key the entry's key
+     *
+     * @return the entry's kind, or {@code null} if there is no such
+     * entry
+     */
+    public String kind(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.kind;
+    }
+
+    /**
+     * Get the direct supertypes of a class.
+     *
+     * @param key the class's key
+     *
+     * @return the internal names of the class's direct supertypes,
+     * which are empty if there is no such class
+     */
+    public Collection<String> supertypes(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.supers.isEmpty())
+            return Collections.emptySet();
+        return Arrays.asList(entry.supers.split(" "));
+    }
+
+    /**
+     * Identify changes to this profile that could break code compiled
+     * against it. These are removals, alterations and additions of
+     * abstract methods, which other classes might have to implement.
+     *
+     * @param newer the changed profile
+     *
+     * @return the keys of breaking changes, in order
+     */
+    public Collection<String> breakingChanges(StructuredProfile newer) {
+        Collection<String> result = new TreeSet<>();
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Entry other = newer.entries.get(item.getKey());
+            if (other == null || !other.line.equals(item.getValue().line))
+                result.add(item.getKey());
+        }
+        for (Map.Entry<String, Entry> item : newer.entries.entrySet()) {
+            if (entries.containsKey(item.getKey())) continue;
+            if (ClassAnalysis.ABSTRACT_KIND.equals(item.getValue().kind))
+                result.add(item.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Identify entries that have been added without breaking code
+     * compiled against this profile.
+     *
+     * @param newer the changed profile
+     *
+     * @return the keys of additions, in order
+     */
+    public Collection<String> additions(StructuredProfile newer) {
+        Collection<String> result = new TreeSet<>();
+        for (Map.Entry<String, Entry> item : newer.entries.entrySet()) {
+            if (entries.containsKey(item.getKey())) continue;
+            if (ClassAnalysis.ABSTRACT_KIND.equals(item.getValue().kind))
+                continue;
+            result.add(item.getKey());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Decides whether a tree must be recompiled because the APIs it
+ * depends on have changed in a way that affects what it uses.
+ *
+ * <p>
+ * Usage:
+ * {@code UsageChecker MESSAGE USAGE SEEN STAMP [PROFILE ...]}
+ *
+ * <p>
+ * {@code USAGE} is the tree's usage file, as generated by
+ * {@link ClassAnalysis#getUsage(Collection)}. Each {@code PROFILE} is
+ * the current structured profile of a tree or jar that the tree
+ * depends on. {@code SEEN} holds their combination as it was last
+ * checked, and is replaced by the current one. {@code STAMP} is
+ * touched if {@code USAGE} or {@code SEEN} did not exist, or if a
+ * breaking change might affect a use:
+ *
+ * <ul>
+ *
+ * <li>A change to a method or field matches a use of its name (and
+ * descriptor, for methods), whatever class it is referenced through.
+ *
+ * <li>A change to a class, or to an abstract method of it, matches a
+ * use of the class or of any subclass.
+ *
+ * <li>A change to a constant always matches, as its uses are inlined.
+ *
+ * </ul>
+ *
+ * @author simpsons
+ */
+public class UsageChecker {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("usage: UsageChecker MESSAGE USAGE SEEN STAMP"
+                + " [PROFILE ...]");
+            System.exit(1);
+        }
+        final String message = args[0];
+        final Path usageFile = Paths.get(args[1]);
+        final Path seenFile = Paths.get(args[2]);
+        final Path stampFile = Paths.get(args[3]);
+        List<Path> profileFiles = new ArrayList<>();
+        for (int i = 4; i < args.length; i++)
+            profileFiles.add(Paths.get(args[i]));
+
+        StructuredProfile newer = StructuredProfile.readAll(profileFiles);
+        StructuredProfile older = StructuredProfile.read(seenFile);
+
+        Collection<String> usage = new HashSet<>();
+        boolean affected;
+        try {
+            usage.addAll(Files.readAllLines(usageFile,
+                                           JardepsCompiler.TEXT_ENCODING));
+            affected = older == null;
+        } catch (NoSuchFileException ex) {
+            affected = true;
+        }
+
+        if (!affected) {
+            Collection<String> changes = older.breakingChanges(newer);
+            if (!changes.isEmpty()) {
+                Collection<String> used = affecting(changes, usage,
+                                                    older, newer);
+                affected = !used.isEmpty();
+                if (affected) {
+                    System.err.printf("%s changes used%n", message);
+                    for (String key : used)
+                        System.err.printf("  %s%n", key);
+                } else {
+                    System.err.printf("%s changes unused%n", message);
+                }
+            }
+        }
+
+        /* Keep the new profiles as the basis of the next check. */
+        newer.write(seenFile);
+
+        if (affected || !Files.exists(stampFile)) {
+            if (Files.exists(stampFile))
+                Files.setLastModifiedTime(stampFile, FileTime
+                    .fromMillis(System.currentTimeMillis()));
+            else
+                Files.createFile(stampFile);
+        }
+    }
+
+    private static Collection<String>
+        affecting(Collection<String> changes, Collection<String> usage,
+                  StructuredProfile older, StructuredProfile newer) {
+        /* Find all classes used directly, and their supertypes
+         * before and after the change. */
+        Collection<String> classes = new HashSet<>();
+        List<String> queue = new ArrayList<>();
+        for (String line : usage)
+            if (line.startsWith(ClassAnalysis.USED_CLASS))
+                queue.add(line.substring(ClassAnalysis.USED_CLASS.length()));
+        while (!queue.isEmpty()) {
+            String name = queue.remove(queue.size() - 1);
+            if (!classes.add(name)) continue;
+            queue.addAll(older.supertypes(name));
+            queue.addAll(newer.supertypes(name));
+        }
+
+        Collection<String> result = new TreeSet<>();
+        for (String key : changes) {
+            final String oldKind = older.kind(key);
+            final String newKind = newer.kind(key);
+            if (isKind(ClassAnalysis.CONSTANT_KIND, oldKind, newKind)) {
+                result.add(key);
+                continue;
+            }
+            if (isKind(ClassAnalysis.CLASS_KIND, oldKind, newKind)) {
+                if (classes.contains(key)) result.add(key);
+                continue;
+            }
+
+            /* The key is of a member. */
+            final int dot = key.indexOf('.');
+            final String owner = key.substring(0, dot);
+            final String member = key.substring(dot + 1);
+            if (usage.contains(ClassAnalysis.USED_MEMBER + member))
+                result.add(key);
+            else if (isKind(ClassAnalysis.ABSTRACT_KIND, oldKind, newKind)
+                && classes.contains(owner))
+                result.add(key);
+        }
+        return result;
+    }
+
+    private static boolean isKind(String kind, String oldKind,
+                                  String newKind) {
+        return kind.equals(oldKind) || kind.equals(newKind);
+    }
+}
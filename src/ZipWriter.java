@@ -0,0 +1,483 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file whose entries' sizes and checksums are known in
+ * advance. Entries may be written from files, or copied unaltered
+ * from another zip file, without recomputing their checksums.
+ *
+ * @author simpsons
+ */
+final class ZipWriter implements Closeable {
+    /**
+     * The method of an uncompressed entry
+     */
+    static final int STORED = 0;
+
+    private static final int LOCAL_SIG = 0x04034b50;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int UTF8_FLAG = 0x800;
+    private static final long MAX32 = 0xffffffffL;
+    private static final int MAX16 = 0xffff;
+
+    /**
+     * Describes an entry in an existing zip file.
+     */
+    static final class Entry {
+        /**
+         * The entry's compression method
+         */
+        final int method;
+
+        /**
+         * The entry's general-purpose flags
+         */
+        final int flags;
+
+        /**
+         * The entry's time and date in MS-DOS form
+         */
+        final int dosTime;
+
+        /**
+         * The CRC-32 of the uncompressed content
+         */
+        final long crc;
+
+        /**
+         * The length of the stored content
+         */
+        final long compressedSize;
+
+        /**
+         * The length of the uncompressed content
+         */
+        final long size;
+
+        /**
+         * The position of the entry's local header
+         */
+        final long offset;
+
+        Entry(int method, int flags, int dosTime, long crc,
+              long compressedSize, long size, long offset) {
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Record {
+        final byte[] name;
+        final byte[] extra;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        Record(byte[] name, byte[] extra, int method, int dosTime, long crc,
+               long compressedSize, long size, long offset) {
+            this.name = name;
+            this.extra = extra;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        boolean needsZip64() {
+            return size >= MAX32 || compressedSize >= MAX32
+                || offset >= MAX32;
+        }
+    }
+
+    private final FileChannel out;
+
+    private final List<Record> records = new ArrayList<>();
+
+    private long position;
+
+    /**
+     * Create a zip file, replacing any existing file.
+     *
+     * @param path the file to create
+     *
+     * @throws IOException if the file could not be created
+     */
+    ZipWriter(Path path) throws IOException {
+        out = FileChannel.open(path, StandardOpenOption.CREATE,
+                               StandardOpenOption.TRUNCATE_EXISTING,
+                               StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Convert a local time to MS-DOS form.
+     *
+     * @param time the time to convert, which must be no earlier than
+     * 1980
+     *
+     * @return the date in the upper 16 bits, and the time in the lower
+     */
+    static int dosTime(LocalDateTime time) {
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21
+            | time.getDayOfMonth() << 16 | time.getHour() << 11
+            | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    /**
+     * Add an uncompressed entry.
+     *
+     * @param name the entry's name
+     *
+     * @param dosTime the entry's time and date in MS-DOS form
+     *
+     * @param extra the entry's extra field
+     *
+     * @param crc the CRC-32 of the content
+     *
+     * @param size the length of the content
+     *
+     * @param content the file holding the content
+     *
+     * @throws IOException if the file could not be read, or its length
+     * has changed
+     */
+    void add(String name, int dosTime, byte[] extra, long crc, long size,
+             Path content)
+        throws IOException {
+        writeHeader(name, extra, STORED, dosTime, crc, size, size);
+        try (FileChannel in = FileChannel.open(content)) {
+            transfer(in, 0, size, content.toString());
+        }
+    }
+
+    /**
+     * Add an uncompressed entry.
+     *
+     * @param name the entry's name
+     *
+     * @param dosTime the entry's time and date in MS-DOS form
+     *
+     * @param extra the entry's extra field
+     *
+     * @param crc the CRC-32 of the content
+     *
+     * @param content the content
+     *
+     * @throws IOException if the entry could not be written
+     */
+    void add(String name, int dosTime, byte[] extra, long crc,
+             byte[] content)
+        throws IOException {
+        writeHeader(name, extra, STORED, dosTime, crc, content.length,
+                    content.length);
+        write(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Copy an entry unaltered from another zip file.
+     *
+     * @param name the entry's name
+     *
+     * @param entry the entry's description in the other file
+     *
+     * @param in the other file
+     *
+     * @throws IOException if the entry could not be copied
+     */
+    void copy(String name, Entry entry, FileChannel in) throws IOException {
+        ByteBuffer header = read(in, entry.offset, 30);
+        if (header.getInt(0) != LOCAL_SIG)
+            throw new ZipException("bad local header for " + name);
+        long data = entry.offset + 30 + (header.getShort(26) & MAX16)
+            + (header.getShort(28) & MAX16);
+        writeHeader(name, new byte[0], entry.method, entry.dosTime,
+                    entry.crc, entry.compressedSize, entry.size);
+        transfer(in, data, entry.compressedSize, name);
+    }
+
+    private void writeHeader(String name, byte[] extra, int method,
+                             int dosTime, long crc, long compressedSize,
+                             long size)
+        throws IOException {
+        Record rec = new Record(name.getBytes(StandardCharsets.UTF_8), extra,
+                                method, dosTime, crc, compressedSize, size,
+                                position);
+        records.add(rec);
+        boolean zip64 = size >= MAX32 || compressedSize >= MAX32;
+        ByteBuffer buf = buffer(30 + rec.name.length + extra.length
+            + (zip64 ? 20 : 0));
+        buf.putInt(LOCAL_SIG);
+        buf.putShort((short) (zip64 ? 45 : 10));
+        buf.putShort((short) UTF8_FLAG);
+        buf.putShort((short) method);
+        buf.putInt(dosTime);
+        buf.putInt((int) crc);
+        buf.putInt((int) (zip64 ? MAX32 : compressedSize));
+        buf.putInt((int) (zip64 ? MAX32 : size));
+        buf.putShort((short) rec.name.length);
+        buf.putShort((short) (extra.length + (zip64 ? 20 : 0)));
+        buf.put(rec.name);
+        buf.put(extra);
+        if (zip64) {
+            buf.putShort((short) ZIP64_EXTRA);
+            buf.putShort((short) 16);
+            buf.putLong(size);
+            buf.putLong(compressedSize);
+        }
+        buf.flip();
+        write(buf);
+    }
+
+    /**
+     * Write the central directory, and close the file.
+     *
+     * @throws IOException if the directory could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            final long start = position;
+            for (Record rec : records) {
+                boolean zip64 = rec.needsZip64();
+                ByteBuffer buf = buffer(46 + rec.name.length
+                    + rec.extra.length + (zip64 ? 28 : 0));
+                buf.putInt(CENTRAL_SIG);
+                buf.putShort((short) (zip64 ? 45 : 10));
+                buf.putShort((short) (zip64 ? 45 : 10));
+                buf.putShort((short) UTF8_FLAG);
+                buf.putShort((short) rec.method);
+                buf.putInt(rec.dosTime);
+                buf.putInt((int) rec.crc);
+                buf.putInt((int) (zip64 ? MAX32 : rec.compressedSize));
+                buf.putInt((int) (zip64 ? MAX32 : rec.size));
+                buf.putShort((short) rec.name.length);
+                buf.putShort((short) (rec.extra.length + (zip64 ? 28 : 0)));
+                buf.putShort((short) 0);
+                buf.putShort((short) 0);
+                buf.putShort((short) 0);
+                buf.putInt(0);
+                buf.putInt((int) (zip64 ? MAX32 : rec.offset));
+                buf.put(rec.name);
+                buf.put(rec.extra);
+                if (zip64) {
+                    buf.putShort((short) ZIP64_EXTRA);
+                    buf.putShort((short) 24);
+                    buf.putLong(rec.size);
+                    buf.putLong(rec.compressedSize);
+                    buf.putLong(rec.offset);
+                }
+                buf.flip();
+                write(buf);
+            }
+            final long length = position - start;
+            final int count = records.size();
+
+            /* Use the 64-bit end records only if the ordinary one
+             * can't hold the values. */
+            boolean zip64 = count >= MAX16 || start >= MAX32
+                || length >= MAX32;
+            if (zip64) {
+                final long end64 = position;
+                ByteBuffer buf = buffer(56 + 20);
+                buf.putInt(ZIP64_END_SIG);
+                buf.putLong(44);
+                buf.putShort((short) 45);
+                buf.putShort((short) 45);
+                buf.putInt(0);
+                buf.putInt(0);
+                buf.putLong(count);
+                buf.putLong(count);
+                buf.putLong(length);
+                buf.putLong(start);
+                buf.putInt(ZIP64_LOCATOR_SIG);
+                buf.putInt(0);
+                buf.putLong(end64);
+                buf.putInt(1);
+                buf.flip();
+                write(buf);
+            }
+            ByteBuffer buf = buffer(22);
+            buf.putInt(END_SIG);
+            buf.putShort((short) 0);
+            buf.putShort((short) 0);
+            buf.putShort((short) Math.min(count, MAX16));
+            buf.putShort((short) Math.min(count, MAX16));
+            buf.putInt((int) Math.min(length, MAX32));
+            buf.putInt((int) Math.min(start, MAX32));
+            buf.putShort((short) 0);
+            buf.flip();
+            write(buf);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the central directory of an existing zip file.
+     *
+     * @param in the zip file
+     *
+     * @return a description of each entry, indexed by name, in the
+     * order of the directory
+     *
+     * @throws IOException if the file could not be read, or is not a
+     * zip file
+     */
+    static Map<String, Entry> readDirectory(FileChannel in)
+        throws IOException {
+        /* Find the end record, which might be followed by a
+         * comment. */
+        final long fileSize = in.size();
+        final int tail = (int) Math.min(fileSize, 22 + MAX16);
+        ByteBuffer buf = read(in, fileSize - tail, tail);
+        int endPos = -1;
+        for (int i = tail - 22; i >= 0; i--) {
+            if (buf.getInt(i) == END_SIG) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos < 0) throw new ZipException("no end record");
+        long count = buf.getShort(endPos + 10) & MAX16;
+        long length = buf.getInt(endPos + 12) & MAX32;
+        long start = buf.getInt(endPos + 16) & MAX32;
+
+        /* Consult the 64-bit end record if there is one. */
+        final long locatorPos = fileSize - tail + endPos - 20;
+        if (locatorPos >= 0) {
+            ByteBuffer loc = read(in, locatorPos, 20);
+            if (loc.getInt(0) == ZIP64_LOCATOR_SIG) {
+                ByteBuffer end64 = read(in, loc.getLong(8), 56);
+                if (end64.getInt(0) != ZIP64_END_SIG)
+                    throw new ZipException("bad 64-bit end record");
+                count = end64.getLong(32);
+                length = end64.getLong(40);
+                start = end64.getLong(48);
+            }
+        }
+
+        ByteBuffer dir = read(in, start, Math.toIntExact(length));
+        Map<String, Entry> result = new LinkedHashMap<>();
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (dir.getInt(pos) != CENTRAL_SIG)
+                throw new ZipException("bad central header");
+            final int flags = dir.getShort(pos + 8) & MAX16;
+            final int method = dir.getShort(pos + 10) & MAX16;
+            final int time = dir.getInt(pos + 12);
+            final long crc = dir.getInt(pos + 16) & MAX32;
+            long compressedSize = dir.getInt(pos + 20) & MAX32;
+            long size = dir.getInt(pos + 24) & MAX32;
+            final int nameLen = dir.getShort(pos + 28) & MAX16;
+            final int extraLen = dir.getShort(pos + 30) & MAX16;
+            final int commentLen = dir.getShort(pos + 32) & MAX16;
+            long offset = dir.getInt(pos + 42) & MAX32;
+            byte[] name = new byte[nameLen];
+            dir.position(pos + 46);
+            dir.get(name);
+
+            /* Replace saturated fields with their 64-bit values. */
+            for (int x = pos + 46 + nameLen; x + 4 <= pos + 46 + nameLen
+                + extraLen;) {
+                final int id = dir.getShort(x) & MAX16;
+                final int len = dir.getShort(x + 2) & MAX16;
+                if (id == ZIP64_EXTRA) {
+                    int y = x + 4;
+                    if (size == MAX32) {
+                        size = dir.getLong(y);
+                        y += 8;
+                    }
+                    if (compressedSize == MAX32) {
+                        compressedSize = dir.getLong(y);
+                        y += 8;
+                    }
+                    if (offset == MAX32) offset = dir.getLong(y);
+                }
+                x += 4 + len;
+            }
+
+            result.put(new String(name, StandardCharsets.UTF_8),
+                       new Entry(method, flags, time, crc, compressedSize,
+                                 size, offset));
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+        return result;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer read(FileChannel in, long pos, int size)
+        throws IOException {
+        ByteBuffer buf = buffer(size);
+        while (buf.hasRemaining()) {
+            int got = in.read(buf, pos + buf.position());
+            if (got < 0) throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            position += out.write(buf);
+    }
+
+    private void transfer(FileChannel in, long pos, long size, String what)
+        throws IOException {
+        long done = 0;
+        while (done < size) {
+            long got = in.transferTo(pos + done, size - done, out);
+            if (got <= 0)
+                throw new EOFException("short content for " + what);
+            done += got;
+        }
+        position += size;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Checks how {@link StructuredProfile} classifies the differences
+ * between the profiles of compiled classes, and that
+ * {@link ApiComparator} touches its stamp only for breaking changes.
+ *
+ * @author simpsons
+ */
+final class ApiComparatorTest {
+    private static final String SHAPE = "// Shape\n"
+        + "public abstract class Shape {\n"
+        + "    public abstract double area();\n" + "}\n";
+
+    private static final String BOX = "// Box\n"
+        + "public class Box extends Shape {\n"
+        + "    public static final int SIDES = 4;\n"
+        + "    public int width;\n"
+        + "    public double area() { return width * width; }\n"
+        + "    public void grow() { width++; }\n" + "}\n";
+
+    private static final FileTime OLD = FileTime.fromMillis(1000000000L);
+
+    private static Path dir;
+
+    private static int versions;
+
+    public static void main(String[] args) throws Exception {
+        dir = Check.workDir();
+        profiles();
+        comparator();
+        Check.passed(ApiComparatorTest.class);
+    }
+
+    private static Path version(String... sources) throws Exception {
+        Path work = dir.resolve("v" + ++versions);
+        Path profile = dir.resolve("v" + versions + ".api");
+        Check.profile(work, profile, sources);
+        return profile;
+    }
+
+    private static void profiles() throws Exception {
+        StructuredProfile base = StructuredProfile.read(version(SHAPE, BOX));
+        Check.equal(null, StructuredProfile.read(dir.resolve("missing")),
+                    "missing profile");
+        Check.equal(ClassAnalysis.CLASS_KIND, base.kind("Box"), "class kind");
+        Check.equal(ClassAnalysis.ABSTRACT_KIND, base.kind("Shape.area()D"),
+                    "abstract kind");
+        Check.equal(ClassAnalysis.CONSTANT_KIND, base.kind("Box.SIDES"),
+                    "constant kind");
+        Check.equal(null, base.kind("Box.nothing"), "no such key");
+        Check.equal(Arrays.asList("Shape"), base.supertypes("Box"),
+                    "supertypes");
+        Check.equal(Collections.emptySet(), base.supertypes("Missing"),
+                    "supertypes of missing class");
+
+        /* Private changes leave the profile as it was. */
+        StructuredProfile same = StructuredProfile.read(version(SHAPE, BOX
+            .replace("public void grow()", "private void shrink() {}\n"
+                + "    public void grow()")));
+        Check.equal(Collections.emptySet(), base.breakingChanges(same),
+                    "private change breaks");
+        Check.equal(Collections.emptySet(), base.additions(same),
+                    "private change adds");
+
+        StructuredProfile added = StructuredProfile.read(version(SHAPE, BOX
+            .replace("public void grow()", "public void fill() {}\n"
+                + "    public void grow()")));
+        Check.equal(Collections.emptySet(), base.breakingChanges(added),
+                    "added method breaks");
+        Check.equal(Collections.singleton("Box.fill()V"),
+                    base.additions(added), "added method");
+
+        StructuredProfile changed = StructuredProfile.read(version(SHAPE, BOX
+            .replace("grow()", "grow(int by)")
+            .replace("width++", "width += by")
+            .replace("public int width", "public long width")
+            .replace("SIDES = 4", "SIDES = 5")));
+        Check.equal(Arrays.asList("Box.SIDES", "Box.grow()V", "Box.width"),
+                    Arrays.asList(base.breakingChanges(changed)
+                        .toArray(new String[0])),
+                    "changed members");
+        Check.equal(Collections.singleton("Box.grow(I)V"),
+                    base.additions(changed), "changed method's replacement");
+
+        String cornered = SHAPE.replace("area();", "area();\n"
+            + "    public abstract int corners();");
+        String implemented = BOX.replace("public void grow()",
+                                         "public int corners() { return 4; }\n"
+                                             + "    public void grow()");
+        StructuredProfile abstracted =
+            StructuredProfile.read(version(cornered, implemented));
+        Check.equal(Collections.singleton("Shape.corners()I"),
+                    base.breakingChanges(abstracted), "added abstract method");
+        Check.equal(Collections.singleton("Box.corners()I"),
+                    base.additions(abstracted), "added implementation");
+
+        /* Profiles read together are combined, and written in key
+         * order. */
+        List<String> lines = Files.readAllLines(dir.resolve("v1.api"));
+        Path shapes = dir.resolve("shapes.api");
+        Path boxes = dir.resolve("boxes.api");
+        Files.write(shapes, lines.stream().filter(l -> l.startsWith("Shape"))
+            .collect(Collectors.toList()));
+        Files.write(boxes, lines.stream().filter(l -> l.startsWith("Box"))
+            .collect(Collectors.toList()));
+        Path written = dir.resolve("combined.api");
+        StructuredProfile
+            .readAll(Arrays.asList(shapes, dir.resolve("missing"), boxes))
+            .write(written);
+        Check.equal(lines, Files.readAllLines(written), "combined profile");
+    }
+
+    private static void comparator() throws Exception {
+        Path before = version(SHAPE, BOX);
+        Path extended = version(SHAPE, BOX
+            .replace("public void grow()",
+                     "public void fill() {}\n" + "    public void grow()"));
+        Path broken = version(SHAPE, BOX.replace("public int width",
+                                                 "public long width"));
+        Path old = dir.resolve("seen.api");
+        Path stamp = dir.resolve("seen.stamp");
+
+        String out = compare(before, old, stamp);
+        Check.equal("", out, "first comparison message");
+        Check.that(Files.exists(stamp), "stamp created");
+        Check.equal(Files.readAllLines(before), Files.readAllLines(old),
+                    "first profile kept");
+
+        Files.setLastModifiedTime(stamp, OLD);
+        Check.equal("", compare(before, old, stamp),
+                    "unchanged comparison message");
+        Check.equal(OLD, Files.getLastModifiedTime(stamp),
+                    "stamp after no change");
+
+        Check.equal(String.format("box extended%n"),
+                    compare(extended, old, stamp), "extension message");
+        Check.equal(OLD, Files.getLastModifiedTime(stamp),
+                    "stamp after extension");
+        Check.equal(Files.readAllLines(extended), Files.readAllLines(old),
+                    "extended profile kept");
+
+        Check.equal(String.format("box broken%n  Box.fill()V%n  Box.width%n"),
+                    compare(broken, old, stamp), "breakage message");
+        Check.that(!OLD.equals(Files.getLastModifiedTime(stamp)),
+                   "stamp touched after breakage");
+        Check.equal(Files.readAllLines(broken), Files.readAllLines(old),
+                    "broken profile kept");
+    }
+
+    private static String compare(Path newer, Path older, Path stamp)
+        throws Exception {
+        return Check.stderr(() -> ApiComparator
+            .main(new String[] { "box", newer.toString(), older.toString(),
+                stamp.toString() }));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Supports the tests, which are run with {@code make check}. Each test
+ * class has a {@code main} method that runs its cases in turn, and
+ * throws on the first that fails.
+ *
+ * @author simpsons
+ */
+final class Check {
+    private Check() {}
+
+    /**
+     * A case expected to throw
+     */
+    interface Failing {
+        void run() throws Exception;
+    }
+
+    /**
+     * Fail unless a condition holds.
+     *
+     * @param cond the condition
+     *
+     * @param what what the condition means
+     */
+    static void that(boolean cond, String what) {
+        if (!cond) throw new AssertionError(what);
+    }
+
+    /**
+     * Fail unless two values are equal.
+     *
+     * @param expected the expected value
+     *
+     * @param actual the actual value
+     *
+     * @param what what the values are
+     */
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.deepEquals(expected, actual))
+            throw new AssertionError(what + ": expected <" + expected
+                + "> but was <" + actual + ">");
+    }
+
+    /**
+     * Fail unless some code throws an exception of a given type.
+     *
+     * @param type the expected type of exception
+     *
+     * @param code the code to run
+     *
+     * @param what what the code does
+     */
+    static void fails(Class<? extends Exception> type, Failing code,
+                      String what) {
+        try {
+            code.run();
+        } catch (Exception ex) {
+            if (type.isInstance(ex)) return;
+            throw new AssertionError(what + ": threw " + ex, ex);
+        }
+        throw new AssertionError(what + ": did not throw "
+            + type.getSimpleName());
+    }
+
+    /**
+     * Run some code, and capture what it prints to the standard error
+     * stream.
+     *
+     * @param code the code to run
+     *
+     * @return the text printed
+     */
+    static String stderr(Failing code) throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream old = System.err;
+        System.setErr(new PrintStream(buf, true, "UTF-8"));
+        try {
+            code.run();
+        } finally {
+            System.setErr(old);
+        }
+        return buf.toString("UTF-8");
+    }
+
+    /**
+     * Report that a test class has passed.
+     *
+     * @param test the test class
+     */
+    static void passed(Class<?> test) {
+        System.err.printf("[CHECK] %s: passed%n", test.getName());
+    }
+
+    /**
+     * Create an empty working directory, which is deleted when the
+     * JVM exits.
+     *
+     * @return the new directory
+     */
+    static Path workDir() throws IOException {
+        Path dir = Files.createTempDirectory("jardeps-check-");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                delete(dir);
+            } catch (IOException ex) {
+                /* Leave it for the system to clear. */
+            }
+        }));
+        return dir;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs)
+                throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                                                      IOException ex)
+                throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Compile sources, and write the structured public profile of the
+     * resulting classes.
+     *
+     * @param dir a directory to compile in
+     *
+     * @param profile the file to write the profile to
+     *
+     * @param sources the text of each source file, each declaring a
+     * class in the default package named in its first line as
+     * {@code // NAME}
+     */
+    static void profile(Path dir, Path profile, String... sources)
+        throws IOException {
+        Path src = Files.createDirectories(dir.resolve("src"));
+        Path out = Files.createDirectories(dir.resolve("out"));
+        List<String> args = new ArrayList<>(Arrays.asList("-d",
+                                                          out.toString()));
+        for (String text : sources) {
+            String name = text.substring(3, text.indexOf('\n')).trim();
+            Path file = src.resolve(name + ".java");
+            Files.write(file, text.getBytes(JardepsCompiler.TEXT_ENCODING));
+            args.add(file.toString());
+        }
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        that(javac.run(null, null, null, args.toArray(new String[0])) == 0,
+             "sources compile");
+
+        Collection<String> entries = new TreeSet<>();
+        try (Stream<Path> classes = Files.list(out)) {
+            for (Path file : (Iterable<Path>) classes::iterator) {
+                ClassAnalysis anal = new ClassAnalysis();
+                String name = file.getFileName().toString();
+                anal.load(ClassId.forName(name.substring(0, name.length()
+                    - ".class".length())), file);
+                anal.createStructuredProfile(entries);
+            }
+        }
+        Files.write(profile, entries, JardepsCompiler.TEXT_ENCODING);
+    }
+}
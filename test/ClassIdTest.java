@@ -0,0 +1,104 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.File;
+
+/**
+ * Checks the parsing of class names and array descriptors by
+ * {@link ClassId}.
+ *
+ * @author simpsons
+ */
+final class ClassIdTest {
+    public static void main(String[] args) throws Exception {
+        plainNames();
+        objectArrays();
+        primitiveArrays();
+        nestedAndAnonymous();
+        malformed();
+        Check.passed(ClassIdTest.class);
+    }
+
+    private static void plainNames() {
+        ClassId id = ClassId.forName("java/util/Map");
+        Check.equal("java/util/Map", id.toString(), "internal name");
+        Check.equal("java.util.Map", id.toExternalName(), "external name");
+        Check.equal("java.util", id.getPackageName(), "package");
+        Check.that(!id.isArray(), "not an array");
+        Check.equal(id, ClassId.forName("java.util.Map"),
+                    "dotted and slashed names");
+        Check.that(id == ClassId.forName("java/util/Map"),
+                   "repeated names share an id");
+        Check.equal(null, ClassId.forName("Top").getPackageName(),
+                    "default package");
+        Check.equal(null, ClassId.forName(null), "no name");
+    }
+
+    private static void objectArrays() {
+        ClassId id = ClassId.forName("[[Ljava/lang/String;");
+        Check.that(id.isArray(), "array");
+        Check.equal(2, id.arrayDimensions(), "dimensions");
+        Check.that(!id.baseIsPrimitive(), "object elements");
+        Check.equal(ClassId.forName("java/lang/String"), id.baseType(),
+                    "base type");
+        Check.equal(1, id.elementType().arrayDimensions(),
+                    "element dimensions");
+        Check.equal(id, ClassId.forName("java/lang/String").arrayType(2),
+                    "array of base");
+        Check.equal(null, id.sourceFile(new File("src")),
+                    "array source");
+    }
+
+    private static void primitiveArrays() {
+        for (char c : "ZCSIJBFD".toCharArray()) {
+            ClassId id = ClassId.forName("[" + c);
+            Check.that(id.baseIsPrimitive(), "primitive " + c);
+            Check.equal(1, id.arrayDimensions(), "dimensions of " + c);
+            Check.equal(null, id.baseType(), "base type of " + c);
+            Check.equal(null, id.elementType(), "element type of " + c);
+        }
+        ClassId id = ClassId.forName("[[[I");
+        Check.equal("[[[I", id.toString(), "nested primitive text");
+        Check.equal(ClassId.forName("[[I"), id.elementType(),
+                    "nested primitive element");
+    }
+
+    private static void nestedAndAnonymous() {
+        ClassId inner = ClassId.forName("a/b/Outer$Inner");
+        Check.that(!inner.isAnonymous(), "named member class");
+        Check.equal(ClassId.forName("a/b/Outer"), inner.source(),
+                    "member class source");
+        Check.that(ClassId.forName("a/b/Outer$1").isAnonymous(),
+                   "anonymous class");
+        Check.that(!ClassId.forName("a/b/Outer$X2").isAnonymous(),
+                   "name ending in a digit");
+        Check.equal(new File("src/a/b/Outer.java"),
+                    inner.source().sourceFile(new File("src")),
+                    "source file");
+    }
+
+    private static void malformed() {
+        for (String text : new String[] { "", "[", "[[", "[Q",
+            "[II", "[Ljava/lang/String", "a\nb", "[La\rb;" }) {
+            Check.fails(IllegalArgumentException.class,
+                        () -> ClassId.forName(text),
+                        "parsing '" + text + "'");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that {@link ConstantPool} reads each kind of entry, resolves
+ * references between them, and rejects references of the wrong kind.
+ *
+ * @author simpsons
+ */
+final class ConstantPoolTest {
+    public static void main(String[] args) throws Exception {
+        handBuilt();
+        ownClass();
+        Check.passed(ConstantPoolTest.class);
+    }
+
+    private static void handBuilt() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(16);
+        out.writeByte(ConstantPool.CONSTANT_Utf8); // 1
+        out.writeUTF("java/lang/Object");
+        out.writeByte(ConstantPool.CONSTANT_Class); // 2
+        out.writeShort(1);
+        out.writeByte(ConstantPool.CONSTANT_Utf8); // 3
+        out.writeUTF("toString");
+        out.writeByte(ConstantPool.CONSTANT_Utf8); // 4
+        out.writeUTF("()Ljava/lang/String;");
+        out.writeByte(ConstantPool.CONSTANT_NameAndType); // 5
+        out.writeShort(3);
+        out.writeShort(4);
+        out.writeByte(ConstantPool.CONSTANT_Methodref); // 6
+        out.writeShort(2);
+        out.writeShort(5);
+        out.writeByte(ConstantPool.CONSTANT_Long); // 7 and 8
+        out.writeLong(42L);
+        out.writeByte(ConstantPool.CONSTANT_String); // 9
+        out.writeShort(3);
+        out.writeByte(ConstantPool.CONSTANT_Integer); // 10
+        out.writeInt(7);
+        out.writeByte(ConstantPool.CONSTANT_Double); // 11 and 12
+        out.writeDouble(1.5);
+        out.writeByte(15); // 13, MethodHandle, ignored
+        out.writeByte(5);
+        out.writeShort(6);
+        out.writeByte(ConstantPool.CONSTANT_InterfaceMethodref); // 14
+        out.writeShort(2);
+        out.writeShort(5);
+        out.writeByte(ConstantPool.CONSTANT_Fieldref); // 15
+        out.writeShort(2);
+        out.writeShort(5);
+        out.flush();
+
+        ConstantPool pool = ConstantPool.build(new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())));
+        ClassId object = ClassId.forName("java/lang/Object");
+        Check.equal(object, pool.getClass(2), "class");
+        Check.equal("toString", pool.getText(3), "text");
+        NameAndType nat = pool.getNameAndType(5);
+        Check.equal("toString", nat.name, "name");
+        Check.equal("()Ljava/lang/String;", nat.type, "type");
+        Ref method = pool.getMethod(6);
+        Check.equal(object, method.clazz, "method's class");
+        Check.that(method.nat == nat, "method's name and type shared");
+        Check.that(pool.getMethod(6) == method, "method resolved once");
+        Check.equal(object, pool.getInterfaceMethod(14).clazz,
+                    "interface method's class");
+        Check.equal(object, pool.getField(15).clazz, "field's class");
+        Check.equal(42L, pool.getConstant(7), "long");
+        Check.equal("toString", pool.getConstant(9), "string constant");
+        Check.equal("toString", pool.getString(9), "string");
+        Check.equal(7, pool.getConstant(10), "integer");
+        Check.equal(1.5, pool.getConstant(11), "double");
+        Check.equal(object, pool.getConstant(2), "class constant");
+
+        Check.equal(list(object), list(pool.getClasses()), "classes");
+        Check.equal(list(nat), list(pool.getNamesAndTypes()),
+                    "names and types");
+        Check.equal(list("java/lang/Object", "toString",
+                         "()Ljava/lang/String;"),
+                    list(pool.getTexts()), "texts");
+
+        Check.fails(IllegalArgumentException.class, () -> pool.getClass(1),
+                    "text as class");
+        Check.fails(IllegalArgumentException.class, () -> pool.getMethod(15),
+                    "field as method");
+        Check.fails(IllegalArgumentException.class, () -> pool.getField(6),
+                    "method as field");
+        Check.fails(IllegalArgumentException.class, () -> pool.getText(8),
+                    "second slot of long");
+        Check.fails(IllegalArgumentException.class, () -> pool.getConstant(5),
+                    "name and type as constant");
+        Check.fails(IllegalArgumentException.class, () -> pool.getText(16),
+                    "index past end");
+        Check.fails(IllegalArgumentException.class, () -> pool.getText(0),
+                    "index zero");
+    }
+
+    private static void ownClass() throws IOException {
+        try (InputStream in = ConstantPoolTest.class
+            .getResourceAsStream("ConstantPoolTest.class")) {
+            DataInputStream data = new DataInputStream(in);
+            Check.equal(0xcafebabe, data.readInt(), "magic");
+            data.readUnsignedShort();
+            data.readUnsignedShort();
+            ConstantPool pool = ConstantPool.build(data);
+            data.readUnsignedShort();
+            int thisClass = data.readUnsignedShort();
+            Check.equal(ClassId.forName("ConstantPoolTest"),
+                        pool.getClass(thisClass), "this class");
+            Check.that(list(pool.getClasses())
+                .contains(ClassId.forName("ConstantPool")),
+                       "referenced class");
+        }
+    }
+
+    @SafeVarargs
+    private static <E> List<E> list(E... items) {
+        List<E> result = new ArrayList<>();
+        for (E item : items)
+            result.add(item);
+        return result;
+    }
+
+    private static <E> List<E> list(Iterable<E> items) {
+        List<E> result = new ArrayList<>();
+        for (E item : items)
+            result.add(item);
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Checks that {@link LineSorter} gives the same result whether it
+ * holds all its lines or spills them to runs, and that it leaves no
+ * runs behind.
+ *
+ * @author simpsons
+ */
+final class LineSorterTest {
+    public static void main(String[] args) throws Exception {
+        Path dir = Check.workDir();
+        List<String> input = new ArrayList<>();
+        Random rng = new Random(1);
+        for (int i = 0; i < 5000; i++)
+            input.add("line " + rng.nextInt(2000)
+                + (i % 3 == 0 ? " \u00e9" : ""));
+        input.add("");
+        input.add("");
+
+        for (int limit : new int[] { 1, 2, 7, 1000, 100000 }) {
+            sorted(dir, input, limit, false);
+            sorted(dir, input, limit, true);
+        }
+        sorted(dir, Collections.emptyList(), 3, true);
+        spills(dir);
+        Check.passed(LineSorterTest.class);
+    }
+
+    private static void sorted(Path dir, List<String> input, int limit,
+                               boolean distinct)
+        throws IOException {
+        Path runs = Files.createTempDirectory(dir, "runs-");
+        File result = dir.resolve("sorted").toFile();
+        try (LineSorter sorter = new LineSorter(runs, limit, distinct)) {
+            for (String line : input)
+                sorter.add(line);
+            Check.equal((long) input.size(), sorter.count(), "line count");
+            sorter.writeTo(result);
+        }
+
+        List<String> expected = distinct ? new ArrayList<>(new TreeSet<>(input))
+            : new ArrayList<>(input);
+        Collections.sort(expected);
+        String what = "limit " + limit + (distinct ? ", distinct" : "");
+        Check.equal(expected, Files.readAllLines(result.toPath(),
+                                                 JardepsCompiler.TEXT_ENCODING),
+                    "lines sorted with " + what);
+        Check.equal(0, entries(runs), "runs left with " + what);
+    }
+
+    private static void spills(Path dir) throws IOException {
+        Path runs = Files.createTempDirectory(dir, "runs-");
+        try (LineSorter sorter = new LineSorter(runs, 10, false)) {
+            for (int i = 0; i < 25; i++)
+                sorter.add(Integer.toString(i));
+            Check.equal(2, entries(runs), "runs written while adding");
+        }
+        Check.equal(0, entries(runs), "runs left after closing");
+    }
+
+    private static int entries(Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return (int) list.count();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link UsageChecker} touches a tree's stamp only when a
+ * breaking change to the profiles it depends on matches something the
+ * tree uses.
+ *
+ * @author simpsons
+ */
+final class UsageCheckerTest {
+    private static final String TASK = "// Task\n"
+        + "public abstract class Task {\n"
+        + "    public abstract void run();\n" + "}\n";
+
+    private static final String JOB = "// Job\n"
+        + "public abstract class Job extends Task {\n"
+        + "    public static final int LIMIT = 10;\n"
+        + "    public void start() {}\n"
+        + "    public void stop() {}\n" + "}\n";
+
+    private static final FileTime OLD = FileTime.fromMillis(1000000000L);
+
+    private static Path dir;
+
+    private static Path base;
+
+    private static int versions;
+
+    public static void main(String[] args) throws Exception {
+        dir = Check.workDir();
+        base = version(TASK, JOB);
+        firstCheck();
+
+        /* A member is matched by name and descriptor. */
+        String[] starter = { "class Job", "member start()V" };
+        expect(starter, false, "unused", TASK,
+               JOB.replace("stop()", "stop(int now)"));
+        expect(starter, true, "used\n  Job.start()V", TASK,
+               JOB.replace("start()", "start(int now)"));
+        expect(new String[] { "member start()V" }, true,
+               "used\n  Job.start()V", TASK,
+               JOB.replace("start()", "start(int now)"));
+
+        /* Additions that don't break anything are not checked. */
+        expect(starter, false, null, TASK,
+               JOB.replace("public void stop", "public void pause() {}\n"
+                   + "    public void stop"));
+
+        /* An abstract method added to a class affects users of its
+         * subclasses. */
+        String abstractTask = TASK.replace("run();", "run();\n"
+            + "    public abstract void cancel();");
+        expect(starter, true, "used\n  Task.cancel()V", abstractTask, JOB);
+        expect(new String[] { "member start()V" }, false, "unused",
+               abstractTask, JOB);
+
+        /* Constants are inlined, so any change to one matters. */
+        expect(new String[0], true, "used\n  Job.LIMIT", TASK,
+               JOB.replace("LIMIT = 10", "LIMIT = 11"));
+
+        /* A class's changed supertypes match uses of it. */
+        expect(new String[] { "class Job" }, true, "used\n  Job", TASK,
+               JOB.replace("extends Task", "implements Runnable"));
+
+        missingUsage();
+        Check.passed(UsageCheckerTest.class);
+    }
+
+    private static Path version(String... sources) throws Exception {
+        Path work = dir.resolve("v" + ++versions);
+        Path profile = dir.resolve("v" + versions + ".api");
+        Check.profile(work, profile, sources);
+        return profile;
+    }
+
+    private static String check(Path usage, Path seen, Path stamp,
+                                Path... profiles)
+        throws Exception {
+        String[] args = new String[4 + profiles.length];
+        args[0] = "tree";
+        args[1] = usage.toString();
+        args[2] = seen.toString();
+        args[3] = stamp.toString();
+        for (int i = 0; i < profiles.length; i++)
+            args[4 + i] = profiles[i].toString();
+        return Check.stderr(() -> UsageChecker.main(args));
+    }
+
+    private static void firstCheck() throws Exception {
+        Path usage = dir.resolve("first.usage");
+        Path seen = dir.resolve("first.seen");
+        Path stamp = dir.resolve("first.stamp");
+        Files.write(usage, Arrays.asList("class Job"));
+        Check.equal("", check(usage, seen, stamp, base),
+                    "first check message");
+        Check.that(Files.exists(stamp), "stamp created");
+        Check.equal(Files.readAllLines(base), Files.readAllLines(seen),
+                    "profiles seen");
+    }
+
+    /**
+     * Check a tree against the base profile, then against a changed
+     * one.
+     *
+     * @param usage the tree's usage
+     *
+     * @param affected whether the tree should be affected by the change
+     *
+     * @param report the expected report, after the message and
+     * {@code changes}, or {@code null} if none
+     *
+     * @param sources the changed sources
+     */
+    private static void expect(String[] usage, boolean affected,
+                               String report, String... sources)
+        throws Exception {
+        Path changed = version(sources);
+        String what = "v" + versions;
+        Path usageFile = dir.resolve(what + ".usage");
+        Path seen = dir.resolve(what + ".seen");
+        Path stamp = dir.resolve(what + ".stamp");
+        Files.write(usageFile, Arrays.asList(usage));
+        check(usageFile, seen, stamp, base);
+        Files.setLastModifiedTime(stamp, OLD);
+
+        String out = check(usageFile, seen, stamp, changed);
+        String expected = report == null ? ""
+            : ("tree changes " + report + "\n")
+                .replace("\n", System.lineSeparator());
+        Check.equal(expected, out, what + " report");
+        Check.equal(affected, !OLD.equals(Files.getLastModifiedTime(stamp)),
+                    what + " affected");
+        Check.equal(Files.readAllLines(changed), Files.readAllLines(seen),
+                    what + " profiles seen");
+    }
+
+    private static void missingUsage() throws Exception {
+        Path seen = dir.resolve("missing.seen");
+        Path stamp = dir.resolve("missing.stamp");
+        Path usage = dir.resolve("missing.usage");
+        Files.write(usage, Arrays.asList("class Job"));
+        check(usage, seen, stamp, base);
+        Files.setLastModifiedTime(stamp, OLD);
+        Files.delete(usage);
+        check(usage, seen, stamp, base);
+        Check.that(!OLD.equals(Files.getLastModifiedTime(stamp)),
+                   "stamp touched without usage");
+    }
+}
@@ -0,0 +1,204 @@
+/*
+  Jardeps - per-tree Java dependencies in Make
+  Copyright (c) 2007-16,2018-19,2021-22, Lancaster University
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks that the zip files written by {@link ZipWriter} can be read
+ * by the JDK and by {@link ZipWriter#readDirectory(FileChannel)},
+ * including entries copied raw from another zip, and files with too
+ * many entries for the ordinary end record.
+ *
+ * @author simpsons
+ */
+final class ZipWriterTest {
+    private static final int TIME =
+        ZipWriter.dosTime(LocalDateTime.of(2021, 6, 30, 12, 34, 56));
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Check.workDir();
+        storedEntries(dir);
+        rawCopy(dir);
+        zip64(dir);
+        Check.passed(ZipWriterTest.class);
+    }
+
+    private static void storedEntries(Path dir) throws IOException {
+        byte[] small = "hello\n".getBytes(StandardCharsets.UTF_8);
+        byte[] big = new byte[100000];
+        for (int i = 0; i < big.length; i++)
+            big[i] = (byte) (i * 31);
+        Path content = dir.resolve("big.bin");
+        Files.write(content, big);
+
+        Path zip = dir.resolve("stored.zip");
+        try (ZipWriter out = new ZipWriter(zip)) {
+            out.add("dir/", TIME, new byte[0], crc(new byte[0]),
+                    new byte[0]);
+            out.add("dir/small.txt", TIME, new byte[0], crc(small), small);
+            out.add("dir/big.bin", TIME, new byte[0], crc(big), big.length,
+                    content);
+            out.add("caf\u00e9.txt", TIME, new byte[0], crc(small), small);
+        }
+
+        try (ZipFile in = new ZipFile(zip.toFile())) {
+            Check.equal(Arrays.asList("dir/", "dir/small.txt", "dir/big.bin",
+                                      "caf\u00e9.txt"),
+                        names(in), "entry names");
+            Check.equal(small, read(in, "dir/small.txt"), "small content");
+            Check.equal(big, read(in, "dir/big.bin"), "file content");
+            ZipEntry entry = in.getEntry("dir/small.txt");
+            Check.equal(ZipEntry.STORED, entry.getMethod(), "method");
+            Check.equal(crc(small), entry.getCrc(), "checksum");
+            Check.equal(LocalDateTime.of(2021, 6, 30, 12, 34, 56),
+                        entry.getTimeLocal(), "time");
+        }
+
+        try (FileChannel in = FileChannel.open(zip)) {
+            Map<String, ZipWriter.Entry> dirEntries =
+                ZipWriter.readDirectory(in);
+            ZipWriter.Entry entry = dirEntries.get("dir/big.bin");
+            Check.equal((long) big.length, entry.size, "recorded size");
+            Check.equal(crc(big), entry.crc, "recorded checksum");
+            Check.equal(TIME, entry.dosTime, "recorded time");
+        }
+
+        Check.fails(IOException.class, () -> {
+            try (ZipWriter out = new ZipWriter(dir.resolve("short.zip"))) {
+                out.add("big.bin", TIME, new byte[0], crc(big),
+                        big.length + 1, content);
+            }
+        }, "adding a file shorter than stated");
+    }
+
+    private static void rawCopy(Path dir) throws IOException {
+        Path source = dir.resolve("deflated.zip");
+        List<byte[]> contents = new ArrayList<>();
+        try (OutputStream file = Files.newOutputStream(source);
+             ZipOutputStream out = new ZipOutputStream(file)) {
+            out.setComment("a comment to skip");
+            for (int i = 0; i < 5; i++) {
+                byte[] data = String.join("", Collections
+                    .nCopies(1000 * (i + 1), "line " + i + "\n"))
+                    .getBytes(StandardCharsets.UTF_8);
+                contents.add(data);
+                ZipEntry entry = new ZipEntry("e" + i);
+                entry.setExtra(new byte[] { (byte) 0xfe, (byte) 0xca, 0, 0 });
+                out.putNextEntry(entry);
+                out.write(data);
+                out.closeEntry();
+            }
+        }
+
+        Path zip = dir.resolve("copied.zip");
+        try (FileChannel in = FileChannel.open(source);
+             ZipWriter out = new ZipWriter(zip)) {
+            Map<String, ZipWriter.Entry> entries = ZipWriter.readDirectory(in);
+            Check.equal(Arrays.asList("e0", "e1", "e2", "e3", "e4"),
+                        new ArrayList<>(entries.keySet()), "source names");
+            for (int i = 4; i >= 0; i--) {
+                ZipWriter.Entry entry = entries.get("e" + i);
+                Check.equal(ZipEntry.DEFLATED, entry.method, "source method");
+                Check.that(entry.compressedSize < entry.size,
+                           "source compressed");
+                out.copy("copy/e" + i, entry, in);
+            }
+        }
+
+        try (ZipFile in = new ZipFile(zip.toFile())) {
+            Check.equal(Arrays.asList("copy/e4", "copy/e3", "copy/e2",
+                                      "copy/e1", "copy/e0"),
+                        names(in), "copied names");
+            for (int i = 0; i < 5; i++) {
+                ZipEntry entry = in.getEntry("copy/e" + i);
+                Check.equal(ZipEntry.DEFLATED, entry.getMethod(),
+                            "copied method");
+                Check.equal(contents.get(i), read(in, "copy/e" + i),
+                            "copied content");
+            }
+        }
+    }
+
+    private static void zip64(Path dir) throws IOException {
+        final int count = 70000;
+        byte[] data = new byte[] { 'x' };
+        Path zip = dir.resolve("many.zip");
+        try (ZipWriter out = new ZipWriter(zip)) {
+            for (int i = 0; i < count; i++)
+                out.add("f" + i, TIME, new byte[0], crc(data), data);
+        }
+
+        try (FileChannel in = FileChannel.open(zip)) {
+            Map<String, ZipWriter.Entry> entries = ZipWriter.readDirectory(in);
+            Check.equal(count, entries.size(), "entries read back");
+            Check.equal(1L, entries.get("f69999").size, "last entry size");
+        }
+
+        try (ZipFile in = new ZipFile(zip.toFile())) {
+            Check.equal(count, in.size(), "entries read by the JDK");
+            Check.equal(data, read(in, "f69999"), "last entry content");
+        }
+
+        /* Copy raw from the file with 64-bit end records. */
+        Path copy = dir.resolve("many-copy.zip");
+        try (FileChannel in = FileChannel.open(zip);
+             ZipWriter out = new ZipWriter(copy)) {
+            Map<String, ZipWriter.Entry> entries = ZipWriter.readDirectory(in);
+            out.copy("last", entries.get("f69999"), in);
+        }
+        try (ZipFile in = new ZipFile(copy.toFile())) {
+            Check.equal(data, read(in, "last"), "entry copied from zip64");
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static List<String> names(ZipFile in) {
+        List<String> result = new ArrayList<>();
+        for (ZipEntry entry : Collections.list(in.entries()))
+            result.add(entry.getName());
+        return result;
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -16,6 +16,8 @@
 #  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 
 JARDEPS_UTILS += JardepsCompiler
+JARDEPS_UTILS += CompilerDaemon
+JARDEPS_UTILS += CompilerClient
 JARDEPS_UTILS += PropertyDefaulter
 JARDEPS_UTILS += Native2Ascii
 JARDEPS_UTILS += ClassAnalysis
@@ -27,6 +29,23 @@ JARDEPS_UTILS += Constants
 JARDEPS_UTILS += ClassId
 JARDEPS_UTILS += Visibility
 JARDEPS_UTILS += MemberEntry
+JARDEPS_UTILS += ByteBufferInput
+JARDEPS_UTILS += ClassSummary
+JARDEPS_UTILS += AnalysisCache
+JARDEPS_UTILS += StructuredProfile
+JARDEPS_UTILS += ApiComparator
+JARDEPS_UTILS += UsageChecker
+JARDEPS_UTILS += IncrementalState
+JARDEPS_UTILS += IncrementalCompiler
+JARDEPS_UTILS += JarWriter
+JARDEPS_UTILS += ZipWriter
+JARDEPS_UTILS += FileMerger
+JARDEPS_UTILS += JarMeta
+JARDEPS_UTILS += BuildStats
+JARDEPS_UTILS += BuildCache
+JARDEPS_UTILS += LineSorter
+JARDEPS_UTILS += SourceDigests
+JARDEPS_UTILS += BatchScheduler
 #JARDEPS_UTILS += ClassTracker
 #JARDEPS_UTILS += ClassSink
 #JARDEPS_UTILS += DeferredClassSink
@@ -71,6 +90,7 @@ $(JARDEPS_COMPILATION): $(JARDEPS_SOURCES) $(JARDEPS_UTILS_FILE)
 	  -d $(JARDEPS_INTERNAL_CLASSDIR) \
 	  -sourcepath $(JARDEPS_INTERNAL_SRCDIR) \
 	  $(JARDEPS_SOURCES)
+	$(MKDIR) "$(@D)"
 	$(TOUCH) "$@"
 
 $(JARDEPS_COMPILER_JAR): $(JARDEPS_COMPILATION)